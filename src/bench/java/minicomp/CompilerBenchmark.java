@@ -0,0 +1,60 @@
+package minicomp;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+import org.antlr.v4.runtime.CharStreams;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Throughput of a whole compilation, from lexing to the generated code, for each backend on
+ * synthetic programs. The generated code is written to a stream that only counts its bytes.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CompilerBenchmark {
+    @Param({"JVM", "LLVM"})
+    public Backend backend;
+
+    @Param({"nested", "straightLine", "manyVariables", "random"})
+    public String shape;
+
+    @Param({"small", "medium", "huge"})
+    public String size;
+
+    private String source;
+
+    @Setup
+    public void generateSource() {
+        source = SyntheticPrograms.generate(shape, size);
+    }
+
+    @Benchmark
+    public long compile() throws IOException {
+        Compiler compiler = backend.newCompiler();
+        compiler.compile(CharStreams.fromString(source));
+        if (compiler.hasErrors()) {
+            throw new IllegalStateException("Synthetic program doesn't compile: " + compiler.getErrors());
+        }
+        CountingOutputStream out = new CountingOutputStream();
+        compiler.writeGeneratedCode(out);
+        return out.count;
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+        long count = 0;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
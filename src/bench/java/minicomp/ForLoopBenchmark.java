@@ -0,0 +1,96 @@
+package minicomp;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+import org.antlr.v4.runtime.CharStreams;
+import org.objectweb.asm.Label;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import static org.objectweb.asm.Opcodes.*;
+
+/**
+ * Run time of for loops generated in javac's shape, with the bound and step in locals, compared
+ * to the previous shape, which kept them on the operand stack for the whole loop.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ForLoopBenchmark {
+    @Param({"locals", "stack"})
+    public String shape;
+
+    @Param({"sum", "nestedLoops", "variableStep"})
+    public String kernel;
+
+    private Program program;
+    private IntSupplier input;
+
+    private static final String VARIABLE_STEP =
+        "n = read;\n" +
+        "step = n / n;\n" +
+        "s = 0;\n" +
+        "for i = 1 to n by step do\n" +
+        "  s = (s + i) % 1000003;\n" +
+        "end\n" +
+        "print s;\n";
+
+    /**
+     * Generates for loops the way JavaBytecodeCompiler did before it switched to javac's shape.
+     */
+    static class StackForLoopCompiler extends JavaBytecodeCompiler {
+        @Override
+        protected void visitFor(int loop) {
+            Label condLabel = new Label();
+            Label endLabel = new Label();
+            int loopVar = local(ir.slot(loop));
+            visit(ir.forStart(loop));
+            methodWriter.visitInsn(DUP);
+            methodWriter.visitVarInsn(ISTORE, loopVar);
+            visit(ir.forEnd(loop));
+            visit(ir.forStep(loop));
+            methodWriter.visitInsn(SWAP);
+            methodWriter.visitInsn(DUP2_X1);
+            methodWriter.visitInsn(POP2);
+            methodWriter.visitLabel(condLabel);
+            methodWriter.visitInsn(SWAP);
+            methodWriter.visitInsn(DUP_X1);
+            methodWriter.visitJumpInsn(IF_ICMPGT, endLabel);
+            visitList(ir.loopBody(loop));
+            methodWriter.visitInsn(SWAP);
+            methodWriter.visitInsn(DUP_X1);
+            methodWriter.visitVarInsn(ILOAD, loopVar);
+            methodWriter.visitInsn(IADD);
+            methodWriter.visitInsn(DUP);
+            methodWriter.visitVarInsn(ISTORE, loopVar);
+            methodWriter.visitJumpInsn(GOTO, condLabel);
+            methodWriter.visitLabel(endLabel);
+            methodWriter.visitInsn(POP2);
+        }
+    }
+
+    @Setup
+    public void compileKernel() throws CompileException {
+        String source;
+        switch (kernel) {
+            case "sum": source = GeneratedCodeBenchmark.SUM; break;
+            case "nestedLoops": source = GeneratedCodeBenchmark.NESTED_LOOPS; break;
+            case "variableStep": source = VARIABLE_STEP; break;
+            default: throw new IllegalArgumentException("Unknown kernel: " + kernel);
+        }
+        JavaBytecodeCompiler compiler = shape.equals("stack") ? new StackForLoopCompiler() : new JavaBytecodeCompiler();
+        compiler.compile(CharStreams.fromString(source));
+        if (compiler.hasErrors()) {
+            throw new CompileException(compiler.getErrors());
+        }
+        program = Program.load(compiler.getGeneratedCode());
+        input = () -> 1_000_000;
+    }
+
+    @Benchmark
+    public void run(Blackhole blackhole) {
+        program.run(input, blackhole::consume);
+    }
+}
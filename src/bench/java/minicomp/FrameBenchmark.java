@@ -0,0 +1,47 @@
+package minicomp;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+import org.antlr.v4.runtime.CharStreams;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Time of a JVM compilation with the stack map frames tracked while generating the code (see
+ * {@link FrameTracker}) compared to having ASM compute them with {@link Options#computeFrames}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FrameBenchmark {
+    @Param({"tracked", "computed"})
+    public String frames;
+
+    @Param({"nested", "straightLine", "manyVariables"})
+    public String shape;
+
+    @Param({"medium", "huge"})
+    public String size;
+
+    private String source;
+    private Options options;
+
+    @Setup
+    public void generateSource() {
+        source = SyntheticPrograms.generate(shape, size);
+        options = new Options();
+        options.computeFrames = frames.equals("computed");
+    }
+
+    @Benchmark
+    public byte[] compile() {
+        Compiler compiler = new JavaBytecodeCompiler(options);
+        compiler.compile(CharStreams.fromString(source));
+        if (compiler.hasErrors()) {
+            throw new IllegalStateException("Synthetic program doesn't compile: " + compiler.getErrors());
+        }
+        return compiler.getGeneratedCode();
+    }
+}
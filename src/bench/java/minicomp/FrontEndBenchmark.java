@@ -0,0 +1,45 @@
+package minicomp;
+
+import java.util.concurrent.TimeUnit;
+import org.antlr.v4.runtime.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Lexing and parsing throughput on synthetic programs, independent of the backend.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FrontEndBenchmark {
+    @Param({"nested", "straightLine", "manyVariables"})
+    public String shape;
+
+    @Param({"small", "medium", "huge"})
+    public String size;
+
+    private String source;
+
+    @Setup
+    public void generateSource() {
+        source = SyntheticPrograms.generate(shape, size);
+    }
+
+    @Benchmark
+    public int lex() {
+        MiniLangLexer lexer = new MiniLangLexer(CharStreams.fromString(source));
+        int tokens = 0;
+        while (lexer.nextToken().getType() != Token.EOF) {
+            tokens++;
+        }
+        return tokens;
+    }
+
+    @Benchmark
+    public MiniLangParser.ProgContext parse() {
+        MiniLangParser parser = new MiniLangParser(new CommonTokenStream(new MiniLangLexer(CharStreams.fromString(source))));
+        return parser.prog();
+    }
+}
@@ -0,0 +1,90 @@
+package minicomp;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Run time of classes generated by {@link JavaBytecodeCompiler} for loop-heavy kernels. Each
+ * kernel reads its problem size once and prints a few results, which are consumed by the
+ * benchmark's blackhole.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class GeneratedCodeBenchmark {
+    @Param({"sum", "nestedLoops", "collatz", "primes"})
+    public String kernel;
+
+    private Program program;
+    private IntSupplier input;
+
+    static final String SUM =
+        "n = read;\n" +
+        "s = 0;\n" +
+        "for i = 1 to n do\n" +
+        "  s = (s + i * 3 % 7) % 1000003;\n" +
+        "end\n" +
+        "print s;\n";
+
+    static final String NESTED_LOOPS =
+        "n = read / 1000;\n" +
+        "s = 0;\n" +
+        "for i = 1 to n do\n" +
+        "  for j = 1 to 1000 by 2 do\n" +
+        "    s = (s + i * j) % 65521;\n" +
+        "  end\n" +
+        "end\n" +
+        "print s;\n";
+
+    private static final String COLLATZ =
+        "n = read / 100;\n" +
+        "longest = 0;\n" +
+        "for i = 1 to n do\n" +
+        "  x = i;\n" +
+        "  steps = 0;\n" +
+        "  while x != 1 do\n" +
+        "    if x % 2 == 0 then x = x / 2; else x = 3 * x + 1; end\n" +
+        "    steps = steps + 1;\n" +
+        "  end\n" +
+        "  if steps > longest then longest = steps; end\n" +
+        "end\n" +
+        "print longest;\n";
+
+    private static final String PRIMES =
+        "n = read / 100;\n" +
+        "count = 0;\n" +
+        "for i = 2 to n do\n" +
+        "  d = 2;\n" +
+        "  prime = 1;\n" +
+        "  while prime && d * d <= i do\n" +
+        "    if i % d == 0 then prime = 0; end\n" +
+        "    d = d + 1;\n" +
+        "  end\n" +
+        "  count = count + prime;\n" +
+        "end\n" +
+        "print count;\n";
+
+    @Setup
+    public void compileKernel() throws CompileException {
+        String source;
+        switch (kernel) {
+            case "sum": source = SUM; break;
+            case "nestedLoops": source = NESTED_LOOPS; break;
+            case "collatz": source = COLLATZ; break;
+            case "primes": source = PRIMES; break;
+            default: throw new IllegalArgumentException("Unknown kernel: " + kernel);
+        }
+        program = MiniLang.compile(source);
+        input = () -> 1_000_000;
+    }
+
+    @Benchmark
+    public void run(Blackhole blackhole) {
+        program.run(input, blackhole::consume);
+    }
+}
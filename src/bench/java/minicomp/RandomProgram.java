@@ -0,0 +1,271 @@
+package minicomp;
+
+import java.util.*;
+
+/**
+ * Random but valid MiniLang programs of a configurable size and shape, for comparing the backends
+ * on programs that are larger and more varied than the test suites (see {@link ScalingRunner}).
+ * The same shape and seed always produce the same program.
+ *
+ * <p>Every program terminates and behaves the same with every backend: loops have constant trip
+ * counts and counters that nothing else assigns, the product of the trip counts of nested loops
+ * is limited, divisors are always at least 2, and the number of values the program reads is
+ * bounded by {@link #maxReads}, so it never reads past the end of its input.
+ */
+final class RandomProgram {
+    // Reads are only generated while the program reads at most this many values
+    private static final long READ_LIMIT = 1 << 20;
+    // Nested statement lists have at most this many statements
+    private static final int MAX_BODY_SIZE = 8;
+
+    /**
+     * The shape of the generated programs, set from command line flags of the form
+     * --name=value.
+     */
+    static final class Shape {
+        /** The number of statements, including nested ones but not the counters of while loops. */
+        int statements = 1000;
+
+        /** The maximum nesting depth of if statements and loops. */
+        int depth = 4;
+
+        /** The number of variables besides the loop counters. */
+        int variables = 20;
+
+        /** The maximum depth of expressions, not counting their leaves. */
+        int expressionDepth = 3;
+
+        /** The maximum number of iterations of each loop. */
+        int loopTrips = 10;
+
+        /** The maximum number of times any single statement is executed. */
+        long maxIterations = 100_000;
+
+        /** The probability of each leaf of an expression being a read. */
+        double readDensity = 0.05;
+
+        /** The probability of each simple statement being a print instead of an assignment. */
+        double printDensity = 0.2;
+
+        static final String USAGE = "[--statements=<n>] [--depth=<n>] [--variables=<n>] [--expression-depth=<n>] [--loop-trips=<n>] [--max-iterations=<n>] [--read-density=<p>] [--print-density=<p>]";
+
+        /**
+         * Sets the property corresponding to the given command line flag. Returns false if there
+         * is no such property or the value is invalid.
+         */
+        boolean set(String flag) {
+            int equals = flag.indexOf('=');
+            if (!flag.startsWith("--") || equals < 0) return false;
+            String value = flag.substring(equals + 1);
+            try {
+                switch (flag.substring(2, equals)) {
+                    case "statements": statements = Integer.parseInt(value); return statements > 0;
+                    case "depth": depth = Integer.parseInt(value); return depth >= 0;
+                    case "variables": variables = Integer.parseInt(value); return variables > 0;
+                    case "expression-depth": expressionDepth = Integer.parseInt(value); return expressionDepth >= 0;
+                    case "loop-trips": loopTrips = Integer.parseInt(value); return loopTrips > 0;
+                    case "max-iterations": maxIterations = Long.parseLong(value); return maxIterations > 0;
+                    case "read-density": readDensity = Double.parseDouble(value); return readDensity >= 0 && readDensity <= 1;
+                    case "print-density": printDensity = Double.parseDouble(value); return printDensity >= 0 && printDensity <= 1;
+                    default: return false;
+                }
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "statements=" + statements + ", depth=" + depth + ", variables=" + variables + ", expressionDepth=" + expressionDepth
+                + ", loopTrips=" + loopTrips + ", maxIterations=" + maxIterations + ", readDensity=" + readDensity + ", printDensity=" + printDensity;
+        }
+    }
+
+    final String source;
+    /** An upper bound on the number of values the program reads. */
+    final long maxReads;
+
+    private RandomProgram(String source, long maxReads) {
+        this.source = source;
+        this.maxReads = maxReads;
+    }
+
+    static RandomProgram generate(Shape shape, long seed) {
+        Generator generator = new Generator(shape, new Random(seed));
+        return new RandomProgram(generator.program(), generator.reads);
+    }
+
+    private static final class Generator {
+        private final Shape shape;
+        private final Random random;
+        private final StringBuilder source = new StringBuilder();
+        // Loop counters of the enclosing loops, which expressions may use but nothing assigns
+        private final List<String> counters = new ArrayList<>();
+        private int remaining;
+        private long reads = 0;
+
+        Generator(Shape shape, Random random) {
+            this.shape = shape;
+            this.random = random;
+            this.remaining = shape.statements;
+        }
+
+        String program() {
+            for (int i = 0; i < shape.variables && remaining > 0; i++) {
+                source.append('v').append(i).append(" = ").append(expression(0, 1)).append(";\n");
+                remaining--;
+            }
+            while (remaining > 0) {
+                statement(0, 1);
+            }
+            return source.toString();
+        }
+
+        /**
+         * Generates a statement at the given nesting depth, which runs at most the given number
+         * of times.
+         */
+        private void statement(int depth, long iterations) {
+            remaining--;
+            if (depth < shape.depth && remaining > 0 && random.nextInt(5) == 0) {
+                switch (random.nextInt(3)) {
+                    case 0: ifStatement(depth, iterations); return;
+                    case 1: whileLoop(depth, iterations); return;
+                    default: forLoop(depth, iterations); return;
+                }
+            }
+            indent(depth);
+            if (random.nextDouble() < shape.printDensity) {
+                source.append("print ").append(expression(shape.expressionDepth, iterations)).append(";\n");
+            } else {
+                source.append(variable()).append(" = ").append(expression(shape.expressionDepth, iterations)).append(";\n");
+            }
+        }
+
+        private void body(int depth, long iterations) {
+            int size = 1 + random.nextInt(Math.min(remaining, MAX_BODY_SIZE));
+            for (int i = 0; i < size && remaining > 0; i++) {
+                statement(depth, iterations);
+            }
+        }
+
+        private void ifStatement(int depth, long iterations) {
+            indent(depth);
+            source.append("if ").append(expression(shape.expressionDepth, iterations)).append(" then\n");
+            body(depth + 1, iterations);
+            if (remaining > 0 && random.nextBoolean()) {
+                indent(depth);
+                source.append("else\n");
+                body(depth + 1, iterations);
+            }
+            indent(depth);
+            source.append("end\n");
+        }
+
+        /**
+         * Generates a while loop that counts its iterations in a counter of its own, optionally
+         * with an additional condition that may end it early.
+         */
+        private void whileLoop(int depth, long iterations) {
+            String counter = "w" + depth;
+            long trips = trips(iterations);
+            indent(depth);
+            source.append(counter).append(" = 0;\n");
+            indent(depth);
+            source.append("while ").append(counter).append(" < ").append(trips);
+            if (random.nextBoolean()) {
+                // The condition is evaluated once more than the body
+                source.append(" && ").append(expression(shape.expressionDepth, iterations * (trips + 1)));
+            }
+            source.append(" do\n");
+            counters.add(counter);
+            body(depth + 1, iterations * trips);
+            counters.remove(counters.size() - 1);
+            indent(depth + 1);
+            source.append(counter).append(" = ").append(counter).append(" + 1;\n");
+            indent(depth);
+            source.append("end\n");
+        }
+
+        private void forLoop(int depth, long iterations) {
+            String counter = "i" + depth;
+            long trips = trips(iterations);
+            int step = 1 + random.nextInt(3);
+            int start = random.nextInt(10) - 5;
+            indent(depth);
+            source.append("for ").append(counter).append(" = ").append(start).append(" to ").append(start + step * (trips - 1));
+            if (step != 1) source.append(" by ").append(step);
+            source.append(" do\n");
+            counters.add(counter);
+            body(depth + 1, iterations * trips);
+            counters.remove(counters.size() - 1);
+            indent(depth);
+            source.append("end\n");
+        }
+
+        /**
+         * Returns a trip count for a loop that is itself run the given number of times, such that
+         * its body runs at most maxIterations times in total.
+         */
+        private long trips(long iterations) {
+            long limit = Math.max(1, Math.min(shape.loopTrips, shape.maxIterations / iterations));
+            return 1 + random.nextInt((int) limit);
+        }
+
+        /**
+         * Generates a fully parenthesized expression of at most the given depth, which is
+         * evaluated at most the given number of times.
+         */
+        private String expression(int depth, long iterations) {
+            if (depth == 0 || random.nextInt(4) == 0) return leaf(iterations);
+            String lhs = expression(depth - 1, iterations);
+            switch (random.nextInt(14)) {
+                case 0: return "-" + lhs;
+                case 1: return "!" + lhs;
+                case 2: return "(" + lhs + " + " + expression(depth - 1, iterations) + ")";
+                case 3: return "(" + lhs + " - " + expression(depth - 1, iterations) + ")";
+                case 4: return "(" + lhs + " * " + expression(depth - 1, iterations) + ")";
+                case 5: return "(" + lhs + " / " + divisor(depth - 1, iterations) + ")";
+                case 6: return "(" + lhs + " % " + divisor(depth - 1, iterations) + ")";
+                case 7: return "(" + lhs + " == " + expression(depth - 1, iterations) + ")";
+                case 8: return "(" + lhs + " != " + expression(depth - 1, iterations) + ")";
+                case 9: return "(" + lhs + " < " + expression(depth - 1, iterations) + ")";
+                case 10: return "(" + lhs + " >= " + expression(depth - 1, iterations) + ")";
+                case 11: return "(" + lhs + " && " + expression(depth - 1, iterations) + ")";
+                case 12: return "(" + lhs + " || " + expression(depth - 1, iterations) + ")";
+                default: return "(" + lhs + ")";
+            }
+        }
+
+        /**
+         * Generates a divisor, which is at least 2 whatever the value of the expression it's
+         * made of, so that no division overflows or divides by zero.
+         */
+        private String divisor(int depth, long iterations) {
+            int modulus = 1 + random.nextInt(100);
+            return "(" + expression(depth, iterations) + " % " + modulus + " + " + (modulus + 1) + ")";
+        }
+
+        private String leaf(long iterations) {
+            if (random.nextDouble() < shape.readDensity && reads + iterations <= READ_LIMIT) {
+                reads += iterations;
+                return "read";
+            }
+            int choice = random.nextInt(10);
+            if (choice < 2 && !counters.isEmpty()) return counters.get(random.nextInt(counters.size()));
+            if (choice < 7) return variable();
+            if (choice < 9) return Integer.toString(random.nextInt(100));
+            return Integer.toString(random.nextInt(Integer.MAX_VALUE));
+        }
+
+        private String variable() {
+            return "v" + random.nextInt(shape.variables);
+        }
+
+        private void indent(int depth) {
+            for (int i = 0; i < depth; i++) {
+                source.append("  ");
+            }
+        }
+    }
+}
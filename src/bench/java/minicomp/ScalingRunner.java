@@ -0,0 +1,423 @@
+package minicomp;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compiles {@link RandomProgram}s of increasing size with every backend, runs them wherever
+ * possible and checks that all backends print the same output, recording how compile time, the
+ * size of the generated code, memory use and run time grow with the number of statements:
+ *
+ * <pre>
+ * mvn -Pbenchmarks package
+ * java -cp target/benchmarks.jar minicomp.ScalingRunner [--sizes=100,1000,...] [--programs=&lt;n&gt;] [--seed=&lt;n&gt;] [--out=&lt;file&gt;]
+ *     [--llvm-run=clang|lli|none] [--variant="&lt;backend flag&gt; &lt;options&gt;"]... [shape flags]
+ * </pre>
+ *
+ * The shape flags are those of {@link RandomProgram.Shape}, except for --statements, which is
+ * given by the sizes. Each size is measured on the same number of programs, whose seeds are the
+ * given seed and the ones following it. Each --variant adds a backend with compiler options,
+ * like "--jvm --stream", which is compared to the others as well. The medians for each size and
+ * backend are printed as a table, and all measurements are written to a JSON file.
+ *
+ * <p>The compiler and the programs run in processes of their own, like they do in the test
+ * suites. Compile time is the compiler's own --stats total, without the JVM's startup, and run
+ * time is the wall time of the program's process; the interpreter runs the program while it
+ * "generates code", so its run time is taken from the generate phase of its --stats report.
+ * Classes generated by the JVM backend are run with the java command running this class. LLVM
+ * IR is run with lli if it's on the PATH, like in the test suites, or with --llvm-run=clang
+ * compiled with clang -O2 and run natively, which takes much longer to compile large programs.
+ * Memory is the peak resident set size of the process, which is only known on Linux (-1
+ * elsewhere).
+ */
+public class ScalingRunner {
+    private static final long RUN_TIMEOUT_NANOS = TimeUnit.MINUTES.toNanos(5);
+
+    private static final class Result {
+        final int statements;
+        final long seed;
+        final Backend backend;
+        // The backend's flag followed by the compiler options it's used with
+        final List<String> flags;
+        long compileNanos = -1;
+        long codeBytes = -1;
+        long compileMemoryBytes = -1;
+        // Time spent compiling LLVM IR to a native executable
+        long toolchainNanos = -1;
+        long runNanos = -1;
+        long runMemoryBytes = -1;
+        String runner = "none";
+        String output;
+        String error;
+        boolean agrees = true;
+
+        Result(int statements, long seed, List<String> flags) {
+            this.statements = statements;
+            this.seed = seed;
+            this.backend = Backend.fromFlag(flags.get(0));
+            this.flags = flags;
+        }
+
+        String configuration() {
+            return String.join(" ", flags);
+        }
+
+        String toJson() {
+            return "{\"statements\": " + statements + ", \"seed\": " + seed + ", \"backend\": " + jsonString(configuration())
+                + ", \"compileNanos\": " + compileNanos + ", \"codeBytes\": " + codeBytes + ", \"compileMemoryBytes\": " + compileMemoryBytes
+                + ", \"toolchainNanos\": " + toolchainNanos + ", \"runner\": \"" + runner + "\", \"runNanos\": " + runNanos
+                + ", \"runMemoryBytes\": " + runMemoryBytes + ", \"agrees\": " + agrees
+                + ", \"error\": " + (error == null ? "null" : jsonString(error)) + "}";
+        }
+    }
+
+    private final Path workDirectory;
+    private final Path java = Paths.get(System.getProperty("java.home"), "bin", "java");
+    // How LLVM IR is run: "clang", "lli" or "none", and the path of the tool
+    private final String llvmRunner;
+    private final Path llvmTool;
+    // The flags of each backend to compare, with the options it's used with
+    private final List<List<String>> configurations;
+
+    private ScalingRunner(Path workDirectory, String llvmRunner, List<List<String>> configurations) {
+        this.workDirectory = workDirectory;
+        this.configurations = configurations;
+        this.llvmRunner = llvmRunner;
+        this.llvmTool = llvmRunner.equals("none") ? null : findExecutable(llvmRunner);
+    }
+
+    private static void usage() {
+        System.err.println("Usage: java -cp benchmarks.jar minicomp.ScalingRunner [--sizes=100,1000,...] [--programs=<n>] [--seed=<n>] [--out=<file>] [--llvm-run=clang|lli|none] [--variant=\"<backend flag> <options>\"]... " + RandomProgram.Shape.USAGE);
+        System.exit(1);
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        RandomProgram.Shape shape = new RandomProgram.Shape();
+        int[] sizes = {100, 1_000, 10_000, 100_000};
+        int programs = 3;
+        long seed = 1;
+        String out = "target/scaling-results.json";
+        String llvmRunner = findExecutable("lli") != null ? "lli" : "none";
+        List<List<String>> configurations = new ArrayList<>();
+        for (Backend backend: Backend.values()) {
+            configurations.add(Collections.singletonList(backend.getFlag()));
+        }
+        for (String arg: args) {
+            try {
+                if (arg.startsWith("--sizes=")) {
+                    String[] parts = arg.substring("--sizes=".length()).split(",");
+                    sizes = new int[parts.length];
+                    for (int i = 0; i < parts.length; i++) {
+                        sizes[i] = Integer.parseInt(parts[i]);
+                        if (sizes[i] <= 0) usage();
+                    }
+                } else if (arg.startsWith("--programs=")) {
+                    programs = Integer.parseInt(arg.substring("--programs=".length()));
+                    if (programs <= 0) usage();
+                } else if (arg.startsWith("--seed=")) {
+                    seed = Long.parseLong(arg.substring("--seed=".length()));
+                } else if (arg.startsWith("--out=")) {
+                    out = arg.substring("--out=".length());
+                } else if (arg.startsWith("--llvm-run=")) {
+                    llvmRunner = arg.substring("--llvm-run=".length());
+                    if (!llvmRunner.equals("none") && (!llvmRunner.matches("clang|lli") || findExecutable(llvmRunner) == null)) usage();
+                } else if (arg.startsWith("--variant=")) {
+                    List<String> flags = Arrays.asList(arg.substring("--variant=".length()).trim().split(" +"));
+                    if (Backend.fromFlag(flags.get(0)) == null) usage();
+                    Options options = new Options();
+                    for (String option: flags.subList(1, flags.size())) {
+                        if (!options.set(option)) usage();
+                    }
+                    configurations.add(flags);
+                } else if (arg.startsWith("--statements=") || !shape.set(arg)) {
+                    usage();
+                }
+            } catch (NumberFormatException e) {
+                usage();
+            }
+        }
+
+        Path workDirectory = Files.createTempDirectory("minicomp-scaling");
+        ScalingRunner runner = new ScalingRunner(workDirectory, llvmRunner, configurations);
+        System.out.println("Shape: " + shape);
+        System.out.println("LLVM IR runs with: " + (runner.llvmTool == null ? "nothing" : runner.llvmTool));
+        List<Result> results = new ArrayList<>();
+        try {
+            for (int size: sizes) {
+                shape.statements = size;
+                for (long programSeed = seed; programSeed < seed + programs; programSeed++) {
+                    results.addAll(runner.measureProgram(shape, programSeed));
+                }
+            }
+        } finally {
+            deleteRecursively(workDirectory);
+        }
+
+        printTable(results, sizes, configurations);
+        StringBuilder json = new StringBuilder("{\"shape\": ").append(jsonString(shape.toString())).append(", \"results\": [\n");
+        for (int i = 0; i < results.size(); i++) {
+            json.append("  ").append(results.get(i).toJson()).append(i + 1 < results.size() ? ",\n" : "\n");
+        }
+        json.append("]}\n");
+        Files.write(Paths.get(out), json.toString().getBytes(StandardCharsets.UTF_8));
+        System.out.println("Results written to " + out);
+
+        for (Result result: results) {
+            if (result.error != null || !result.agrees) System.exit(1);
+        }
+    }
+
+    /**
+     * Generates the program with the given shape and seed, and compiles and runs it with every
+     * configuration. Prints any errors and disagreements between the configurations' outputs.
+     */
+    private List<Result> measureProgram(RandomProgram.Shape shape, long seed) throws IOException, InterruptedException {
+        RandomProgram program = RandomProgram.generate(shape, seed);
+        Random random = new Random(seed);
+        StringBuilder input = new StringBuilder();
+        for (long i = 0; i < program.maxReads; i++) {
+            input.append(random.nextInt(2001) - 1000).append('\n');
+        }
+        byte[] inputBytes = input.toString().getBytes(StandardCharsets.UTF_8);
+
+        List<Result> results = new ArrayList<>();
+        String expected = null;
+        String expectedConfiguration = null;
+        for (List<String> flags: configurations) {
+            Result result = new Result(shape.statements, seed, flags);
+            try {
+                measure(result, program.source, inputBytes);
+            } catch (RuntimeException e) {
+                result.error = e.toString();
+            }
+            if (result.error != null) {
+                System.out.println(result.configuration() + " failed on the program with " + shape.statements + " statements and seed " + seed + ": " + result.error);
+            } else if (result.output != null) {
+                if (expected == null) {
+                    expected = result.output;
+                    expectedConfiguration = result.configuration();
+                } else if (!expected.equals(result.output)) {
+                    result.agrees = false;
+                    System.out.println(result.configuration() + " disagrees with " + expectedConfiguration + " on the program with "
+                        + shape.statements + " statements and seed " + seed);
+                }
+            }
+            results.add(result);
+        }
+        return results;
+    }
+
+    private void measure(Result result, String source, byte[] input) throws IOException, InterruptedException {
+        Path sourceFile = workDirectory.resolve("program.minilang");
+        Path inputFile = workDirectory.resolve("input");
+        Path codeFile = workDirectory.resolve("code");
+        Path statsFile = workDirectory.resolve("stats.json");
+        Files.write(sourceFile, source.getBytes(StandardCharsets.UTF_8));
+        Files.write(inputFile, input);
+        Files.deleteIfExists(statsFile);
+        List<String> compileCommand = new ArrayList<>(Arrays.asList(java.toString(), "-cp", System.getProperty("java.class.path"), "minicomp.Main"));
+        compileCommand.addAll(result.flags);
+        compileCommand.add("--stats=" + statsFile);
+        compileCommand.add(sourceFile.toString());
+        ProcessResult compile = runProcess(compileCommand, inputFile, codeFile);
+        result.compileMemoryBytes = compile.peakResidentSize;
+        if (compile.error != null) {
+            result.error = "compiler: " + compile.error;
+            return;
+        }
+        String stats = new String(Files.readAllBytes(statsFile), StandardCharsets.UTF_8);
+        result.compileNanos = statsNumber(stats, "\"totalNanos\": ");
+        if (result.backend.runsProgram()) {
+            // The program runs while its code is "generated"
+            result.runNanos = statsNumber(stats, "\"name\": \"generate\", \"wallNanos\": ");
+            result.compileNanos -= result.runNanos;
+            result.runner = "in-process";
+            result.output = new String(Files.readAllBytes(codeFile), StandardCharsets.UTF_8);
+            return;
+        }
+        result.codeBytes = Files.size(codeFile);
+
+        List<String> command;
+        Path outputFile = workDirectory.resolve("output");
+        if (result.backend == Backend.JVM) {
+            Path classes = Files.createDirectories(workDirectory.resolve("classes"));
+            Files.copy(codeFile, classes.resolve("Main.class"), StandardCopyOption.REPLACE_EXISTING);
+            result.runner = "java";
+            command = Arrays.asList(java.toString(), "-cp", classes.toString(), "Main");
+        } else if (llvmRunner.equals("clang")) {
+            Path ir = Files.copy(codeFile, workDirectory.resolve("program.ll"), StandardCopyOption.REPLACE_EXISTING);
+            Path executable = workDirectory.resolve("program");
+            ProcessResult toolchain = runProcess(Arrays.asList(llvmTool.toString(), "-O2", "-w", "-o", executable.toString(), ir.toString()), null, outputFile);
+            if (toolchain.error != null) {
+                result.error = "clang: " + toolchain.error;
+                return;
+            }
+            result.toolchainNanos = toolchain.nanos;
+            result.runner = "clang";
+            command = Collections.singletonList(executable.toString());
+        } else if (llvmRunner.equals("lli")) {
+            result.runner = "lli";
+            command = Arrays.asList(llvmTool.toString(), codeFile.toString());
+        } else {
+            return;
+        }
+        ProcessResult run = runProcess(command, inputFile, outputFile);
+        result.runNanos = run.nanos;
+        result.runMemoryBytes = run.peakResidentSize;
+        if (run.error != null) {
+            result.error = result.runner + ": " + run.error;
+        } else {
+            result.output = new String(Files.readAllBytes(outputFile), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static long statsNumber(String stats, String prefix) {
+        int start = stats.indexOf(prefix);
+        if (start < 0) throw new IllegalStateException("Missing " + prefix + " in the compiler's --stats report");
+        start += prefix.length();
+        int end = start;
+        while (end < stats.length() && Character.isDigit(stats.charAt(end))) end++;
+        return Long.parseLong(stats.substring(start, end));
+    }
+
+    private static final class ProcessResult {
+        long nanos;
+        long peakResidentSize = -1;
+        String error;
+    }
+
+    /**
+     * Runs the command with the given input file (if any) as stdin and its stdout redirected to
+     * the given output file, recording its run time and peak resident set size, or an error if it
+     * fails or times out.
+     */
+    private ProcessResult runProcess(List<String> command, Path inputFile, Path outputFile) throws IOException, InterruptedException {
+        Path pidFile = workDirectory.resolve("pid");
+        Path errorFile = workDirectory.resolve("stderr");
+        Files.deleteIfExists(pidFile);
+        // The shell writes its pid, which the command keeps after the exec, so that its memory
+        // use can be looked up in /proc
+        List<String> wrapped = new ArrayList<>(Arrays.asList("sh", "-c", "echo $$ > \"$0\"; exec \"$@\"", pidFile.toString()));
+        wrapped.addAll(command);
+        ProcessBuilder builder = new ProcessBuilder(wrapped)
+            .redirectOutput(outputFile.toFile())
+            .redirectError(errorFile.toFile());
+        if (inputFile != null) builder.redirectInput(inputFile.toFile());
+        ProcessResult result = new ProcessResult();
+        long start = System.nanoTime();
+        Process process = builder.start();
+        while (!process.waitFor(2, TimeUnit.MILLISECONDS)) {
+            result.peakResidentSize = Math.max(result.peakResidentSize, peakResidentSize(pidFile));
+            if (System.nanoTime() - start > RUN_TIMEOUT_NANOS) {
+                process.destroyForcibly();
+                result.error = "timed out";
+                return result;
+            }
+        }
+        result.nanos = System.nanoTime() - start;
+        if (process.exitValue() != 0) {
+            result.error = "exit status " + process.exitValue() + ": " + new String(Files.readAllBytes(errorFile), StandardCharsets.UTF_8).trim();
+        }
+        return result;
+    }
+
+    /**
+     * Returns the peak resident set size of the process whose pid is in the given file, or -1 if
+     * it isn't known (yet).
+     */
+    private static long peakResidentSize(Path pidFile) {
+        try {
+            String pid = new String(Files.readAllBytes(pidFile), StandardCharsets.UTF_8).trim();
+            if (pid.isEmpty()) return -1;
+            for (String line: Files.readAllLines(Paths.get("/proc", pid, "status"), StandardCharsets.UTF_8)) {
+                if (line.startsWith("VmHWM:")) {
+                    return Long.parseLong(line.substring("VmHWM:".length()).replace("kB", "").trim()) * 1024;
+                }
+            }
+            return -1;
+        } catch (IOException | NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static void printTable(List<Result> results, int[] sizes, List<List<String>> configurations) {
+        int width = 0;
+        for (List<String> flags: configurations) {
+            width = Math.max(width, String.join(" ", flags).length());
+        }
+        String format = "%-10s %-" + width + "s %12s %10s %12s %12s %12s %10s%n";
+        System.out.println();
+        System.out.printf(format, "statements", "backend", "compile ms", "code KB", "compile MB", "toolchain ms", "run ms", "run MB");
+        for (int size: sizes) {
+            for (List<String> flags: configurations) {
+                List<Result> measured = new ArrayList<>();
+                for (Result result: results) {
+                    if (result.statements == size && result.flags == flags && result.error == null) measured.add(result);
+                }
+                if (measured.isEmpty()) continue;
+                System.out.printf(format, size, String.join(" ", flags),
+                    median(measured, r -> r.compileNanos, 1e6), median(measured, r -> r.codeBytes, 1024),
+                    median(measured, r -> r.compileMemoryBytes, 1 << 20), median(measured, r -> r.toolchainNanos, 1e6),
+                    median(measured, r -> r.runNanos, 1e6), median(measured, r -> r.runMemoryBytes, 1 << 20));
+            }
+        }
+        System.out.println();
+    }
+
+    private interface Metric {
+        long of(Result result);
+    }
+
+    /**
+     * Formats the median of the given metric in the given unit, or "-" if it wasn't measured.
+     */
+    private static String median(List<Result> results, Metric metric, double unit) {
+        List<Long> values = new ArrayList<>();
+        for (Result result: results) {
+            if (metric.of(result) >= 0) values.add(metric.of(result));
+        }
+        if (values.isEmpty()) return "-";
+        Collections.sort(values);
+        return String.format("%.1f", values.get(values.size() / 2) / unit);
+    }
+
+    private static Path findExecutable(String name) {
+        String path = System.getenv("PATH");
+        if (path == null) return null;
+        for (String directory: path.split(File.pathSeparator)) {
+            Path executable = Paths.get(directory, name);
+            if (Files.isExecutable(executable)) return executable;
+        }
+        return null;
+    }
+
+    private static String jsonString(String string) {
+        StringBuilder json = new StringBuilder("\"");
+        for (char c: string.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        return json.append('"').toString();
+    }
+
+    private static void deleteRecursively(Path directory) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file: files) {
+                if (Files.isDirectory(file)) {
+                    deleteRecursively(file);
+                } else {
+                    Files.delete(file);
+                }
+            }
+        }
+        Files.delete(directory);
+    }
+}
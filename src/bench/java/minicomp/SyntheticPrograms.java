@@ -0,0 +1,103 @@
+package minicomp;
+
+/**
+ * Deterministic MiniLang sources of a given shape and size for the compiler benchmarks. All
+ * programs are valid, so they compile with every backend; running them isn't the point, but they
+ * do terminate.
+ */
+final class SyntheticPrograms {
+    private SyntheticPrograms() {}
+
+    /**
+     * The number of statements for each benchmark size. Huge programs exceed the JVM's method
+     * size limit as long as the whole program is generated into a single method.
+     */
+    static int statementCount(String size) {
+        switch (size) {
+            case "small": return 100;
+            case "medium": return 5_000;
+            case "huge": return 100_000;
+            default: throw new IllegalArgumentException("Unknown size: " + size);
+        }
+    }
+
+    static String generate(String shape, String size) {
+        int statements = statementCount(size);
+        switch (shape) {
+            case "nested": return nested(statements);
+            case "straightLine": return straightLine(statements, 8);
+            case "manyVariables": return straightLine(statements, statements / 2);
+            case "random": return random(statements);
+            default: throw new IllegalArgumentException("Unknown shape: " + shape);
+        }
+    }
+
+    /**
+     * Assignments and prints of arithmetic expressions over the given number of variables,
+     * without any control flow.
+     */
+    static String straightLine(int statements, int variables) {
+        StringBuilder source = new StringBuilder();
+        int defined = Math.min(variables, statements);
+        for (int i = 0; i < defined; i++) {
+            source.append("v").append(i).append(" = ").append(i % 100).append(";\n");
+        }
+        for (int i = defined; i < statements; i++) {
+            int target = i % variables;
+            int a = (i * 7) % variables;
+            int b = (i * 13 + 5) % variables;
+            if (i % 10 == 0) {
+                source.append("print (v").append(a).append(" + v").append(b).append(") % 1000;\n");
+            } else {
+                source.append("v").append(target).append(" = (v").append(a).append(" * 3 + v").append(b)
+                      .append(" - ").append(i % 17).append(") % 10007;\n");
+            }
+        }
+        return source.toString();
+    }
+
+    /**
+     * A {@link RandomProgram} of the default shape, which mixes all kinds of statements and reads
+     * some of its input.
+     */
+    static String random(int statements) {
+        RandomProgram.Shape shape = new RandomProgram.Shape();
+        shape.statements = statements;
+        return RandomProgram.generate(shape, 1).source;
+    }
+
+    /**
+     * Blocks of if statements, while loops and for loops nested 20 levels deep, with
+     * short-circuit operators and deeply parenthesized expressions in their conditions.
+     */
+    static String nested(int statements) {
+        int depth = 20;
+        StringBuilder source = new StringBuilder();
+        source.append("x = 1;\ny = 2;\n");
+        int generated = 2;
+        while (generated < statements) {
+            for (int level = 0; level < depth; level++) {
+                switch (level % 3) {
+                    case 0:
+                        source.append("if x < ").append(level).append(" && (y > 0 || !(x == y)) then\n");
+                        break;
+                    case 1:
+                        source.append("while y > ").append(level + 1000).append(" do\n");
+                        break;
+                    default:
+                        source.append("for i").append(level).append(" = 1 to 2 do\n");
+                }
+            }
+            source.append("x = ((((x + 1) * 2) - (y % 3)) / 2);\n");
+            source.append("print x;\n");
+            for (int level = depth - 1; level >= 0; level--) {
+                if (level % 3 == 0) {
+                    source.append("else\ny = y - 1;\n");
+                }
+                source.append("end\n");
+            }
+            generated += depth + 3;
+        }
+        return source.toString();
+    }
+}
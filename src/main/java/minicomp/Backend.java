@@ -0,0 +1,54 @@
+package minicomp;
+
+/**
+ * The available code generators, identified by their command line flags. Backends are stateless
+ * and can be shared between threads; each compilation gets its own {@link Compiler} instance
+ * from {@link #newCompiler}.
+ */
+public enum Backend {
+    LLVM("--llvm") {
+        @Override
+        public Compiler newCompiler(Options options) { return new LlvmCompiler(options); }
+    },
+    JVM("--jvm") {
+        @Override
+        public Compiler newCompiler(Options options) { return new JavaBytecodeCompiler(options); }
+    },
+    INTERP("--interp") {
+        @Override
+        public Compiler newCompiler(Options options) { return new Interpreter(options); }
+
+        @Override
+        public boolean runsProgram() { return true; }
+    };
+
+    private final String flag;
+
+    Backend(String flag) {
+        this.flag = flag;
+    }
+
+    public String getFlag() { return flag; }
+
+    public abstract Compiler newCompiler(Options options);
+
+    /**
+     * Whether the backend runs the program on stdin instead of generating code for it, so that
+     * its "generated code" is the program's output (see {@link Interpreter}).
+     */
+    public boolean runsProgram() { return false; }
+
+    public Compiler newCompiler() {
+        return newCompiler(new Options());
+    }
+
+    /**
+     * Returns the backend selected by the given command line flag or null if there is none.
+     */
+    public static Backend fromFlag(String flag) {
+        for (Backend backend: values()) {
+            if (backend.flag.equals(flag)) return backend;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,104 @@
+package minicomp;
+
+import java.io.*;
+import java.util.*;
+import java.util.function.*;
+
+/**
+ * Buffered int input and output on top of byte streams, for running programs inside the
+ * compiler's JVM. Input and output behave like the runtime that {@link JvmRuntimeGenerator}
+ * generates into stand-alone classes: numbers are separated by whitespace, reading past the end of
+ * the input throws NoSuchElementException and input that isn't a number throws
+ * InputMismatchException. Each printed value is followed by a line break. Output is only written
+ * when the buffer is full or on {@link #flush}.
+ *
+ * <p>I/O errors are thrown as UncheckedIOExceptions.
+ */
+class BufferedIntIo implements IntSupplier, IntConsumer {
+    private static final int BUFFER_SIZE = 1 << 16;
+    // Space needed for the longest formatted int: a minus sign, ten digits and a line break
+    private static final int MAX_LINE_LENGTH = 12;
+
+    private final InputStream in;
+    private final OutputStream out;
+    private final byte[] input = new byte[BUFFER_SIZE];
+    private int inputPosition = 0;
+    private int inputLimit = 0;
+    private final byte[] output = new byte[BUFFER_SIZE];
+    private int outputPosition = 0;
+
+    BufferedIntIo(InputStream in, OutputStream out) {
+        this.in = in;
+        this.out = out;
+    }
+
+    private int readByte() {
+        if (inputPosition == inputLimit) {
+            try {
+                inputLimit = Math.max(in.read(input, 0, input.length), 0);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            inputPosition = 0;
+            if (inputLimit == 0) return -1;
+        }
+        return input[inputPosition++] & 0xFF;
+    }
+
+    @Override
+    public int getAsInt() {
+        int c = readByte();
+        while (c <= ' ') {
+            if (c < 0) throw new NoSuchElementException();
+            c = readByte();
+        }
+        boolean negative = c == '-';
+        if (negative || c == '+') c = readByte();
+        if (c < '0' || c > '9') throw new InputMismatchException();
+        // The number is accumulated as a negative value, so that -2147483648 can be read, too.
+        // Like in Integer.parseInt, the range is checked before each step.
+        int limit = negative ? Integer.MIN_VALUE : -Integer.MAX_VALUE;
+        int result = 0;
+        do {
+            int digit = c - '0';
+            if (result < limit / 10 || result * 10 < limit + digit) throw new InputMismatchException();
+            result = result * 10 - digit;
+            c = readByte();
+        } while (c >= '0' && c <= '9');
+        // Like in Scanner.nextInt, the number has to be the whole token
+        if (c > ' ') throw new InputMismatchException();
+        return negative ? result : -result;
+    }
+
+    @Override
+    public void accept(int value) {
+        if (outputPosition > BUFFER_SIZE - MAX_LINE_LENGTH) flush();
+        // Digits are computed from the negated value, since not every negative int can be negated
+        if (value < 0) {
+            output[outputPosition++] = '-';
+        } else {
+            value = -value;
+        }
+        int length = 1;
+        for (int rest = value; rest <= -10; rest /= 10) {
+            length++;
+        }
+        int position = outputPosition + length;
+        output[position] = '\n';
+        outputPosition = position + 1;
+        do {
+            output[--position] = (byte) ('0' - value % 10);
+            value /= 10;
+        } while (value != 0);
+    }
+
+    void flush() {
+        try {
+            out.write(output, 0, outputPosition);
+            out.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        outputPosition = 0;
+    }
+}
@@ -0,0 +1,352 @@
+package minicomp;
+
+import java.io.*;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.security.*;
+import java.util.*;
+
+/**
+ * An on-disk cache of compilation results, shared by all compiler processes that use the same
+ * directory. Entries are addressed by a hash of the source code, the backend, the options that
+ * affect code generation and the version of the compiler, so they never have to be invalidated.
+ * Each entry is a file holding either the generated code or the diagnostics, which is memory
+ * mapped when it's read.
+ *
+ * <p>Entries are written to a temporary file and atomically moved into place, so readers never
+ * see partial entries and need no locking. The time an entry was last used is kept as its
+ * modification time. Once the entries' total size exceeds the limit, the least recently used
+ * ones are evicted while holding an exclusive lock on the directory's lock file.
+ *
+ * <p>The cache is an optimization only: entries that can't be read are treated as misses, and
+ * entries that can't be written are skipped.
+ */
+public class CompileCache {
+    private static final int MAGIC = 0x4d434331; // "MCC1"
+    private static final byte CODE = 0;
+    private static final byte ERRORS = 1;
+    private static final int HEADER_SIZE = 5;
+    private static final String ENTRY_SUFFIX = ".entry";
+    private static final String TEMP_SUFFIX = ".tmp";
+    // Temporary files older than this were left behind by crashed processes
+    private static final long STALE_TEMP_MILLIS = 60 * 60 * 1000;
+
+    private final Path directory;
+    private final long maxSize;
+    private final String version;
+
+    /**
+     * A cached compilation result: either generated code or diagnostics.
+     */
+    public static class Entry {
+        private final ByteBuffer contents;
+        private final boolean hasErrors;
+
+        private Entry(ByteBuffer contents, boolean hasErrors) {
+            this.contents = contents;
+            this.hasErrors = hasErrors;
+        }
+
+        public boolean hasErrors() { return hasErrors; }
+
+        public List<String> getErrors() {
+            if (!hasErrors) return Collections.emptyList();
+            String errors = StandardCharsets.UTF_8.decode(contents.duplicate()).toString();
+            return Arrays.asList(errors.split("\n"));
+        }
+
+        public void writeGeneratedCode(OutputStream out) throws IOException {
+            if (hasErrors) throw new IllegalStateException("There is no generated code for a program with errors");
+            WritableByteChannel channel = Channels.newChannel(out);
+            ByteBuffer code = contents.duplicate();
+            while (code.hasRemaining()) {
+                channel.write(code);
+            }
+        }
+    }
+
+    public CompileCache(Path directory, long maxSize) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.maxSize = maxSize;
+        this.version = compilerVersion();
+    }
+
+    /**
+     * Identifies the build of the compiler by the size and modification time of the jar that it
+     * was loaded from, or returns null if it wasn't loaded from a jar.
+     */
+    private static String compilerVersion() {
+        try {
+            File location = new File(CompileCache.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+            if (!location.isFile()) return null;
+            return location.length() + "-" + location.lastModified();
+        } catch (SecurityException | URISyntaxException | IllegalArgumentException | NullPointerException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Whether the compiler's version could be determined. Without it, results of different builds
+     * of the compiler couldn't be told apart, so nothing is cached.
+     */
+    public boolean isUsable() {
+        return version != null;
+    }
+
+    /**
+     * Returns the key under which the result of compiling the given source is cached.
+     */
+    public String key(Backend backend, Options options, byte[] source) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+        String header = version + "\0" + backend.getFlag() + "\0" + options.fingerprint() + "\0";
+        digest.update(header.getBytes(StandardCharsets.UTF_8));
+        digest.update(source);
+        StringBuilder key = new StringBuilder();
+        for (byte b: digest.digest()) {
+            key.append(String.format("%02x", b));
+        }
+        return key.toString();
+    }
+
+    /**
+     * Returns the entry with the given key, or null if there is none, and marks it as recently
+     * used.
+     */
+    public Entry lookup(String key) {
+        Path path = directory.resolve(key + ENTRY_SUFFIX);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer contents = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (contents.remaining() < HEADER_SIZE || contents.getInt() != MAGIC) return null;
+            byte kind = contents.get();
+            if (kind != CODE && kind != ERRORS) return null;
+            Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+            return new Entry(contents.slice(), kind == ERRORS);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Writes the compiler's generated code to the given stream and stores it under the given key.
+     */
+    public void storeGeneratedCode(String key, Compiler compiler, OutputStream out) throws IOException {
+        Path temp = createTempFile();
+        OutputStream entry = temp == null ? null : openEntry(temp, CODE);
+        if (entry == null) {
+            compiler.writeGeneratedCode(out);
+            return;
+        }
+        TeeOutputStream tee = new TeeOutputStream(out, entry);
+        boolean complete = false;
+        try {
+            compiler.writeGeneratedCode(tee);
+            tee.flush();
+            complete = true;
+        } finally {
+            boolean copied = tee.closeCopy();
+            commit(temp, key, complete && copied);
+        }
+    }
+
+    public void storeErrors(String key, Iterable<String> errors) {
+        Path temp = createTempFile();
+        OutputStream entry = temp == null ? null : openEntry(temp, ERRORS);
+        if (entry == null) return;
+        boolean written = false;
+        try {
+            entry.write(String.join("\n", errors).getBytes(StandardCharsets.UTF_8));
+            written = true;
+        } catch (IOException e) {
+            // The entry is deleted below
+        }
+        try {
+            entry.close();
+        } catch (IOException e) {
+            written = false;
+        }
+        commit(temp, key, written);
+    }
+
+    private Path createTempFile() {
+        try {
+            return Files.createTempFile(directory, null, TEMP_SUFFIX);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private OutputStream openEntry(Path temp, byte kind) {
+        try {
+            DataOutputStream entry = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 1 << 16));
+            entry.writeInt(MAGIC);
+            entry.writeByte(kind);
+            return entry;
+        } catch (IOException e) {
+            deleteQuietly(temp);
+            return null;
+        }
+    }
+
+    /**
+     * Moves a completely written entry into place, or deletes it if writing it failed, and then
+     * evicts entries if the cache has grown too big.
+     */
+    private void commit(Path temp, String key, boolean written) {
+        if (!written) {
+            deleteQuietly(temp);
+            return;
+        }
+        try {
+            Files.move(temp, directory.resolve(key + ENTRY_SUFFIX), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            deleteQuietly(temp);
+            return;
+        }
+        evict();
+    }
+
+    private static class CachedFile {
+        final Path path;
+        final long size;
+        final long lastUsed;
+
+        CachedFile(Path path, long size, long lastUsed) {
+            this.path = path;
+            this.size = size;
+            this.lastUsed = lastUsed;
+        }
+    }
+
+    /**
+     * Deletes the least recently used entries until the cache fits into its size limit, as well
+     * as temporary files that were abandoned by crashed processes.
+     */
+    private void evict() {
+        try (FileChannel lockChannel = FileChannel.open(directory.resolve("lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            FileLock lock = lockChannel.lock();
+            try {
+                deleteOldFiles();
+            } finally {
+                lock.release();
+            }
+        } catch (IOException | OverlappingFileLockException e) {
+            // Another attempt is made after the next store
+        }
+    }
+
+    /**
+     * Does the work of {@link #evict} while the lock is held.
+     */
+    private void deleteOldFiles() throws IOException {
+        List<CachedFile> entries = new ArrayList<CachedFile>();
+        long totalSize = 0;
+        long now = System.currentTimeMillis();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path path: files) {
+                String name = path.getFileName().toString();
+                long lastUsed, size;
+                try {
+                    lastUsed = Files.getLastModifiedTime(path).toMillis();
+                    size = Files.size(path);
+                } catch (IOException e) {
+                    continue; // Deleted in the meantime
+                }
+                if (name.endsWith(ENTRY_SUFFIX)) {
+                    entries.add(new CachedFile(path, size, lastUsed));
+                    totalSize += size;
+                } else if (name.endsWith(TEMP_SUFFIX) && now - lastUsed > STALE_TEMP_MILLIS) {
+                    deleteQuietly(path);
+                }
+            }
+        }
+        if (totalSize <= maxSize) return;
+        entries.sort(Comparator.comparingLong(entry -> entry.lastUsed));
+        for (CachedFile entry: entries) {
+            if (totalSize <= maxSize) break;
+            if (deleteQuietly(entry.path)) totalSize -= entry.size;
+        }
+    }
+
+    private static boolean deleteQuietly(Path path) {
+        try {
+            return Files.deleteIfExists(path);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Writes everything to an output stream and a copy of it to a second one. Failures of the
+     * copy don't affect the main stream; the copy is abandoned instead.
+     */
+    private static class TeeOutputStream extends OutputStream {
+        private final OutputStream out;
+        private OutputStream copy;
+
+        TeeOutputStream(OutputStream out, OutputStream copy) {
+            this.out = out;
+            this.copy = copy;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            if (copy != null) {
+                try {
+                    copy.write(b);
+                } catch (IOException e) {
+                    abandonCopy();
+                }
+            }
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            out.write(bytes, offset, length);
+            if (copy != null) {
+                try {
+                    copy.write(bytes, offset, length);
+                } catch (IOException e) {
+                    abandonCopy();
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        private void abandonCopy() {
+            try {
+                copy.close();
+            } catch (IOException e) {
+                // The copy is discarded anyway
+            }
+            copy = null;
+        }
+
+        /**
+         * Closes the copy and returns whether it received everything written to this stream.
+         */
+        boolean closeCopy() {
+            if (copy == null) return false;
+            try {
+                copy.close();
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package minicomp;
+
+import java.util.*;
+
+/**
+ * Thrown by {@link MiniLang#compile} when the source contains errors. The messages have the same
+ * format as the ones printed by the command line compiler.
+ */
+public class CompileException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    private final List<String> errors = new ArrayList<String>();
+
+    public CompileException(Iterable<String> errors) {
+        super(String.join("\n", errors));
+        for (String error: errors) {
+            this.errors.add(error);
+        }
+    }
+
+    public List<String> getErrors() { return Collections.unmodifiableList(errors); }
+}
@@ -0,0 +1,154 @@
+package minicomp;
+
+import java.lang.management.ManagementFactory;
+import java.util.*;
+
+/**
+ * Wall time, allocated bytes and counts (tokens, parse tree nodes, variables, generated bytes
+ * and so on) for each phase of a compilation, recorded by {@link Compiler.Base}. Each phase is
+ * also emitted as a CompilePhaseEvent when Java Flight Recorder is recording. The event and the
+ * code that emits it are in src/main/jfr, which is only compiled on JDK 11 and later, so they're
+ * loaded by name and missing on older JDKs.
+ *
+ * <p>Allocations are measured per thread, which is exact as long as a compilation runs on a single
+ * thread (which they all do). Measuring them is only enabled on request or while the JFR event is
+ * enabled, since it's comparatively expensive to set up. Unmeasured allocations are reported as -1.
+ */
+public class CompileMetrics {
+    // Emits the phases as JFR events, or null if JFR or the classes for it aren't available
+    private static final PhaseEvents EVENTS = loadPhaseEvents();
+
+    /**
+     * Emits phases as JFR events, implemented by JfrPhaseEvents.
+     */
+    interface PhaseEvents {
+        /**
+         * Begins the event of a phase and returns it, or returns null if JFR isn't recording it.
+         */
+        Object begin();
+
+        void end(Object event, Phase phase);
+    }
+
+    public static final class Phase {
+        private final String name;
+        private long wallNanos;
+        private long allocatedBytes = -1;
+        private final Map<String, Long> counts = new LinkedHashMap<String, Long>();
+
+        Phase(String name) {
+            this.name = name;
+        }
+
+        public String getName() { return name; }
+
+        public long getWallNanos() { return wallNanos; }
+
+        public long getAllocatedBytes() { return allocatedBytes; }
+
+        public Map<String, Long> getCounts() { return Collections.unmodifiableMap(counts); }
+    }
+
+    private final boolean measureAllocations;
+    private final List<Phase> phases = new ArrayList<Phase>();
+    private Phase current;
+    private long startNanos;
+    private long startAllocatedBytes;
+    // The event of the current phase while JFR is recording it
+    private Object event;
+
+    CompileMetrics(boolean measureAllocations) {
+        this.measureAllocations = measureAllocations;
+    }
+
+    private static PhaseEvents loadPhaseEvents() {
+        try {
+            Class.forName("jdk.jfr.FlightRecorder", false, CompileMetrics.class.getClassLoader());
+            return (PhaseEvents) Class.forName("minicomp.JfrPhaseEvents").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+
+    /**
+     * Holds the bean that measures allocations, so that it's only looked up once it's needed.
+     */
+    private static final class Allocations {
+        static final com.sun.management.ThreadMXBean THREADS = threadBean();
+
+        private static com.sun.management.ThreadMXBean threadBean() {
+            try {
+                java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+                if (!(threads instanceof com.sun.management.ThreadMXBean)) return null;
+                com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) threads;
+                return bean.isThreadAllocatedMemorySupported() && bean.isThreadAllocatedMemoryEnabled() ? bean : null;
+            } catch (LinkageError | UnsupportedOperationException e) {
+                return null;
+            }
+        }
+
+        static long current() {
+            return THREADS == null ? -1 : THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+    }
+
+    void begin(String name) {
+        if (current != null) end();
+        current = new Phase(name);
+        event = EVENTS == null ? null : EVENTS.begin();
+        startAllocatedBytes = measureAllocations || event != null ? Allocations.current() : -1;
+        startNanos = System.nanoTime();
+    }
+
+    /**
+     * Adds the given value to the count with the given name in the current phase.
+     */
+    void count(String name, long value) {
+        if (current == null) return;
+        Long previous = current.counts.get(name);
+        current.counts.put(name, previous == null ? value : previous + value);
+    }
+
+    void end() {
+        if (current == null) return;
+        current.wallNanos = System.nanoTime() - startNanos;
+        if (startAllocatedBytes >= 0) {
+            long allocated = Allocations.current();
+            if (allocated >= 0) current.allocatedBytes = allocated - startAllocatedBytes;
+        }
+        if (event != null) {
+            EVENTS.end(event, current);
+            event = null;
+        }
+        phases.add(current);
+        current = null;
+    }
+
+    public List<Phase> getPhases() {
+        return Collections.unmodifiableList(phases);
+    }
+
+    /**
+     * Returns the phases as a JSON object of the form
+     * {"phases": [{"name": ..., "wallNanos": ..., "allocatedBytes": ..., "counts": {...}}, ...]}.
+     */
+    public String toJson() {
+        StringBuilder json = new StringBuilder("{\"phases\": [");
+        for (int i = 0; i < phases.size(); i++) {
+            Phase phase = phases.get(i);
+            if (i > 0) json.append(", ");
+            json.append("{\"name\": \"").append(phase.name)
+                .append("\", \"wallNanos\": ").append(phase.wallNanos)
+                .append(", \"allocatedBytes\": ").append(phase.allocatedBytes)
+                .append(", \"counts\": {");
+            boolean first = true;
+            for (Map.Entry<String, Long> count: phase.counts.entrySet()) {
+                if (!first) json.append(", ");
+                first = false;
+                json.append('"').append(count.getKey()).append("\": ").append(count.getValue());
+            }
+            json.append("}}");
+        }
+        return json.append("]}").toString();
+    }
+}
@@ -0,0 +1,224 @@
+package minicomp;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import org.antlr.v4.runtime.*;
+
+/**
+ * A long-running compiler process that compiles many programs without paying for JVM startup and
+ * a cold parser each time. Requests are compiled concurrently on a pool of worker threads.
+ *
+ * <p>Requests and responses are framed by a header line followed by a payload of the given number
+ * of bytes:
+ *
+ * <pre>
+ * request:  &lt;id&gt; &lt;backend flag&gt; &lt;length&gt;\n&lt;UTF-8 source code&gt;
+ * response: &lt;id&gt; ok &lt;length&gt;\n&lt;generated code&gt;
+ *           &lt;id&gt; error &lt;length&gt;\n&lt;diagnostics, one per line&gt;
+ * </pre>
+ *
+ * The id is chosen by the client and only serves to match responses to requests, since responses
+ * are sent as soon as their compilation finishes and thus not necessarily in order. Using
+ * --stats as the backend flag (with an empty payload) returns the current statistics.
+ */
+public class CompileServer {
+    private final ExecutorService workers;
+    private final LatencyStatistics statistics = new LatencyStatistics();
+
+    public CompileServer(int threads) {
+        workers = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "minicomp-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Serves requests from the given stream until it ends. Returns once all responses have been
+     * written.
+     */
+    public void serve(InputStream input, OutputStream output) throws IOException {
+        InputStream in = new BufferedInputStream(input);
+        OutputStream out = new BufferedOutputStream(output);
+        Phaser pending = new Phaser(1);
+        try {
+            String header;
+            while ((header = readLine(in)) != null) {
+                String[] fields = header.split(" ");
+                int length = fields.length == 3 ? parseLength(fields[2]) : -1;
+                if (length < 0) {
+                    respond(out, "-", "error", ("Malformed request header: " + header + "\n").getBytes(StandardCharsets.UTF_8));
+                    break;
+                }
+                byte[] source = new byte[length];
+                new DataInputStream(in).readFully(source);
+                String id = fields[0];
+                String flag = fields[1];
+                long startTime = System.nanoTime();
+                pending.register();
+                workers.execute(() -> {
+                    try {
+                        handle(out, id, flag, source, startTime);
+                    } catch (IOException e) {
+                        // The client went away; there's no one left to report this to
+                    } catch (Throwable e) {
+                        // Like a stack overflow on deeply nested expressions; the client is still
+                        // waiting for a response to this id
+                        try {
+                            respond(out, id, "error", ("Internal compiler error: " + e + "\n").getBytes(StandardCharsets.UTF_8));
+                        } catch (IOException ignored) {
+                            // The client went away as well
+                        }
+                    } finally {
+                        pending.arriveAndDeregister();
+                    }
+                });
+            }
+        } finally {
+            pending.arriveAndAwaitAdvance();
+        }
+    }
+
+    /**
+     * Accepts connections on the given port of the loopback interface and serves each of them
+     * on its own thread. Never returns unless the server socket fails.
+     */
+    public void listen(int port) throws IOException {
+        try (ServerSocket serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+            while (true) {
+                Socket socket = serverSocket.accept();
+                Thread connection = new Thread(() -> {
+                    try (Socket s = socket) {
+                        serve(s.getInputStream(), s.getOutputStream());
+                    } catch (IOException e) {
+                        // Connection reset by the client; nothing to clean up beyond closing it
+                    }
+                }, "minicomp-connection");
+                connection.setDaemon(true);
+                connection.start();
+            }
+        }
+    }
+
+    public String getStatistics() {
+        return statistics.toString();
+    }
+
+    private void handle(OutputStream out, String id, String flag, byte[] source, long startTime) throws IOException {
+        if (flag.equals("--stats")) {
+            respond(out, id, "ok", (getStatistics() + "\n").getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+        Backend backend = Backend.fromFlag(flag);
+        if (backend == null) {
+            respond(out, id, "error", ("Unknown backend: " + flag + "\n").getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+        if (backend.runsProgram()) {
+            // The program would read the server's own input
+            respond(out, id, "error", ("Backend can't be used by the server: " + flag + "\n").getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+        Compiler compiler = backend.newCompiler();
+        compiler.compile(CharStreams.fromString(new String(source, StandardCharsets.UTF_8)));
+        if (compiler.hasErrors()) {
+            StringBuilder diagnostics = new StringBuilder();
+            for (String error: compiler.getErrors()) {
+                diagnostics.append(error).append('\n');
+            }
+            respond(out, id, "error", diagnostics.toString().getBytes(StandardCharsets.UTF_8));
+        } else {
+            respond(out, id, "ok", compiler.getGeneratedCode());
+        }
+        statistics.record(startTime, System.nanoTime());
+    }
+
+    private static void respond(OutputStream out, String id, String status, byte[] payload) throws IOException {
+        byte[] header = (id + " " + status + " " + payload.length + "\n").getBytes(StandardCharsets.UTF_8);
+        synchronized (out) {
+            out.write(header);
+            out.write(payload);
+            out.flush();
+        }
+    }
+
+    private static int parseLength(String length) {
+        try {
+            return Integer.parseInt(length);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c == -1) {
+                if (line.size() == 0) return null;
+                break;
+            }
+            line.write(c);
+        }
+        return new String(line.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Counts latencies in logarithmic buckets, so that memory and the cost of the report stay the
+     * same however many requests there are. Latencies below 16 ns get a bucket each; above that,
+     * every power of two is split into 16 buckets, so percentiles are at most 1/16 too high.
+     */
+    private static class LatencyStatistics {
+        private static final int SUB_BUCKET_BITS = 4;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+        private final long[] buckets = new long[(64 - SUB_BUCKET_BITS) * SUB_BUCKETS];
+        private long count = 0;
+        private long max = 0;
+        private long firstStart = Long.MAX_VALUE;
+        private long lastEnd = Long.MIN_VALUE;
+
+        synchronized void record(long start, long end) {
+            long latency = Math.max(end - start, 0);
+            buckets[bucket(latency)]++;
+            count++;
+            max = Math.max(max, latency);
+            firstStart = Math.min(firstStart, start);
+            lastEnd = Math.max(lastEnd, end);
+        }
+
+        private static int bucket(long latency) {
+            if (latency < SUB_BUCKETS) return (int) latency;
+            int shift = 63 - Long.numberOfLeadingZeros(latency) - SUB_BUCKET_BITS;
+            return (shift + 1) * SUB_BUCKETS + (int) (latency >>> shift) - SUB_BUCKETS;
+        }
+
+        // The largest latency that falls into the bucket
+        private static long upperBound(int bucket) {
+            if (bucket < SUB_BUCKETS) return bucket;
+            int shift = bucket / SUB_BUCKETS - 1;
+            long lowerBound = (long) (bucket % SUB_BUCKETS + SUB_BUCKETS) << shift;
+            return lowerBound + (1L << shift) - 1;
+        }
+
+        @Override
+        public synchronized String toString() {
+            if (count == 0) return "requests: 0";
+            double seconds = (lastEnd - firstStart) / 1e9;
+            return String.format(Locale.ROOT,
+                    "requests: %d, throughput: %.1f/s, latency ms: p50 %.3f, p90 %.3f, p99 %.3f, max %.3f",
+                    count, count / seconds, percentile(50), percentile(90), percentile(99), max / 1e6);
+        }
+
+        private double percentile(int percent) {
+            long rank = Math.max((long) Math.ceil(percent / 100.0 * count), 1);
+            long seen = 0;
+            int bucket = 0;
+            while ((seen += buckets[bucket]) < rank) bucket++;
+            return Math.min(upperBound(bucket), max) / 1e6;
+        }
+    }
+}
@@ -1,8 +1,14 @@
 package minicomp;
 
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
 import java.util.*;
 import org.antlr.v4.runtime.*;
-import org.antlr.v4.runtime.tree.ParseTreeWalker;
+import org.antlr.v4.runtime.atn.*;
+import org.antlr.v4.runtime.misc.Pair;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
+import org.antlr.v4.runtime.tree.*;
 import minicomp.MiniLangParser.*;
 
 public interface Compiler {
@@ -10,10 +16,72 @@ public interface Compiler {
     public boolean hasErrors();
     public byte[] getGeneratedCode();
 
+    /**
+     * Writes the generated code to the given stream. Backends that can generate their code
+     * incrementally write it while generating it, so it never has to be held in memory as a
+     * whole. Code can only be generated once per compiled program, either by this method or by
+     * {@link #getGeneratedCode}.
+     */
+    public void writeGeneratedCode(OutputStream out) throws IOException;
+
     public void compile(CharStream input);
 
-    public static abstract class Base<T> extends MiniLangBaseVisitor<T> implements Compiler {
+    /**
+     * Whether the backend can generate code while the source is being parsed (see
+     * {@link #compileStreaming}).
+     */
+    public boolean supportsStreaming();
+
+    /**
+     * Compiles the given file and writes the generated code to the given stream as it goes,
+     * without ever holding the whole source, its tokens or its parse tree in memory. If there are
+     * errors, the output ends at the statement before the first one.
+     */
+    public void compileStreaming(Path file, OutputStream out) throws IOException;
+
+    /**
+     * Time, allocations and counts for the phases of the compilation so far.
+     */
+    public CompileMetrics getMetrics();
+
+    /**
+     * Base class for the backends. {@link #compile} checks the program, lowers it to an
+     * {@link Ir} and optimizes that, and the backend generates its code from the IR once the code
+     * is asked for. The parse tree and tokens aren't kept around after lowering. All state of a
+     * compilation (the diagnostics as well as the backend's generated code) lives in the
+     * instance, so each instance compiles exactly one program. The lexer and parser's ATN and
+     * DFA caches are static and shared between all instances, so creating a new compiler per
+     * program doesn't throw away warmed-up state.
+     */
+    public static abstract class Base extends Ir.Visitor implements Compiler {
         private List<String> errors = new ArrayList<String>();
+        private boolean used = false;
+        // The checked and optimized program, until its code has been generated
+        private Ir program;
+        private final boolean profileParser;
+        private final boolean profiled;
+        private final boolean countNodes;
+        private final CompileMetrics metrics;
+
+        protected Base() {
+            this(new Options());
+        }
+
+        protected Base(Options options) {
+            this.profileParser = options.profileParser;
+            this.profiled = options.profile;
+            this.countNodes = options.statsFile != null;
+            this.metrics = new CompileMetrics(options.statsFile != null);
+        }
+
+        public CompileMetrics getMetrics() { return metrics; }
+
+        /**
+         * Adds to a count of the current phase (see {@link CompileMetrics}).
+         */
+        protected void count(String name, long value) {
+            metrics.count(name, value);
+        }
 
         protected void error(int line, int column, String message) {
             errors.add("line " + line + ":" + column + " " + message);
@@ -23,33 +91,353 @@ public interface Compiler {
 
         public boolean hasErrors() { return !errors.isEmpty(); }
 
-        protected abstract void addVariable(String name);
+        protected abstract void generate(Ir program, OutputStream out) throws IOException;
 
-        public void compile(CharStream input) {
-            MiniLangLexer lexer = new MiniLangLexer(input);
-            TokenStream tokens = new CommonTokenStream(lexer);
-            MiniLangParser parser = new MiniLangParser(tokens);
+        public void writeGeneratedCode(OutputStream out) throws IOException {
+            if (program == null) throw new IllegalStateException("There is no compiled program to generate code for");
+            Ir optimized = program;
+            program = null;
+            metrics.begin("generate");
+            CountingOutputStream counted = new CountingOutputStream(out);
+            try {
+                generate(optimized, counted);
+            } finally {
+                metrics.count("bytes", counted.count);
+                metrics.end();
+            }
+        }
+
+        private static class CountingOutputStream extends FilterOutputStream {
+            long count = 0;
+
+            CountingOutputStream(OutputStream out) {
+                super(out);
+            }
+
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                count++;
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int length) throws IOException {
+                out.write(bytes, offset, length);
+                count += length;
+            }
+        }
+
+        /**
+         * Counts the nodes of the parse tree while it's being built.
+         */
+        private static class NodeCounter implements ParseTreeListener {
+            long nodes = 0;
+
+            @Override
+            public void visitTerminal(TerminalNode node) { nodes++; }
+
+            @Override
+            public void visitErrorNode(ErrorNode node) { nodes++; }
+
+            @Override
+            public void enterEveryRule(ParserRuleContext ctx) { nodes++; }
+
+            @Override
+            public void exitEveryRule(ParserRuleContext ctx) {}
+        }
+
+        public byte[] getGeneratedCode() {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try {
+                writeGeneratedCode(out);
+            } catch (IOException e) {
+                // ByteArrayOutputStreams don't throw IOExceptions
+                throw new UncheckedIOException(e);
+            }
+            return out.toByteArray();
+        }
+
+        /**
+         * Parses in two stages: first with SLL prediction, which is much faster but may fail on
+         * valid input, bailing out at the first syntax error. Only if that fails, the input is
+         * parsed again with full LL prediction and the default error recovery, which reports the
+         * same errors as a single LL parse would.
+         */
+        private ProgContext parse(MiniLangParser parser, CommonTokenStream tokens, NodeCounter nodeCounter) {
             parser.removeErrorListeners();
-            parser.addErrorListener(new BaseErrorListener() {
+            parser.setErrorHandler(new BailErrorStrategy());
+            parser.getInterpreter().setPredictionMode(PredictionMode.SLL);
+            try {
+                return parser.prog();
+            } catch (ParseCancellationException e) {
+                count("llFallbacks", 1);
+                if (nodeCounter != null) nodeCounter.nodes = 0;
+                tokens.seek(0);
+                parser.reset();
+                parser.addErrorListener(new BaseErrorListener() {
+                    @Override
+                    public void syntaxError(Recognizer<?, ?> recognizer, Object offendingSymbol, int line, int column, String msg, RecognitionException e) {
+                        error(line, column, msg);
+                    }
+                });
+                parser.setErrorHandler(new DefaultErrorStrategy());
+                parser.getInterpreter().setPredictionMode(PredictionMode.LL);
+                return parser.prog();
+            }
+        }
+
+        /**
+         * Prints the statistics collected by ANTLR's profiler for each decision in the grammar
+         * that was made while parsing, slowest first, to stderr.
+         */
+        private void reportParseProfile(MiniLangParser parser) {
+            DecisionInfo[] decisions = parser.getParseInfo().getDecisionInfo().clone();
+            Arrays.sort(decisions, (a, b) -> Long.compare(b.timeInPrediction, a.timeInPrediction));
+            System.err.printf("%-8s %-6s %11s %9s %13s %7s %12s %12s %11s%n", "decision", "rule", "invocations", "time(ms)",
+                              "SLL lookahead", "SLL max", "LL fallbacks", "LL lookahead", "ambiguities");
+            for (DecisionInfo decision: decisions) {
+                if (decision.invocations == 0) continue;
+                int rule = parser.getATN().getDecisionState(decision.decision).ruleIndex;
+                System.err.printf("%-8d %-6s %11d %9.3f %13d %7d %12d %12d %11d%n", decision.decision, parser.getRuleNames()[rule],
+                                  decision.invocations, decision.timeInPrediction / 1e6, decision.SLL_TotalLook, decision.SLL_MaxLook,
+                                  decision.LL_Fallback, decision.LL_TotalLook, decision.ambiguities.size());
+            }
+        }
+
+        public boolean supportsStreaming() { return false; }
+
+        /**
+         * Streaming: starts the generated code for a program with the given variables, which
+         * reads input and prints output if the corresponding flags are set. Then its top-level
+         * statements are passed to {@link #generateStatements} in order, and the code is
+         * completed by {@link #endStreaming}. Only called if {@link #supportsStreaming} is true.
+         */
+        protected void beginStreaming(Ir variables, boolean readsInput, boolean printsOutput, OutputStream out) throws IOException {
+            throw new UnsupportedOperationException("The backend doesn't support streaming");
+        }
+
+        protected void generateStatements(Ir statements) throws IOException {
+            throw new UnsupportedOperationException("The backend doesn't support streaming");
+        }
+
+        protected void endStreaming() throws IOException {
+            throw new UnsupportedOperationException("The backend doesn't support streaming");
+        }
+
+        private static final int STREAM_BUFFER_SIZE = 1 << 16;
+
+        private static MiniLangLexer streamingLexer(InputStream in) {
+            MiniLangLexer lexer = new MiniLangLexer(new UnbufferedCharStream(in, STREAM_BUFFER_SIZE, StandardCharsets.UTF_8));
+            // The characters of tokens are gone by the time their text is needed
+            lexer.setTokenFactory(new CommonTokenFactory(true) {
                 @Override
-                public void syntaxError(Recognizer<?, ?> recognizer, Object offendingSymbol, int line, int column, String msg, RecognitionException e) {
-                    error(line, column, msg);
+                public CommonToken create(Pair<TokenSource, CharStream> source, int type, String text, int channel, int start, int stop, int line, int charPositionInLine) {
+                    CommonToken token = super.create(source, type, text, channel, start, stop, line, charPositionInLine);
+                    // What a buffered stream would report, rather than the empty text copied for it
+                    if (type == Token.EOF) token.setText("<EOF>");
+                    return token;
                 }
             });
-            ProgContext prog = parser.prog();
-            if (hasErrors()) return; // Don't try to generate code when there were syntax errors
-            ParseTreeWalker.DEFAULT.walk(new MiniLangBaseListener() {
-                @Override
-                public void enterAssignment(AssignmentContext assignment) {
-                    addVariable(assignment.ID().getText());
+            return lexer;
+        }
+
+        private static int literalType(String literal) {
+            Vocabulary vocabulary = MiniLangLexer.VOCABULARY;
+            for (int type = 0; type <= vocabulary.getMaxTokenType(); type++) {
+                if (literal.equals(vocabulary.getLiteralName(type))) return type;
+            }
+            throw new IllegalStateException("No such token: " + literal);
+        }
+
+        private static final int ASSIGN_TOKEN = literalType("'='");
+        private static final int READ_TOKEN = literalType("'read'");
+        private static final int PRINT_TOKEN = literalType("'print'");
+
+        /**
+         * A parse listener that lowers, optimizes and generates each top-level statement once it's
+         * been parsed and then removes it from the parse tree, so that the tree never holds more
+         * than two statements. A statement counts as parsed when the next one starts (or at the
+         * end of the program), since the exit event is also triggered when the parser bails out.
+         * Statements are only generated as long as there are no errors, but they're lowered as
+         * long as there are no syntax errors, so that all undefined variables are reported.
+         */
+        private class StatementGenerator implements ParseTreeListener {
+            private final Ir variables;
+            // Any variable may be read by the statements after the one being optimized
+            private final BitSet allVariables;
+            // The number of statements that were generated by an earlier, failed parse
+            private final long skip;
+            private StatContext pending;
+            long statements = 0;
+            boolean syntaxErrors = false;
+
+            StatementGenerator(Ir variables, long skip) {
+                this.variables = variables;
+                this.allVariables = new BitSet();
+                allVariables.set(0, variables.getVariableCount());
+                this.skip = skip;
+            }
+
+            @Override
+            public void enterEveryRule(ParserRuleContext ctx) {
+                if (!(ctx.getParent() instanceof ProgContext)) return;
+                ProgContext prog = (ProgContext) ctx.getParent();
+                finish();
+                prog.children.clear();
+                prog.children.add(ctx);
+                prog.body.clear();
+            }
+
+            void finish() {
+                if (pending == null) return;
+                StatContext stat = pending;
+                pending = null;
+                if (statements++ < skip || syntaxErrors) return;
+                Ir lowered = Lowering.lowerStatement(stat, variables, Base.this);
+                if (hasErrors()) return;
+                try {
+                    generateStatements(Optimizer.optimize(lowered, allVariables));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
                 }
+            }
 
-                @Override
-                public void enterForLoop(ForLoopContext loop) {
-                    addVariable(loop.ID().getText());
+            @Override
+            public void exitEveryRule(ParserRuleContext ctx) {
+                if (ctx.getParent() instanceof ProgContext) pending = (StatContext) ctx;
+            }
+
+            @Override
+            public void visitTerminal(TerminalNode node) {}
+
+            @Override
+            public void visitErrorNode(ErrorNode node) {}
+        }
+
+        /**
+         * Parses the file like {@link #parse}, generating its statements along the way. Since
+         * the input can't be rewound, the LL stage reads the file again, and skips the statements
+         * that were already generated by the SLL stage.
+         */
+        private long streamStatements(Path file, Ir variables) throws IOException {
+            StatementGenerator generator = new StatementGenerator(variables, 0);
+            try (InputStream in = Files.newInputStream(file)) {
+                MiniLangParser parser = new MiniLangParser(new UnbufferedTokenStream<Token>(streamingLexer(in)));
+                parser.removeErrorListeners();
+                parser.setErrorHandler(new BailErrorStrategy());
+                parser.getInterpreter().setPredictionMode(PredictionMode.SLL);
+                parser.addParseListener(generator);
+                parser.prog();
+                generator.finish();
+                return generator.statements;
+            } catch (ParseCancellationException e) {
+                count("llFallbacks", 1);
+            }
+            // The statements before the one that failed were parsed correctly
+            StatementGenerator fallback = new StatementGenerator(variables, generator.statements);
+            try (InputStream in = Files.newInputStream(file)) {
+                MiniLangLexer lexer = streamingLexer(in);
+                // Lexer errors have already been reported by the first stage
+                lexer.removeErrorListeners();
+                MiniLangParser parser = new MiniLangParser(new UnbufferedTokenStream<Token>(lexer));
+                parser.removeErrorListeners();
+                parser.addErrorListener(new BaseErrorListener() {
+                    @Override
+                    public void syntaxError(Recognizer<?, ?> recognizer, Object offendingSymbol, int line, int column, String msg, RecognitionException e) {
+                        // Like with compile, only syntax errors are reported if there are any
+                        if (!fallback.syntaxErrors) errors.clear();
+                        fallback.syntaxErrors = true;
+                        error(line, column, msg);
+                    }
+                });
+                parser.getInterpreter().setPredictionMode(PredictionMode.LL);
+                parser.addParseListener(fallback);
+                parser.prog();
+                fallback.finish();
+            }
+            return fallback.statements;
+        }
+
+        /**
+         * Streams the file through the compiler one top-level statement at a time: a first pass
+         * over the tokens finds the assigned variables (which is all the lowering needs to know
+         * about the rest of the program), and the second pass parses, lowers, optimizes and
+         * generates each statement before moving on to the next one. The optimizer only sees one
+         * statement at a time, so the generated code may differ from that of {@link #compile},
+         * but the diagnostics are the same.
+         */
+        public void compileStreaming(Path file, OutputStream out) throws IOException {
+            if (used) throw new IllegalStateException("A compiler instance can only compile one program");
+            used = true;
+            metrics.begin("prepass");
+            Ir variables = new Ir();
+            boolean readsInput = false;
+            boolean printsOutput = false;
+            long tokenCount = 0;
+            try (InputStream in = Files.newInputStream(file)) {
+                MiniLangLexer scanner = streamingLexer(in);
+                // Lexer errors are reported by the second pass
+                scanner.removeErrorListeners();
+                Token previous = null;
+                for (Token token = scanner.nextToken(); token.getType() != Token.EOF; token = scanner.nextToken()) {
+                    if (token.getType() == ASSIGN_TOKEN && previous != null && previous.getType() == MiniLangLexer.ID) {
+                        variables.addVariable(previous.getText());
+                    }
+                    readsInput |= token.getType() == READ_TOKEN;
+                    printsOutput |= token.getType() == PRINT_TOKEN;
+                    previous = token;
+                    tokenCount++;
                 }
-            }, prog);
-            visit(prog);
+            }
+            count("tokens", tokenCount);
+            count("variables", variables.getVariableCount());
+            metrics.begin("stream");
+            CountingOutputStream counted = new CountingOutputStream(out);
+            try {
+                beginStreaming(variables, readsInput, printsOutput, counted);
+                count("statements", streamStatements(file, variables));
+                if (!hasErrors()) endStreaming();
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            } finally {
+                count("bytes", counted.count);
+                metrics.end();
+            }
+        }
+
+        public void compile(CharStream input) {
+            if (used) throw new IllegalStateException("A compiler instance can only compile one program");
+            used = true;
+            MiniLangLexer lexer = new MiniLangLexer(input);
+            CommonTokenStream tokens = new CommonTokenStream(lexer);
+            metrics.begin("lex");
+            tokens.fill();
+            count("tokens", tokens.size());
+            metrics.begin("parse");
+            MiniLangParser parser = new MiniLangParser(tokens);
+            parser.setProfile(profileParser);
+            NodeCounter nodeCounter = null;
+            if (countNodes) {
+                nodeCounter = new NodeCounter();
+                parser.addParseListener(nodeCounter);
+            }
+            ProgContext prog = parse(parser, tokens, nodeCounter);
+            if (nodeCounter != null) count("nodes", nodeCounter.nodes);
+            metrics.end();
+            if (profileParser) reportParseProfile(parser);
+            if (hasErrors()) return; // Don't try to generate code when there were syntax errors
+            // Undefined variables are reported while lowering, before the optimizer may remove
+            // some of their uses
+            metrics.begin("lower");
+            Ir lowered = Lowering.lower(prog, this);
+            count("variables", lowered.getVariableCount());
+            count("irSize", lowered.getSize());
+            metrics.end();
+            if (hasErrors()) return;
+            metrics.begin("optimize");
+            program = Optimizer.optimize(lowered, profiled);
+            count("irSize", program.getSize());
+            metrics.end();
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,344 @@
+package minicomp;
+
+import java.util.*;
+import static minicomp.Ir.*;
+
+/**
+ * The control-flow graph of a program's statements, along with the reachability and liveness
+ * analyses over it that {@link DeadCodeEliminator} is based on.
+ *
+ * <p>Each basic block holds a run of PRINT and ASSIGN statements, which may be followed by a part
+ * of a compound statement that ends the block (see {@link Block#end}). Branches whose condition is
+ * a constant only get an edge to the side that is taken, so that the other side is unreachable.
+ * The same goes for for loops whose start and end are constants that skip the body.
+ *
+ * <p>Liveness is computed as strong liveness: an assignment to a variable that isn't live only
+ * makes the variables in its expression live if the expression has side effects (see
+ * {@link Ir#hasSideEffects}). This way a whole chain of dead stores is found in a single analysis.
+ */
+final class ControlFlowGraph {
+    /** The block continues with its only successor, or ends the program if it has none. */
+    static final int FALL_THROUGH = 0;
+    /** The block tests the condition of its IF or WHILE node. */
+    static final int CONDITION = 1;
+    /** The block evaluates the start, end and step of its FOR node and assigns the loop variable. */
+    static final int FOR_ENTRY = 2;
+    /** The block compares the loop variable of its FOR node against the end. */
+    static final int FOR_TEST = 3;
+    /** The block adds the step to the loop variable of its FOR node. */
+    static final int FOR_NEXT = 4;
+
+    static final class Block {
+        final int id;
+        private int[] statements = new int[4];
+        private int length = 0;
+        int end = FALL_THROUGH;
+        // The compound statement the end belongs to, or -1 for FALL_THROUGH
+        int node = -1;
+        final List<Block> successors = new ArrayList<>(2);
+        final List<Block> predecessors = new ArrayList<>(2);
+        boolean reachable = false;
+        BitSet liveIn = new BitSet();
+        BitSet liveOut = new BitSet();
+        // For the liveness analysis: the variables read by each statement and by the end, and
+        // the assignments (by index) whose expressions have side effects
+        private BitSet[] uses;
+        private BitSet endUses;
+        private BitSet sideEffects;
+
+        Block(int id) {
+            this.id = id;
+        }
+
+        private void add(int statement) {
+            if (length == statements.length) statements = Arrays.copyOf(statements, 2 * length);
+            statements[length++] = statement;
+        }
+    }
+
+    private final Ir ir;
+    private final List<Block> blocks = new ArrayList<>();
+    private final Block entry;
+    // The block containing each statement, indexed by node: the block of a PRINT or ASSIGN, the
+    // block ending with the condition of an IF or WHILE, and the FOR_ENTRY block of a FOR
+    private final Block[] blockOf;
+    // Assignments whose variable isn't live afterwards, indexed by node
+    private final BitSet deadStores = new BitSet();
+    private Block current;
+
+    private ControlFlowGraph(Ir ir) {
+        this.ir = ir;
+        this.blockOf = new Block[ir.getSize()];
+        entry = newBlock();
+        current = entry;
+        addList(ir.getBody());
+        markReachable();
+    }
+
+    static ControlFlowGraph build(Ir ir) {
+        return new ControlFlowGraph(ir);
+    }
+
+    List<Block> getBlocks() { return Collections.unmodifiableList(blocks); }
+
+    Block getEntry() { return entry; }
+
+    private Block newBlock() {
+        Block block = new Block(blocks.size());
+        blocks.add(block);
+        return block;
+    }
+
+    private void end(int kind, int node) {
+        current.end = kind;
+        current.node = node;
+    }
+
+    private static void edge(Block from, Block to) {
+        from.successors.add(to);
+        to.predecessors.add(from);
+    }
+
+    private void addList(int list) {
+        for (int i = 0; i < ir.listLength(list); i++) {
+            addStatement(ir.listElement(list, i));
+        }
+    }
+
+    private void addStatement(int stat) {
+        switch (ir.kind(stat)) {
+            case PRINT: case ASSIGN:
+                current.add(stat);
+                blockOf[stat] = current;
+                break;
+            case IF: {
+                Block condition = current;
+                end(CONDITION, stat);
+                blockOf[stat] = condition;
+                Block thenBlock = newBlock();
+                Block elseBlock = newBlock();
+                Block join = newBlock();
+                int cond = ir.exp(stat);
+                if (ir.kind(cond) != CONST || ir.constValue(cond) != 0) edge(condition, thenBlock);
+                if (ir.kind(cond) != CONST || ir.constValue(cond) == 0) edge(condition, elseBlock);
+                current = thenBlock;
+                addList(ir.thenList(stat));
+                edge(current, join);
+                current = elseBlock;
+                addList(ir.elseList(stat));
+                edge(current, join);
+                current = join;
+                break;
+            }
+            case WHILE: {
+                Block condition = newBlock();
+                edge(current, condition);
+                current = condition;
+                end(CONDITION, stat);
+                blockOf[stat] = condition;
+                Block body = newBlock();
+                Block exit = newBlock();
+                int cond = ir.exp(stat);
+                if (ir.kind(cond) != CONST || ir.constValue(cond) != 0) edge(condition, body);
+                if (ir.kind(cond) != CONST || ir.constValue(cond) == 0) edge(condition, exit);
+                current = body;
+                addList(ir.loopBody(stat));
+                edge(current, condition);
+                current = exit;
+                break;
+            }
+            case FOR: {
+                end(FOR_ENTRY, stat);
+                blockOf[stat] = current;
+                Block test = newBlock();
+                edge(current, test);
+                current = test;
+                end(FOR_TEST, stat);
+                Block body = newBlock();
+                Block exit = newBlock();
+                if (!skipsBody(stat)) edge(test, body);
+                edge(test, exit);
+                current = body;
+                addList(ir.loopBody(stat));
+                end(FOR_NEXT, stat);
+                edge(current, test);
+                current = exit;
+                break;
+            }
+            default:
+                throw new IllegalStateException("Unknown statement kind: " + ir.kind(stat));
+        }
+    }
+
+    /**
+     * Whether the given for loop is known never to execute its body.
+     */
+    boolean skipsBody(int loop) {
+        int start = ir.forStart(loop);
+        int end = ir.forEnd(loop);
+        return ir.kind(start) == CONST && ir.kind(end) == CONST && ir.constValue(start) > ir.constValue(end);
+    }
+
+    /**
+     * Whether any statement can be removed or replaced: some block is unreachable or some branch
+     * or for loop is decided by constants. Doesn't cover dead stores.
+     */
+    boolean hasConstantControlFlow() {
+        for (Block block: blocks) {
+            if (!block.reachable) return true;
+            if (block.end == CONDITION && ir.kind(ir.exp(block.node)) == CONST) return true;
+        }
+        return false;
+    }
+
+    boolean hasDeadStores() {
+        return !deadStores.isEmpty();
+    }
+
+    private void markReachable() {
+        Deque<Block> worklist = new ArrayDeque<>();
+        entry.reachable = true;
+        worklist.push(entry);
+        while (!worklist.isEmpty()) {
+            for (Block successor: worklist.pop().successors) {
+                if (!successor.reachable) {
+                    successor.reachable = true;
+                    worklist.push(successor);
+                }
+            }
+        }
+    }
+
+    /**
+     * Whether the given statement can be executed. For an IF or WHILE that means that its
+     * condition can be evaluated, and for a FOR that its start can.
+     */
+    boolean isReachable(int stat) {
+        Block block = blockOf[stat];
+        return block != null && block.reachable;
+    }
+
+    /**
+     * Computes which variables are live at the start and end of each reachable block and which
+     * assignments are dead stores, given the variables that are live after the program (which
+     * are none for a complete program). Starts with all blocks on the worklist in reverse order,
+     * which is close to the order in which liveness propagates, and then revisits the
+     * predecessors of the blocks whose live-in set grew.
+     */
+    void computeLiveness(BitSet liveAtExit) {
+        Deque<Block> worklist = new ArrayDeque<>();
+        boolean[] queued = new boolean[blocks.size()];
+        for (int i = blocks.size() - 1; i >= 0; i--) {
+            Block block = blocks.get(i);
+            if (!block.reachable) continue;
+            collectUses(block);
+            worklist.add(block);
+            queued[i] = true;
+        }
+        while (!worklist.isEmpty()) {
+            Block block = worklist.poll();
+            queued[block.id] = false;
+            BitSet liveOut = new BitSet();
+            if (block.successors.isEmpty()) liveOut.or(liveAtExit);
+            for (Block successor: block.successors) {
+                liveOut.or(successor.liveIn);
+            }
+            block.liveOut = liveOut;
+            BitSet liveIn = transfer(block, (BitSet) liveOut.clone(), false);
+            if (liveIn.equals(block.liveIn)) continue;
+            block.liveIn = liveIn;
+            for (Block predecessor: block.predecessors) {
+                if (predecessor.reachable && !queued[predecessor.id]) {
+                    worklist.add(predecessor);
+                    queued[predecessor.id] = true;
+                }
+            }
+        }
+        deadStores.clear();
+        for (Block block: blocks) {
+            if (block.reachable) transfer(block, (BitSet) block.liveOut.clone(), true);
+        }
+    }
+
+    private void collectUses(Block block) {
+        block.uses = new BitSet[block.length];
+        block.sideEffects = new BitSet();
+        for (int i = 0; i < block.length; i++) {
+            int stat = block.statements[i];
+            block.uses[i] = new BitSet();
+            if (collectUses(ir.exp(stat), block.uses[i]) && ir.kind(stat) == ASSIGN) block.sideEffects.set(i);
+        }
+        block.endUses = new BitSet();
+        int node = block.node;
+        switch (block.end) {
+            case CONDITION:
+                ir.collectVariables(ir.exp(node), block.endUses);
+                break;
+            case FOR_ENTRY:
+                ir.collectVariables(ir.forStart(node), block.endUses);
+                ir.collectVariables(ir.forEnd(node), block.endUses);
+                ir.collectVariables(ir.forStep(node), block.endUses);
+                break;
+            case FOR_TEST: case FOR_NEXT:
+                block.endUses.set(ir.slot(node));
+                break;
+        }
+    }
+
+    /**
+     * Adds the variables read by the expression to the given set like
+     * {@link Ir#collectVariables}, and returns whether it has side effects.
+     */
+    private boolean collectUses(int exp, BitSet uses) {
+        switch (ir.kind(exp)) {
+            case CONST:
+                return false;
+            case VAR:
+                uses.set(ir.varSlot(exp));
+                return false;
+            case READ:
+                return true;
+            case NEG: case NOT:
+                return collectUses(ir.lhs(exp), uses);
+            case DIV: case REM: {
+                boolean sideEffects = collectUses(ir.lhs(exp), uses);
+                int divisor = ir.rhs(exp);
+                return collectUses(divisor, uses) || sideEffects || ir.kind(divisor) != CONST || ir.constValue(divisor) == 0;
+            }
+            default: {
+                boolean sideEffects = collectUses(ir.lhs(exp), uses);
+                return collectUses(ir.rhs(exp), uses) || sideEffects;
+            }
+        }
+    }
+
+    /**
+     * Turns the variables live after the block into the ones live before it, recording the dead
+     * stores on the way if requested.
+     */
+    private BitSet transfer(Block block, BitSet live, boolean recordDeadStores) {
+        if (block.end == FOR_ENTRY) live.clear(ir.slot(block.node));
+        live.or(block.endUses);
+        for (int i = block.length - 1; i >= 0; i--) {
+            int stat = block.statements[i];
+            if (ir.kind(stat) == PRINT) {
+                live.or(block.uses[i]);
+            } else if (live.get(ir.slot(stat)) || block.sideEffects.get(i)) {
+                live.clear(ir.slot(stat));
+                live.or(block.uses[i]);
+            } else if (recordDeadStores) {
+                deadStores.set(stat);
+            }
+        }
+        return live;
+    }
+
+    /**
+     * Whether the given assignment's value is never read and its expression has no side effects,
+     * so that it can be removed. Only valid after
+     * {@link #computeLiveness}.
+     */
+    boolean isDeadStore(int assignment) {
+        return deadStores.get(assignment);
+    }
+}
@@ -0,0 +1,109 @@
+package minicomp;
+
+import java.util.*;
+import static minicomp.Ir.*;
+
+/**
+ * Removes the statements that the {@link ControlFlowGraph} shows to be unreachable and the
+ * assignments whose values are never read, run by the {@link Optimizer} after it simplified the
+ * expressions. Reads and prints are never removed unless they're unreachable: an unused read
+ * still consumes its input, and so does an assignment that may divide by zero still fail.
+ *
+ * <ul>
+ * <li>An if statement whose condition is a constant is replaced by the statements of the branch
+ *     that is taken, and one whose branches both end up empty by nothing, unless its condition
+ *     has side effects.</li>
+ * <li>A while loop whose condition is zero is removed, and the statements after a loop whose
+ *     condition is a non-zero constant are, since they're never executed.</li>
+ * <li>A for loop whose start and end are constants that skip the body is replaced by the
+ *     assignment of the start to the loop variable.</li>
+ * </ul>
+ */
+class DeadCodeEliminator {
+    private final Ir ir;
+    private final Ir out;
+    private final ControlFlowGraph graph;
+
+    private DeadCodeEliminator(Ir ir, BitSet liveAtExit) {
+        this.ir = ir;
+        this.out = new Ir(ir);
+        this.graph = ControlFlowGraph.build(ir);
+        graph.computeLiveness(liveAtExit);
+    }
+
+    /**
+     * Returns the program without its dead code, given the variables that may be read after it
+     * (which are none for a complete program).
+     */
+    static Ir eliminate(Ir ir, BitSet liveAtExit) {
+        DeadCodeEliminator eliminator = new DeadCodeEliminator(ir, liveAtExit);
+        if (!eliminator.graph.hasConstantControlFlow() && !eliminator.graph.hasDeadStores()) return ir;
+        eliminator.out.setBody(eliminator.statements(ir.getBody()));
+        return eliminator.out;
+    }
+
+    private int[] stats = new int[16];
+    private int length = 0;
+
+    /**
+     * Copies the live statements of the list into a new list. The statements are collected on a
+     * stack shared by all lists, on which nested lists are built above the ones containing them.
+     */
+    private int statements(int list) {
+        int start = length;
+        for (int i = 0; i < ir.listLength(list); i++) {
+            statement(ir.listElement(list, i));
+        }
+        int result = out.list(Arrays.copyOfRange(stats, start, length), length - start);
+        length = start;
+        return result;
+    }
+
+    private void add(int stat) {
+        if (length == stats.length) stats = Arrays.copyOf(stats, 2 * length);
+        stats[length++] = stat;
+    }
+
+    private void statement(int stat) {
+        if (!graph.isReachable(stat)) return;
+        int line = ir.line(stat);
+        int column = ir.column(stat);
+        switch (ir.kind(stat)) {
+            case PRINT:
+                add(out.copy(ir, stat));
+                break;
+            case ASSIGN:
+                if (!graph.isDeadStore(stat)) add(out.copy(ir, stat));
+                break;
+            case IF: {
+                int cond = ir.exp(stat);
+                if (ir.kind(cond) == CONST) {
+                    int taken = ir.constValue(cond) != 0 ? ir.thenList(stat) : ir.elseList(stat);
+                    for (int i = 0; i < ir.listLength(taken); i++) {
+                        statement(ir.listElement(taken, i));
+                    }
+                    break;
+                }
+                int thenList = statements(ir.thenList(stat));
+                int elseList = statements(ir.elseList(stat));
+                if (out.listLength(thenList) == 0 && out.listLength(elseList) == 0 && !ir.hasSideEffects(cond)) break;
+                add(out.ifStatement(line, column, out.copy(ir, cond), thenList, elseList));
+                break;
+            }
+            case WHILE:
+                if (ir.isConst(ir.exp(stat), 0)) break;
+                add(out.whileLoop(line, column, out.copy(ir, ir.exp(stat)), statements(ir.loopBody(stat))));
+                break;
+            case FOR:
+                if (graph.skipsBody(stat) && ir.kind(ir.forStep(stat)) == CONST) {
+                    add(out.assign(line, column, ir.slot(stat), out.copy(ir, ir.forStart(stat))));
+                    break;
+                }
+                add(out.forLoop(line, column, ir.slot(stat), out.copy(ir, ir.forStart(stat)), out.copy(ir, ir.forEnd(stat)),
+                                out.copy(ir, ir.forStep(stat)), statements(ir.loopBody(stat))));
+                break;
+            default:
+                throw new IllegalStateException("Unknown statement kind: " + ir.kind(stat));
+        }
+    }
+}
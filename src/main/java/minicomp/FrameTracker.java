@@ -0,0 +1,504 @@
+package minicomp;
+
+import java.util.*;
+import org.objectweb.asm.*;
+import static org.objectweb.asm.Opcodes.*;
+
+/**
+ * Passes a method's code on to the class's method visitor while keeping track of the types of its
+ * locals and of the values on the operand stack, so that it can write the method's stack map
+ * frames and its maximum stack size and number of locals itself. This saves the dataflow analysis
+ * that ASM runs over every method with {@link ClassWriter#COMPUTE_FRAMES}, which is the most
+ * expensive part of compiling large programs (see {@link Options#computeFrames}).
+ *
+ * <p>Unlike ASM, the tracker never iterates: it goes through the code once, in order, and relies
+ * on the code being generated the way the backends generate it:
+ *
+ * <ul>
+ * <li>Every label gets a frame. The state at a label is the state falling through to it merged
+ *     with the states of the forward jumps to it, where locals of different types become unusable
+ *     (TOP). Backward jumps must find the locals of the frame at their target unchanged, which
+ *     holds as long as a local keeps its type, as all MiniLang variables (ints) do.</li>
+ * <li>There is no code after an unconditional jump, return or throw that isn't at a label that
+ *     is jumped to.</li>
+ * <li>A try block's handler starts with the locals at the block's start, so visitTryCatchBlock
+ *     must be called before the start is visited, as ASM requires anyway.</li>
+ * <li>Only the instructions that the backends use are supported. Others throw
+ *     IllegalArgumentException, and so does code that breaks these rules with
+ *     IllegalStateException, rather than producing a class that doesn't verify.</li>
+ * </ul>
+ */
+final class FrameTracker extends MethodVisitor {
+    // The state of the locals and the stack at a label, kept in the label's info field. Types are
+    // represented as in visitFrame, except that long and double locals take two slots, the second
+    // of which is TOP
+    private static final class State {
+        final Object[] locals;
+        final Object[] stack;
+        // Whether the label has been visited, so that jumps to it are backward jumps that must
+        // agree with its frame instead of changing it
+        boolean visited = false;
+
+        State(Object[] locals, Object[] stack) {
+            this.locals = locals;
+            this.stack = stack;
+        }
+    }
+
+    private Object[] locals = new Object[16];
+    private int localsSize;
+    private Object[] stack = new Object[16];
+    private int stackSize;
+    // The size of the stack in slots, where longs and doubles take two
+    private int stackSlots = 0;
+    private int maxStack = 0;
+    private int maxLocals;
+    // Whether the current instruction can be reached, i.e. doesn't follow an unconditional jump
+    // without a label in between
+    private boolean reachable = true;
+    // The labels visited since the last instruction, which share the frame written before the
+    // next one
+    private final List<Label> pendingLabels = new ArrayList<>(2);
+    // The start and handler labels of the try blocks
+    private List<Label> tryStarts;
+    private List<Label> tryHandlers;
+    private List<String> tryTypes;
+
+    private FrameTracker(MethodVisitor methodWriter, String owner, int access, String descriptor) {
+        super(ASM7, methodWriter);
+        if ((access & ACC_STATIC) == 0) setLocal(localsSize, owner);
+        int position = 1;
+        while (descriptor.charAt(position) != ')') {
+            int end = typeEnd(descriptor, position);
+            setLocal(localsSize, type(descriptor, position, end));
+            position = end;
+        }
+        maxLocals = localsSize;
+    }
+
+    /**
+     * Starts the given method in the class and returns a visitor for its code that computes its
+     * frames and maximum values.
+     */
+    static MethodVisitor visitMethod(ClassWriter classWriter, String owner, int access, String name, String descriptor) {
+        return new FrameTracker(classWriter.visitMethod(access, name, descriptor, null, null), owner, access, descriptor);
+    }
+
+    // Returns the end of the type descriptor starting at the given position
+    private static int typeEnd(String descriptor, int position) {
+        while (descriptor.charAt(position) == '[') position++;
+        if (descriptor.charAt(position) == 'L') position = descriptor.indexOf(';', position);
+        return position + 1;
+    }
+
+    // Returns the frame type of the values of the type descriptor between start and end
+    private static Object type(String descriptor, int start, int end) {
+        switch (descriptor.charAt(start)) {
+            case 'Z': case 'B': case 'C': case 'S': case 'I': return INTEGER;
+            case 'J': return LONG;
+            case 'F': return FLOAT;
+            case 'D': return DOUBLE;
+            case 'L': return descriptor.substring(start + 1, end - 1);
+            case '[': return descriptor.substring(start, end);
+            default: throw new IllegalArgumentException("Invalid type descriptor: " + descriptor);
+        }
+    }
+
+    private static boolean isWide(Object type) {
+        return type == LONG || type == DOUBLE;
+    }
+
+    private void setLocal(int index, Object type) {
+        int size = isWide(type) ? 2 : 1;
+        if (index + size > locals.length) locals = Arrays.copyOf(locals, Math.max(2 * locals.length, index + size));
+        for (int i = localsSize; i < index; i++) locals[i] = TOP;
+        // Overwriting the second half of a long or double invalidates the first
+        if (index > 0 && index <= localsSize && isWide(locals[index - 1])) locals[index - 1] = TOP;
+        locals[index] = type;
+        if (size == 2) locals[index + 1] = TOP;
+        localsSize = Math.max(localsSize, index + size);
+        maxLocals = Math.max(maxLocals, localsSize);
+    }
+
+    private void push(Object type) {
+        if (stackSize == stack.length) stack = Arrays.copyOf(stack, 2 * stackSize);
+        stack[stackSize++] = type;
+        stackSlots += isWide(type) ? 2 : 1;
+        maxStack = Math.max(maxStack, stackSlots);
+    }
+
+    private Object pop() {
+        if (stackSize == 0) throw new IllegalStateException("Pop from an empty stack");
+        Object type = stack[--stackSize];
+        stackSlots -= isWide(type) ? 2 : 1;
+        return type;
+    }
+
+    private void pop(int count) {
+        for (int i = 0; i < count; i++) pop();
+    }
+
+    private State snapshot() {
+        int size = localsSize;
+        while (size > 0 && locals[size - 1] == TOP) size--;
+        return new State(Arrays.copyOf(locals, size), Arrays.copyOf(stack, stackSize));
+    }
+
+    // Records that the current state flows to the given label, with the given stack
+    private void flowTo(Label label, Object[] stackTypes) {
+        State target = (State) label.info;
+        if (target == null) {
+            State state = snapshot();
+            label.info = stackTypes == null ? state : new State(state.locals, stackTypes);
+            return;
+        }
+        Object[] incomingStack = stackTypes == null ? Arrays.copyOf(stack, stackSize) : stackTypes;
+        if (!Arrays.equals(target.stack, incomingStack)) {
+            throw new IllegalStateException("Jump with a different stack than at its target");
+        }
+        if (target.visited) {
+            for (int i = 0; i < target.locals.length; i++) {
+                if (target.locals[i] != TOP && (i >= localsSize || !target.locals[i].equals(locals[i]))) {
+                    throw new IllegalStateException("Backward jump with different locals than at its target");
+                }
+            }
+        } else {
+            mergeLocals(target.locals, locals, localsSize);
+        }
+    }
+
+    // Makes the locals in into that are different in from unusable
+    private static void mergeLocals(Object[] into, Object[] from, int fromSize) {
+        for (int i = 0; i < into.length; i++) {
+            if (i >= fromSize || !into[i].equals(from[i])) into[i] = TOP;
+        }
+    }
+
+    private void beforeInstruction() {
+        if (!pendingLabels.isEmpty()) {
+            State frame = snapshot();
+            frame.visited = true;
+            for (Label label: pendingLabels) label.info = frame;
+            pendingLabels.clear();
+            writeFrame(frame);
+        } else if (!reachable) {
+            throw new IllegalStateException("Unreachable code");
+        }
+    }
+
+    private void writeFrame(State frame) {
+        // Frames list longs and doubles as a single local
+        Object[] frameLocals = new Object[frame.locals.length];
+        int count = 0;
+        for (int i = 0; i < frame.locals.length; i++) {
+            frameLocals[count++] = frame.locals[i];
+            if (isWide(frame.locals[i])) i++;
+        }
+        super.visitFrame(F_NEW, count, frameLocals, frame.stack.length, frame.stack);
+    }
+
+    private void endBlock() {
+        reachable = false;
+        stackSize = 0;
+        stackSlots = 0;
+    }
+
+    @Override
+    public void visitLabel(Label label) {
+        super.visitLabel(label);
+        State state = (State) label.info;
+        if (state != null) {
+            if (state.visited) throw new IllegalStateException("Label visited twice");
+            if (reachable) {
+                if (!Arrays.equals(state.stack, Arrays.copyOf(stack, stackSize))) {
+                    throw new IllegalStateException("Jump with a different stack than at its target");
+                }
+                mergeLocals(state.locals, locals, localsSize);
+            }
+            localsSize = state.locals.length;
+            System.arraycopy(state.locals, 0, locals, 0, localsSize);
+            stackSize = 0;
+            stackSlots = 0;
+            for (Object type: state.stack) push(type);
+            reachable = true;
+        }
+        if (reachable) pendingLabels.add(label);
+        if (tryStarts != null) {
+            for (int i = 0; i < tryStarts.size(); i++) {
+                if (tryStarts.get(i) == label) flowTo(tryHandlers.get(i), new Object[] {tryTypes.get(i)});
+            }
+        }
+    }
+
+    @Override
+    public void visitTryCatchBlock(Label start, Label end, Label handler, String type) {
+        super.visitTryCatchBlock(start, end, handler, type);
+        if (tryStarts == null) {
+            tryStarts = new ArrayList<>();
+            tryHandlers = new ArrayList<>();
+            tryTypes = new ArrayList<>();
+        }
+        tryStarts.add(start);
+        tryHandlers.add(handler);
+        tryTypes.add(type == null ? "java/lang/Throwable" : type);
+    }
+
+    @Override
+    public void visitInsn(int opcode) {
+        beforeInstruction();
+        super.visitInsn(opcode);
+        switch (opcode) {
+            case ACONST_NULL:
+                push(NULL);
+                break;
+            case ICONST_M1: case ICONST_0: case ICONST_1: case ICONST_2: case ICONST_3: case ICONST_4: case ICONST_5:
+                push(INTEGER);
+                break;
+            case LCONST_0: case LCONST_1:
+                push(LONG);
+                break;
+            case IALOAD: case BALOAD: case CALOAD: case SALOAD:
+                pop(2);
+                push(INTEGER);
+                break;
+            case LALOAD:
+                pop(2);
+                push(LONG);
+                break;
+            case AALOAD: {
+                pop();
+                String array = (String) pop();
+                push(type(array, 1, array.length()));
+                break;
+            }
+            case IASTORE: case LASTORE: case AASTORE: case BASTORE: case CASTORE: case SASTORE:
+                pop(3);
+                break;
+            case POP:
+                pop();
+                break;
+            case POP2:
+                if (!isWide(pop())) pop();
+                break;
+            case DUP: {
+                Object top = pop();
+                push(top);
+                push(top);
+                break;
+            }
+            case DUP_X1: {
+                Object top = pop();
+                Object below = pop();
+                push(top);
+                push(below);
+                push(top);
+                break;
+            }
+            case SWAP: {
+                Object top = pop();
+                Object below = pop();
+                push(top);
+                push(below);
+                break;
+            }
+            case DUP2_X1: {
+                Object top = pop();
+                Object second = isWide(top) ? null : pop();
+                Object third = pop();
+                if (second != null) push(second);
+                push(top);
+                push(third);
+                if (second != null) push(second);
+                push(top);
+                break;
+            }
+            case DUP2: {
+                Object top = pop();
+                if (isWide(top)) {
+                    push(top);
+                    push(top);
+                } else {
+                    Object below = pop();
+                    push(below);
+                    push(top);
+                    push(below);
+                    push(top);
+                }
+                break;
+            }
+            case IADD: case ISUB: case IMUL: case IDIV: case IREM: case ISHL: case ISHR: case IUSHR: case IAND: case IOR: case IXOR:
+                pop(2);
+                push(INTEGER);
+                break;
+            case LADD: case LSUB: case LMUL:
+                pop(2);
+                push(LONG);
+                break;
+            case INEG: case I2B: case I2C: case I2S: case ARRAYLENGTH:
+                pop();
+                push(INTEGER);
+                break;
+            case IRETURN: case LRETURN: case ARETURN: case RETURN: case ATHROW:
+                endBlock();
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported instruction: " + opcode);
+        }
+    }
+
+    @Override
+    public void visitIntInsn(int opcode, int operand) {
+        beforeInstruction();
+        super.visitIntInsn(opcode, operand);
+        switch (opcode) {
+            case BIPUSH: case SIPUSH:
+                push(INTEGER);
+                break;
+            case NEWARRAY:
+                pop();
+                switch (operand) {
+                    case T_BOOLEAN: push("[Z"); break;
+                    case T_BYTE: push("[B"); break;
+                    case T_CHAR: push("[C"); break;
+                    case T_SHORT: push("[S"); break;
+                    case T_INT: push("[I"); break;
+                    case T_LONG: push("[J"); break;
+                    default: throw new IllegalArgumentException("Unsupported array type: " + operand);
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported instruction: " + opcode);
+        }
+    }
+
+    @Override
+    public void visitVarInsn(int opcode, int var) {
+        beforeInstruction();
+        super.visitVarInsn(opcode, var);
+        switch (opcode) {
+            case ILOAD: case LLOAD: case ALOAD:
+                if (var >= localsSize || locals[var] == TOP) throw new IllegalStateException("Load of an unassigned local: " + var);
+                push(locals[var]);
+                break;
+            case ISTORE: case LSTORE: case ASTORE:
+                setLocal(var, pop());
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported instruction: " + opcode);
+        }
+    }
+
+    @Override
+    public void visitIincInsn(int var, int increment) {
+        beforeInstruction();
+        super.visitIincInsn(var, increment);
+    }
+
+    @Override
+    public void visitTypeInsn(int opcode, String type) {
+        beforeInstruction();
+        super.visitTypeInsn(opcode, type);
+        switch (opcode) {
+            case NEW:
+                // The uninitialized object only exists until its constructor is called, which
+                // never happens across a label here
+                push(type);
+                break;
+            case CHECKCAST:
+                pop();
+                push(type);
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported instruction: " + opcode);
+        }
+    }
+
+    @Override
+    public void visitFieldInsn(int opcode, String owner, String name, String descriptor) {
+        beforeInstruction();
+        super.visitFieldInsn(opcode, owner, name, descriptor);
+        if (opcode == PUTSTATIC || opcode == PUTFIELD || opcode == GETFIELD) pop();
+        if (opcode == PUTFIELD) pop();
+        if (opcode == GETSTATIC || opcode == GETFIELD) push(type(descriptor, 0, descriptor.length()));
+    }
+
+    @Override
+    public void visitMethodInsn(int opcode, String owner, String name, String descriptor, boolean isInterface) {
+        beforeInstruction();
+        super.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
+        int position = 1;
+        while (descriptor.charAt(position) != ')') {
+            position = typeEnd(descriptor, position);
+            pop();
+        }
+        if (opcode != INVOKESTATIC) pop();
+        if (descriptor.charAt(position + 1) != 'V') push(type(descriptor, position + 1, descriptor.length()));
+    }
+
+    @Override
+    public void visitLdcInsn(Object value) {
+        beforeInstruction();
+        super.visitLdcInsn(value);
+        if (value instanceof Integer) {
+            push(INTEGER);
+        } else if (value instanceof Long) {
+            push(LONG);
+        } else if (value instanceof Float) {
+            push(FLOAT);
+        } else if (value instanceof Double) {
+            push(DOUBLE);
+        } else if (value instanceof String) {
+            push("java/lang/String");
+        } else if (value instanceof Type) {
+            push("java/lang/Class");
+        } else {
+            throw new IllegalArgumentException("Unsupported constant: " + value);
+        }
+    }
+
+    @Override
+    public void visitJumpInsn(int opcode, Label label) {
+        beforeInstruction();
+        super.visitJumpInsn(opcode, label);
+        switch (opcode) {
+            case IFEQ: case IFNE: case IFLT: case IFGE: case IFGT: case IFLE: case IFNULL: case IFNONNULL:
+                pop();
+                break;
+            case IF_ICMPEQ: case IF_ICMPNE: case IF_ICMPLT: case IF_ICMPGE: case IF_ICMPGT: case IF_ICMPLE: case IF_ACMPEQ: case IF_ACMPNE:
+                pop(2);
+                break;
+            case GOTO:
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported instruction: " + opcode);
+        }
+        flowTo(label, null);
+        if (opcode == GOTO) endBlock();
+    }
+
+    @Override
+    public void visitTableSwitchInsn(int min, int max, Label dflt, Label... labels) {
+        throw new IllegalArgumentException("Unsupported instruction: " + TABLESWITCH);
+    }
+
+    @Override
+    public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels) {
+        throw new IllegalArgumentException("Unsupported instruction: " + LOOKUPSWITCH);
+    }
+
+    @Override
+    public void visitInvokeDynamicInsn(String name, String descriptor, Handle bootstrapMethodHandle, Object... bootstrapMethodArguments) {
+        throw new IllegalArgumentException("Unsupported instruction: " + INVOKEDYNAMIC);
+    }
+
+    @Override
+    public void visitMultiANewArrayInsn(String descriptor, int numDimensions) {
+        throw new IllegalArgumentException("Unsupported instruction: " + MULTIANEWARRAY);
+    }
+
+    @Override
+    public void visitMaxs(int maxStack, int maxLocals) {
+        if (!pendingLabels.isEmpty()) throw new IllegalStateException("Label at the end of the method");
+        super.visitMaxs(this.maxStack, this.maxLocals);
+    }
+}
@@ -0,0 +1,430 @@
+package minicomp;
+
+import java.io.*;
+import java.lang.invoke.*;
+import java.util.function.*;
+import static minicomp.Ir.*;
+
+/**
+ * Runs programs right away instead of generating code for them, for scripts whose work is
+ * cheaper than generating and loading a class. The interpreter's "generated code" is the output
+ * of the program, which reads its input from the stream given to the constructor (stdin by
+ * default).
+ *
+ * <p>The program is first translated into a tree of closures, one per node, which are specialized
+ * on the kind of the node and on constant operands. Executing the tree doesn't involve any
+ * dispatching on node kinds, and conditions are evaluated as booleans without materializing 0 or
+ * 1. Variables live in an int array indexed by slot.
+ *
+ * <p>With {@link Options#tierUpThreshold}, a loop that has run that many iterations is compiled to
+ * bytecode (see {@link JavaBytecodeCompiler#compileFragment}), and the rest of it runs as
+ * compiled code on the same variable array. Later executions of the loop run the compiled code
+ * from the start.
+ */
+public class Interpreter extends Compiler.Base {
+    private final int tierUpThreshold;
+    private final InputStream input;
+
+    public Interpreter() {
+        this(new Options());
+    }
+
+    public Interpreter(Options options) {
+        this(options, System.in);
+    }
+
+    public Interpreter(Options options, InputStream input) {
+        super(options);
+        this.tierUpThreshold = options.tierUpThreshold;
+        this.input = input;
+    }
+
+    /**
+     * The state of a running program.
+     */
+    private static final class Frame {
+        final int[] vars;
+        final IntSupplier input;
+        final IntConsumer output;
+
+        Frame(int[] vars, IntSupplier input, IntConsumer output) {
+            this.vars = vars;
+            this.input = input;
+            this.output = output;
+        }
+    }
+
+    private interface Exp {
+        int eval(Frame frame);
+    }
+
+    private interface Cond {
+        boolean test(Frame frame);
+    }
+
+    private interface Stat {
+        void exec(Frame frame);
+    }
+
+    // The closures for the most recently visited expression or statement
+    private Exp exp;
+    private Stat stat;
+
+    // Hidden variables holding the bound and step of a for loop that continues as compiled code
+    private int endSlot;
+    private int stepSlot;
+
+    @Override
+    protected void generate(Ir program, OutputStream out) throws IOException {
+        if (tierUpThreshold > 0) {
+            endSlot = program.addVariable("$end");
+            stepSlot = program.addVariable("$step");
+        }
+        ir = program;
+        Stat main = block(program.getBody());
+        BufferedIntIo io = new BufferedIntIo(input, out);
+        try {
+            try {
+                main.exec(new Frame(new int[program.getVariableCount()], io, io));
+            } finally {
+                io.flush();
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private Exp expression(int node) {
+        visit(node);
+        return exp;
+    }
+
+    private Stat statement(int node) {
+        visit(node);
+        return stat;
+    }
+
+    private Stat block(int list) {
+        int length = ir.listLength(list);
+        if (length == 0) return frame -> {};
+        if (length == 1) return statement(ir.listElement(list, 0));
+        Stat[] stats = new Stat[length];
+        for (int i = 0; i < length; i++) {
+            stats[i] = statement(ir.listElement(list, i));
+        }
+        return frame -> {
+            for (Stat stat: stats) {
+                stat.exec(frame);
+            }
+        };
+    }
+
+    @Override
+    protected void visitConst(int node) {
+        int value = ir.constValue(node);
+        exp = frame -> value;
+    }
+
+    @Override
+    protected void visitVar(int node) {
+        int slot = ir.varSlot(node);
+        exp = frame -> frame.vars[slot];
+    }
+
+    @Override
+    protected void visitRead(int node) {
+        exp = frame -> frame.input.getAsInt();
+    }
+
+    @Override
+    protected void visitUnary(int node, int kind) {
+        Exp operand = expression(ir.lhs(node));
+        if (kind == NEG) {
+            exp = frame -> -operand.eval(frame);
+        } else {
+            exp = frame -> operand.eval(frame) == 0 ? 1 : 0;
+        }
+    }
+
+    @Override
+    protected void visitArithmetic(int node, int kind) {
+        Exp lhs = expression(ir.lhs(node));
+        if (ir.kind(ir.rhs(node)) == CONST) {
+            int rhs = ir.constValue(ir.rhs(node));
+            switch (kind) {
+                case ADD: exp = frame -> lhs.eval(frame) + rhs; return;
+                case SUB: exp = frame -> lhs.eval(frame) - rhs; return;
+                case MUL: exp = frame -> lhs.eval(frame) * rhs; return;
+                case DIV: exp = frame -> lhs.eval(frame) / rhs; return;
+                case REM: exp = frame -> lhs.eval(frame) % rhs; return;
+                case SHL: exp = frame -> lhs.eval(frame) << rhs; return;
+            }
+        }
+        Exp rhs = expression(ir.rhs(node));
+        switch (kind) {
+            case ADD: exp = frame -> lhs.eval(frame) + rhs.eval(frame); break;
+            case SUB: exp = frame -> lhs.eval(frame) - rhs.eval(frame); break;
+            case MUL: exp = frame -> lhs.eval(frame) * rhs.eval(frame); break;
+            case DIV: exp = frame -> lhs.eval(frame) / rhs.eval(frame); break;
+            case REM: exp = frame -> lhs.eval(frame) % rhs.eval(frame); break;
+            case SHL: exp = frame -> lhs.eval(frame) << rhs.eval(frame); break;
+            default: throw new IllegalStateException("Unknown arithmetic operator: " + kind);
+        }
+    }
+
+    @Override
+    protected void visitComparison(int node, int kind) {
+        Cond cond = condition(node);
+        exp = frame -> cond.test(frame) ? 1 : 0;
+    }
+
+    @Override
+    protected void visitLogical(int node, int kind) {
+        Exp lhs = expression(ir.lhs(node));
+        Exp rhs = expression(ir.rhs(node));
+        if (kind == AND) {
+            exp = frame -> {
+                int value = lhs.eval(frame);
+                return value == 0 ? value : rhs.eval(frame);
+            };
+        } else {
+            exp = frame -> {
+                int value = lhs.eval(frame);
+                return value != 0 ? value : rhs.eval(frame);
+            };
+        }
+    }
+
+    /**
+     * Translates an expression whose value is only compared against zero.
+     */
+    private Cond condition(int node) {
+        int kind = ir.kind(node);
+        if (kind == NOT) {
+            Cond operand = condition(ir.lhs(node));
+            return frame -> !operand.test(frame);
+        }
+        if (kind == AND || kind == OR) {
+            Cond lhs = condition(ir.lhs(node));
+            Cond rhs = condition(ir.rhs(node));
+            if (kind == AND) return frame -> lhs.test(frame) && rhs.test(frame);
+            return frame -> lhs.test(frame) || rhs.test(frame);
+        }
+        if (!isComparison(kind)) {
+            Exp value = expression(node);
+            return frame -> value.eval(frame) != 0;
+        }
+        Exp lhs = expression(ir.lhs(node));
+        if (ir.kind(ir.rhs(node)) == CONST) {
+            int rhs = ir.constValue(ir.rhs(node));
+            switch (kind) {
+                case EQ: return frame -> lhs.eval(frame) == rhs;
+                case NE: return frame -> lhs.eval(frame) != rhs;
+                case GT: return frame -> lhs.eval(frame) > rhs;
+                case GE: return frame -> lhs.eval(frame) >= rhs;
+                case LT: return frame -> lhs.eval(frame) < rhs;
+                default: return frame -> lhs.eval(frame) <= rhs;
+            }
+        }
+        Exp rhs = expression(ir.rhs(node));
+        switch (kind) {
+            case EQ: return frame -> lhs.eval(frame) == rhs.eval(frame);
+            case NE: return frame -> lhs.eval(frame) != rhs.eval(frame);
+            case GT: return frame -> lhs.eval(frame) > rhs.eval(frame);
+            case GE: return frame -> lhs.eval(frame) >= rhs.eval(frame);
+            case LT: return frame -> lhs.eval(frame) < rhs.eval(frame);
+            default: return frame -> lhs.eval(frame) <= rhs.eval(frame);
+        }
+    }
+
+    @Override
+    protected void visitPrint(int node) {
+        Exp value = expression(ir.exp(node));
+        stat = frame -> frame.output.accept(value.eval(frame));
+    }
+
+    @Override
+    protected void visitAssign(int node) {
+        int slot = ir.slot(node);
+        Exp value = expression(ir.exp(node));
+        stat = frame -> frame.vars[slot] = value.eval(frame);
+    }
+
+    @Override
+    protected void visitIf(int node) {
+        Cond cond = condition(ir.exp(node));
+        Stat thenCase = block(ir.thenList(node));
+        if (ir.listLength(ir.elseList(node)) == 0) {
+            stat = frame -> {
+                if (cond.test(frame)) thenCase.exec(frame);
+            };
+        } else {
+            Stat elseCase = block(ir.elseList(node));
+            stat = frame -> {
+                if (cond.test(frame)) {
+                    thenCase.exec(frame);
+                } else {
+                    elseCase.exec(frame);
+                }
+            };
+        }
+    }
+
+    @Override
+    protected void visitWhile(int node) {
+        Cond cond = condition(ir.exp(node));
+        Stat body = block(ir.loopBody(node));
+        if (tierUpThreshold > 0) {
+            stat = new TieredWhileLoop(node, cond, body);
+        } else {
+            stat = frame -> {
+                while (cond.test(frame)) {
+                    body.exec(frame);
+                }
+            };
+        }
+    }
+
+    @Override
+    protected void visitFor(int node) {
+        int slot = ir.slot(node);
+        Exp start = expression(ir.forStart(node));
+        Exp end = expression(ir.forEnd(node));
+        Exp step = expression(ir.forStep(node));
+        Stat body = block(ir.loopBody(node));
+        if (tierUpThreshold > 0) {
+            stat = new TieredForLoop(node, start, end, step, body);
+        } else {
+            stat = frame -> {
+                int[] vars = frame.vars;
+                vars[slot] = start.eval(frame);
+                int endValue = end.eval(frame);
+                int stepValue = step.eval(frame);
+                while (vars[slot] <= endValue) {
+                    body.exec(frame);
+                    vars[slot] += stepValue;
+                }
+            };
+        }
+    }
+
+    private static final MethodType FRAGMENT_TYPE = MethodType.methodType(void.class, IntSupplier.class, IntConsumer.class, int[].class);
+
+    /**
+     * Compiles a program consisting of the given loop (which must belong to the fragment) and
+     * loads it.
+     */
+    private static MethodHandle compileLoop(Ir fragment, int loop) {
+        fragment.setBody(fragment.list(new int[] {loop}, 1));
+        Class<?> fragmentClass = Program.defineClass(JavaBytecodeCompiler.compileFragment(fragment));
+        try {
+            return MethodHandles.publicLookup().findStatic(fragmentClass, "run", FRAGMENT_TYPE);
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void runCompiled(MethodHandle compiled, Frame frame) {
+        try {
+            compiled.invokeExact(frame.input, frame.output, frame.vars);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            // The generated code doesn't throw any checked exceptions
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private final class TieredWhileLoop implements Stat {
+        private final int node;
+        private final Cond cond;
+        private final Stat body;
+        private int iterations = 0;
+        private MethodHandle compiled;
+
+        TieredWhileLoop(int node, Cond cond, Stat body) {
+            this.node = node;
+            this.cond = cond;
+            this.body = body;
+        }
+
+        @Override
+        public void exec(Frame frame) {
+            if (compiled == null) {
+                while (cond.test(frame)) {
+                    body.exec(frame);
+                    if (++iterations < tierUpThreshold) continue;
+                    // Continue with the next check of the condition in compiled code
+                    Ir fragment = new Ir(ir);
+                    compiled = compileLoop(fragment, fragment.copy(ir, node));
+                    break;
+                }
+                if (compiled == null) return;
+            }
+            runCompiled(compiled, frame);
+        }
+    }
+
+    private final class TieredForLoop implements Stat {
+        private final int node;
+        private final Exp start;
+        private final Exp end;
+        private final Exp step;
+        private final Stat body;
+        private int iterations = 0;
+        private MethodHandle compiled;
+
+        TieredForLoop(int node, Exp start, Exp end, Exp step, Stat body) {
+            this.node = node;
+            this.start = start;
+            this.end = end;
+            this.step = step;
+            this.body = body;
+        }
+
+        @Override
+        public void exec(Frame frame) {
+            int slot = ir.slot(node);
+            int[] vars = frame.vars;
+            vars[slot] = start.eval(frame);
+            int endValue = end.eval(frame);
+            int stepValue = step.eval(frame);
+            if (compiled == null) {
+                while (vars[slot] <= endValue) {
+                    body.exec(frame);
+                    vars[slot] += stepValue;
+                    if (++iterations >= tierUpThreshold) {
+                        compiled = compileContinuation();
+                        break;
+                    }
+                }
+                if (compiled == null) return;
+            }
+            vars[endSlot] = endValue;
+            vars[stepSlot] = stepValue;
+            runCompiled(compiled, frame);
+        }
+
+        /**
+         * Compiles the rest of the loop, starting with the next check of the condition, with the
+         * bound and step that have already been evaluated in the hidden variables:
+         * while i &lt;= $end do body; i = i + $step; end
+         */
+        private MethodHandle compileContinuation() {
+            Ir fragment = new Ir(ir);
+            int line = ir.line(node);
+            int column = ir.column(node);
+            int slot = ir.slot(node);
+            int cond = fragment.binary(LE, fragment.variable(slot), fragment.variable(endSlot));
+            int originalBody = ir.loopBody(node);
+            int length = ir.listLength(originalBody);
+            int[] body = new int[length + 1];
+            for (int i = 0; i < length; i++) {
+                body[i] = fragment.copy(ir, ir.listElement(originalBody, i));
+            }
+            int increment = fragment.binary(ADD, fragment.variable(slot), fragment.variable(stepSlot));
+            body[length] = fragment.assign(line, column, slot, increment);
+            return compileLoop(fragment, fragment.whileLoop(line, column, cond, fragment.list(body, length + 1)));
+        }
+    }
+}
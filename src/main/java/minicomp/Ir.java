@@ -0,0 +1,601 @@
+package minicomp;
+
+import java.util.*;
+
+/**
+ * Compact representation of a checked program that the optimizer and the backends work on
+ * instead of the parse tree. The whole program is stored in a single int array as a sequence of
+ * records, and a node is identified by the offset of its record. Each record starts with the
+ * node's kind, followed by its operands:
+ *
+ * <pre>
+ * CONST value                 VAR slot                     READ
+ * NEG operand                 NOT operand
+ * ADD|SUB|MUL|DIV|REM|SHL|EQ|NE|GT|GE|LT|LE|AND|OR lhs rhs
+ * PRINT line column exp       ASSIGN line column slot exp
+ * IF line column cond thenList elseList
+ * WHILE line column cond bodyList
+ * FOR line column slot start end step bodyList
+ * LIST length statement...
+ * </pre>
+ *
+ * Variables are referred to by slot numbers; their names are only kept for code generation and
+ * debugging.
+ *
+ * <p>Nodes are appended bottom-up: operands and the statements of a list have to be added before
+ * the node or list containing them. Passes don't modify a program, but append their result to a
+ * new one (see {@link #Ir(Ir)}), so nodes of a program that turned out not to be needed stay in
+ * its array without being reachable from its body.
+ */
+public final class Ir {
+    public static final int CONST = 0;
+    public static final int VAR = 1;
+    public static final int READ = 2;
+    public static final int NEG = 3;
+    public static final int NOT = 4;
+    public static final int ADD = 5;
+    public static final int SUB = 6;
+    public static final int MUL = 7;
+    public static final int DIV = 8;
+    public static final int REM = 9;
+    public static final int SHL = 10;
+    public static final int EQ = 11;
+    public static final int NE = 12;
+    public static final int GT = 13;
+    public static final int GE = 14;
+    public static final int LT = 15;
+    public static final int LE = 16;
+    public static final int AND = 17;
+    public static final int OR = 18;
+    public static final int PRINT = 19;
+    public static final int ASSIGN = 20;
+    public static final int IF = 21;
+    public static final int WHILE = 22;
+    public static final int FOR = 23;
+    public static final int LIST = 24;
+
+    private static final String[] NAMES = {
+        "const", "var", "read", "-", "!", "+", "-", "*", "/", "%", "<<", "==", "!=", ">", ">=", "<", "<=",
+        "&&", "||", "print", "assign", "if", "while", "for", "list"
+    };
+
+    private int[] code = new int[256];
+    private int size = 0;
+    private final List<String> variables;
+    private final Map<String, Integer> slots;
+    private int body = -1;
+
+    public Ir() {
+        variables = new ArrayList<String>();
+        slots = new HashMap<String, Integer>();
+    }
+
+    /**
+     * Starts a program with the same variables as the given one, as the result of a pass over it.
+     * The two share their variables, so this doesn't depend on their number, and variables added
+     * to either of them later exist in both.
+     */
+    public Ir(Ir original) {
+        variables = original.variables;
+        slots = original.slots;
+    }
+
+    /**
+     * The list of top-level statements.
+     */
+    public int getBody() { return body; }
+
+    /**
+     * Sets the list of top-level statements once the program is complete.
+     */
+    public void setBody(int list) {
+        body = list;
+        code = Arrays.copyOf(code, size);
+    }
+
+    public int getVariableCount() { return variables.size(); }
+
+    public String getVariableName(int slot) { return variables.get(slot); }
+
+    /**
+     * Returns the slot for the variable with the given name, adding it if it doesn't exist yet.
+     * Variables introduced by the compiler should have a dollar sign in their name, so that they
+     * can't conflict with the program's variables.
+     */
+    public int addVariable(String name) {
+        Integer slot = slots.get(name);
+        if (slot == null) {
+            slot = variables.size();
+            variables.add(name);
+            slots.put(name, slot);
+        }
+        return slot;
+    }
+
+    /**
+     * Returns the slot of the variable with the given name, or -1 if there is no such variable.
+     */
+    public int getSlot(String name) {
+        Integer slot = slots.get(name);
+        return slot == null ? -1 : slot;
+    }
+
+    /**
+     * The size of the program's record array, which bounds the node ids, so it can be used to
+     * size arrays indexed by node.
+     */
+    public int getSize() { return size; }
+
+    public int kind(int node) { return code[node]; }
+
+    // Expressions
+
+    public int constValue(int node) { return code[node + 1]; }
+
+    public int varSlot(int node) { return code[node + 1]; }
+
+    /**
+     * The operand of a unary expression or the left operand of a binary one.
+     */
+    public int lhs(int node) { return code[node + 1]; }
+
+    public int rhs(int node) { return code[node + 2]; }
+
+    public static boolean isBinary(int kind) { return kind >= ADD && kind <= OR; }
+
+    public static boolean isComparison(int kind) { return kind >= EQ && kind <= LE; }
+
+    public static boolean isStatement(int kind) { return kind >= PRINT && kind <= FOR; }
+
+    public boolean isConst(int node, int value) { return kind(node) == CONST && constValue(node) == value; }
+
+    // Statements
+
+    public int line(int node) { return code[node + 1]; }
+
+    public int column(int node) { return code[node + 2]; }
+
+    /**
+     * The expression printed by a PRINT, assigned by an ASSIGN or tested by an IF or WHILE.
+     */
+    public int exp(int node) { return code[node + (kind(node) == ASSIGN ? 4 : 3)]; }
+
+    /**
+     * The variable assigned by an ASSIGN or FOR.
+     */
+    public int slot(int node) { return code[node + 3]; }
+
+    public int thenList(int node) { return code[node + 4]; }
+
+    public int elseList(int node) { return code[node + 5]; }
+
+    /**
+     * The body of a WHILE or FOR loop.
+     */
+    public int loopBody(int node) { return code[node + (kind(node) == WHILE ? 4 : 7)]; }
+
+    public int forStart(int node) { return code[node + 4]; }
+
+    public int forEnd(int node) { return code[node + 5]; }
+
+    public int forStep(int node) { return code[node + 6]; }
+
+    // Lists
+
+    public int listLength(int list) { return code[list + 1]; }
+
+    public int listElement(int list, int index) { return code[list + 2 + index]; }
+
+    /**
+     * Whether any statement reachable from the program's body contains a node of the given kind.
+     */
+    public boolean contains(int kind) {
+        return listContains(body, kind);
+    }
+
+    private boolean listContains(int list, int kind) {
+        for (int i = 0; i < listLength(list); i++) {
+            if (contains(listElement(list, i), kind)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Whether the given node or any node below it has the given kind.
+     */
+    public boolean contains(int node, int kind) {
+        int nodeKind = kind(node);
+        if (nodeKind == kind) return true;
+        switch (nodeKind) {
+            case CONST: case VAR: case READ:
+                return false;
+            case NEG: case NOT:
+                return contains(lhs(node), kind);
+            case LIST:
+                return listContains(node, kind);
+            case PRINT: case ASSIGN:
+                return contains(exp(node), kind);
+            case IF:
+                return contains(exp(node), kind) || listContains(thenList(node), kind) || listContains(elseList(node), kind);
+            case WHILE:
+                return contains(exp(node), kind) || listContains(loopBody(node), kind);
+            case FOR:
+                return contains(forStart(node), kind) || contains(forEnd(node), kind) || contains(forStep(node), kind)
+                    || listContains(loopBody(node), kind);
+            default:
+                return contains(lhs(node), kind) || contains(rhs(node), kind);
+        }
+    }
+
+    /**
+     * Whether evaluating the expression does more than computing its value: it reads input, or it
+     * divides by something that may be zero.
+     */
+    public boolean hasSideEffects(int exp) {
+        switch (kind(exp)) {
+            case CONST: case VAR:
+                return false;
+            case READ:
+                return true;
+            case NEG: case NOT:
+                return hasSideEffects(lhs(exp));
+            case DIV: case REM:
+                if (kind(rhs(exp)) != CONST || constValue(rhs(exp)) == 0) return true;
+                return hasSideEffects(lhs(exp));
+            default:
+                return hasSideEffects(lhs(exp)) || hasSideEffects(rhs(exp));
+        }
+    }
+
+    /**
+     * Adds the slots of all variables assigned by the given statement, or by the statements of
+     * the given list (including for loop variables), to the given set.
+     */
+    public void collectAssignedVariables(int node, BitSet assigned) {
+        switch (kind(node)) {
+            case LIST:
+                for (int i = 0; i < listLength(node); i++) {
+                    collectAssignedVariables(listElement(node, i), assigned);
+                }
+                break;
+            case ASSIGN:
+                assigned.set(slot(node));
+                break;
+            case IF:
+                collectAssignedVariables(thenList(node), assigned);
+                collectAssignedVariables(elseList(node), assigned);
+                break;
+            case WHILE:
+                collectAssignedVariables(loopBody(node), assigned);
+                break;
+            case FOR:
+                assigned.set(slot(node));
+                collectAssignedVariables(loopBody(node), assigned);
+                break;
+        }
+    }
+
+    /**
+     * Adds the slots of all variables that are read or assigned by the given node, or by the
+     * statements of the given list, to the given set.
+     */
+    public void collectVariables(int node, BitSet variables) {
+        switch (kind(node)) {
+            case CONST: case READ:
+                break;
+            case VAR:
+                variables.set(varSlot(node));
+                break;
+            case NEG: case NOT:
+                collectVariables(lhs(node), variables);
+                break;
+            case LIST:
+                for (int i = 0; i < listLength(node); i++) {
+                    collectVariables(listElement(node, i), variables);
+                }
+                break;
+            case PRINT:
+                collectVariables(exp(node), variables);
+                break;
+            case ASSIGN:
+                variables.set(slot(node));
+                collectVariables(exp(node), variables);
+                break;
+            case IF:
+                collectVariables(exp(node), variables);
+                collectVariables(thenList(node), variables);
+                collectVariables(elseList(node), variables);
+                break;
+            case WHILE:
+                collectVariables(exp(node), variables);
+                collectVariables(loopBody(node), variables);
+                break;
+            case FOR:
+                variables.set(slot(node));
+                collectVariables(forStart(node), variables);
+                collectVariables(forEnd(node), variables);
+                collectVariables(forStep(node), variables);
+                collectVariables(loopBody(node), variables);
+                break;
+            default:
+                collectVariables(lhs(node), variables);
+                collectVariables(rhs(node), variables);
+        }
+    }
+
+    /**
+     * Renders the program in MiniLang-like syntax with explicit parentheses, for debugging.
+     */
+    @Override
+    public String toString() {
+        StringBuilder out = new StringBuilder();
+        appendList(out, body, "");
+        return out.toString();
+    }
+
+    private void appendList(StringBuilder out, int list, String indent) {
+        for (int i = 0; i < listLength(list); i++) {
+            int stat = listElement(list, i);
+            out.append(indent);
+            switch (kind(stat)) {
+                case PRINT:
+                    out.append("print ");
+                    appendExp(out, exp(stat));
+                    out.append(";\n");
+                    break;
+                case ASSIGN:
+                    out.append(variables.get(slot(stat))).append(" = ");
+                    appendExp(out, exp(stat));
+                    out.append(";\n");
+                    break;
+                case IF:
+                    out.append("if ");
+                    appendExp(out, exp(stat));
+                    out.append(" then\n");
+                    appendList(out, thenList(stat), indent + "  ");
+                    out.append(indent).append("else\n");
+                    appendList(out, elseList(stat), indent + "  ");
+                    out.append(indent).append("end\n");
+                    break;
+                case WHILE:
+                    out.append("while ");
+                    appendExp(out, exp(stat));
+                    out.append(" do\n");
+                    appendList(out, loopBody(stat), indent + "  ");
+                    out.append(indent).append("end\n");
+                    break;
+                case FOR:
+                    out.append("for ").append(variables.get(slot(stat))).append(" = ");
+                    appendExp(out, forStart(stat));
+                    out.append(" to ");
+                    appendExp(out, forEnd(stat));
+                    out.append(" by ");
+                    appendExp(out, forStep(stat));
+                    out.append(" do\n");
+                    appendList(out, loopBody(stat), indent + "  ");
+                    out.append(indent).append("end\n");
+                    break;
+                default:
+                    throw new IllegalStateException("Not a statement: " + NAMES[kind(stat)]);
+            }
+        }
+    }
+
+    private void appendExp(StringBuilder out, int exp) {
+        int kind = kind(exp);
+        switch (kind) {
+            case CONST:
+                out.append(constValue(exp));
+                break;
+            case VAR:
+                out.append(variables.get(varSlot(exp)));
+                break;
+            case READ:
+                out.append("read");
+                break;
+            case NEG: case NOT:
+                out.append(NAMES[kind]).append('(');
+                appendExp(out, lhs(exp));
+                out.append(')');
+                break;
+            default:
+                out.append('(');
+                appendExp(out, lhs(exp));
+                out.append(' ').append(NAMES[kind]).append(' ');
+                appendExp(out, rhs(exp));
+                out.append(')');
+        }
+    }
+
+    /**
+     * Dispatches on the kind of a node. Statement lists are visited element by element.
+     */
+    public static abstract class Visitor {
+        // The program being visited
+        protected Ir ir;
+
+        /**
+         * Visits the body of the given program.
+         */
+        public void visitProgram(Ir program) {
+            ir = program;
+            visitList(program.getBody());
+        }
+
+        public void visitList(int list) {
+            for (int i = 0; i < ir.listLength(list); i++) {
+                visit(ir.listElement(list, i));
+            }
+        }
+
+        public void visit(int node) {
+            int kind = ir.kind(node);
+            switch (kind) {
+                case CONST: visitConst(node); break;
+                case VAR: visitVar(node); break;
+                case READ: visitRead(node); break;
+                case NEG: case NOT: visitUnary(node, kind); break;
+                case AND: case OR: visitLogical(node, kind); break;
+                case PRINT: visitPrint(node); break;
+                case ASSIGN: visitAssign(node); break;
+                case IF: visitIf(node); break;
+                case WHILE: visitWhile(node); break;
+                case FOR: visitFor(node); break;
+                case LIST: visitList(node); break;
+                default:
+                    if (isComparison(kind)) {
+                        visitComparison(node, kind);
+                    } else {
+                        visitArithmetic(node, kind);
+                    }
+            }
+        }
+
+        protected abstract void visitConst(int node);
+        protected abstract void visitVar(int node);
+        protected abstract void visitRead(int node);
+        protected abstract void visitUnary(int node, int kind);
+        protected abstract void visitArithmetic(int node, int kind);
+        protected abstract void visitComparison(int node, int kind);
+        protected abstract void visitLogical(int node, int kind);
+        protected abstract void visitPrint(int node);
+        protected abstract void visitAssign(int node);
+        protected abstract void visitIf(int node);
+        protected abstract void visitWhile(int node);
+        protected abstract void visitFor(int node);
+    }
+
+    // Adding nodes
+
+    private int record(int length) {
+        if (size + length > code.length) {
+            code = Arrays.copyOf(code, Math.max(code.length * 2, size + length));
+        }
+        int node = size;
+        size += length;
+        return node;
+    }
+
+    public int constant(int value) {
+        int node = record(2);
+        code[node] = CONST;
+        code[node + 1] = value;
+        return node;
+    }
+
+    public int variable(int slot) {
+        int node = record(2);
+        code[node] = VAR;
+        code[node + 1] = slot;
+        return node;
+    }
+
+    public int read() {
+        int node = record(1);
+        code[node] = READ;
+        return node;
+    }
+
+    public int unary(int kind, int operand) {
+        int node = record(2);
+        code[node] = kind;
+        code[node + 1] = operand;
+        return node;
+    }
+
+    public int binary(int kind, int lhs, int rhs) {
+        int node = record(3);
+        code[node] = kind;
+        code[node + 1] = lhs;
+        code[node + 2] = rhs;
+        return node;
+    }
+
+    private int statement(int kind, int line, int column, int operands) {
+        int node = record(3 + operands);
+        code[node] = kind;
+        code[node + 1] = line;
+        code[node + 2] = column;
+        return node;
+    }
+
+    public int print(int line, int column, int exp) {
+        int node = statement(PRINT, line, column, 1);
+        code[node + 3] = exp;
+        return node;
+    }
+
+    public int assign(int line, int column, int slot, int exp) {
+        int node = statement(ASSIGN, line, column, 2);
+        code[node + 3] = slot;
+        code[node + 4] = exp;
+        return node;
+    }
+
+    public int ifStatement(int line, int column, int cond, int thenList, int elseList) {
+        int node = statement(IF, line, column, 3);
+        code[node + 3] = cond;
+        code[node + 4] = thenList;
+        code[node + 5] = elseList;
+        return node;
+    }
+
+    public int whileLoop(int line, int column, int cond, int body) {
+        int node = statement(WHILE, line, column, 2);
+        code[node + 3] = cond;
+        code[node + 4] = body;
+        return node;
+    }
+
+    public int forLoop(int line, int column, int slot, int start, int end, int step, int body) {
+        int node = statement(FOR, line, column, 5);
+        code[node + 3] = slot;
+        code[node + 4] = start;
+        code[node + 5] = end;
+        code[node + 6] = step;
+        code[node + 7] = body;
+        return node;
+    }
+
+    public int list(int[] statements, int length) {
+        int node = record(2 + length);
+        code[node] = LIST;
+        code[node + 1] = length;
+        System.arraycopy(statements, 0, code, node + 2, length);
+        return node;
+    }
+
+    /**
+     * Copies a node of the given program, with positions, variables and everything below it
+     * unchanged, into this one, which must have been created from that program.
+     */
+    public int copy(Ir ir, int node) {
+        int kind = ir.kind(node);
+        switch (kind) {
+            case CONST: return constant(ir.constValue(node));
+            case VAR: return variable(ir.varSlot(node));
+            case READ: return read();
+            case NEG: case NOT: return unary(kind, copy(ir, ir.lhs(node)));
+            case PRINT: return print(ir.line(node), ir.column(node), copy(ir, ir.exp(node)));
+            case ASSIGN: return assign(ir.line(node), ir.column(node), ir.slot(node), copy(ir, ir.exp(node)));
+            case IF:
+                return ifStatement(ir.line(node), ir.column(node), copy(ir, ir.exp(node)),
+                        copy(ir, ir.thenList(node)), copy(ir, ir.elseList(node)));
+            case WHILE:
+                return whileLoop(ir.line(node), ir.column(node), copy(ir, ir.exp(node)), copy(ir, ir.loopBody(node)));
+            case FOR:
+                return forLoop(ir.line(node), ir.column(node), ir.slot(node), copy(ir, ir.forStart(node)),
+                        copy(ir, ir.forEnd(node)), copy(ir, ir.forStep(node)), copy(ir, ir.loopBody(node)));
+            case LIST: {
+                int length = ir.listLength(node);
+                int[] statements = new int[length];
+                for (int i = 0; i < length; i++) {
+                    statements[i] = copy(ir, ir.listElement(node, i));
+                }
+                return list(statements, length);
+            }
+            default:
+                return binary(kind, copy(ir, ir.lhs(node)), copy(ir, ir.rhs(node)));
+        }
+    }
+}
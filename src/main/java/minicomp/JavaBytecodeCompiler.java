@@ -1,265 +1,682 @@
 package minicomp;
 
+import java.io.*;
 import java.util.*;
-import org.antlr.v4.runtime.*;
 import org.objectweb.asm.*;
 import static org.objectweb.asm.Opcodes.*;
-import minicomp.MiniLangParser.*;
 
-public class JavaBytecodeCompiler extends Compiler.Base<Void> {
-    ClassWriter classWriter = new ClassWriter(ClassWriter.COMPUTE_MAXS | ClassWriter.COMPUTE_FRAMES);
+public class JavaBytecodeCompiler extends Compiler.Base {
+    // Frames and maximum values are computed by FrameTracker unless --compute-frames is given
+    final ClassWriter classWriter;
     MethodVisitor methodWriter;
 
-    @Override
-    public byte[] getGeneratedCode() {
-        return classWriter.toByteArray();
+    // Every generated method receives the input and output as its first two parameters. Unless
+    // the program is split across several methods, the variables' slots are mapped to the locals
+    // after them
+    private static int INPUT_INDEX = 0;
+    private static int OUTPUT_INDEX = 1;
+    // In split mode (see generateSplitMethod), the array holding the variables
+    private static int STATE_INDEX = 2;
+
+    static final String FRAGMENT_DESCRIPTOR = "(Ljava/util/function/IntSupplier;Ljava/util/function/IntConsumer;[I)V";
+    private static final String STATEMENTS_DESCRIPTOR = FRAGMENT_DESCRIPTOR;
+    private static final String EXPRESSION_DESCRIPTOR = "(Ljava/util/function/IntSupplier;Ljava/util/function/IntConsumer;[I)I";
+
+    private String className = "Main";
+    private MethodSplitter splitter;
+    private boolean split = false;
+    // The local holding each variable in the method being generated, or -1 for the variables that
+    // a split method doesn't access itself
+    private int[] localIndex;
+    // The first local after the variables, from where visitFor allocates the locals it needs
+    private int nextHiddenLocal;
+    // The variables that the split method being generated assigns itself
+    private BitSet assignedLocals;
+    private final Deque<Runnable> pendingMethods = new ArrayDeque<>();
+    private int methodCount = 0;
+    // The counters of --profile, or null without it
+    private final ProfileCounters profile;
+    private JvmRuntimeGenerator runtime;
+
+    public JavaBytecodeCompiler() {
+        this(new Options());
     }
 
-    private Map<String, Integer> variableIndices = new HashMap<String, Integer>();
+    public JavaBytecodeCompiler(Options options) {
+        super(options);
+        this.classWriter = new ClassWriter(options.computeFrames ? ClassWriter.COMPUTE_FRAMES : 0);
+        this.profile = options.profile ? new ProfileCounters() : null;
+    }
 
-    private static int SCANNER_INDEX = 0;
-    private int nextVariableIndex = 1;
+    int local(int slot) {
+        return localIndex[slot];
+    }
 
+    /**
+     * Generates a class named Fragment with a static run method that executes the given program
+     * on variables held in an array, which is passed after the input and output. The variables the
+     * program uses are loaded from the array into locals when the method starts, and the ones it
+     * assigns are stored back when it returns. The {@link Interpreter} uses this to compile hot
+     * loops.
+     */
+    static byte[] compileFragment(Ir fragment) {
+        JavaBytecodeCompiler compiler = new JavaBytecodeCompiler();
+        compiler.className = "Fragment";
+        compiler.generateFragment(fragment);
+        return compiler.classWriter.toByteArray();
+    }
+
+    private void generateFragment(Ir fragment) {
+        ir = fragment;
+        splitter = new MethodSplitter(fragment);
+        split = true;
+        classWriter.visit(V1_8, ACC_PUBLIC | ACC_SUPER, className, null, "java/lang/Object", null);
+        methodWriter = FrameTracker.visitMethod(classWriter, className, ACC_PUBLIC | ACC_STATIC, "run", FRAGMENT_DESCRIPTOR);
+        BitSet used = new BitSet();
+        BitSet assigned = new BitSet();
+        collectDirectVariables(fragment.getBody(), used, assigned);
+        generateSplitMethod(used, assigned, RETURN, false, () -> visitProgram(fragment));
+        generatePendingMethods();
+        classWriter.visitEnd();
+    }
+
+    /**
+     * Generates a class with a static run method containing the program. Embedders call run
+     * directly with their own input and output (see {@link Program}), while the generated main
+     * method passes buffered stdin and stdout (see {@link JvmRuntimeGenerator}).
+     *
+     * <p>Programs too big to be JIT-compiled as a single method are split across several methods
+     * as planned by {@link MethodSplitter}.
+     */
     @Override
-    protected void addVariable(String name) {
-        if(!variableIndices.containsKey(name)) {
-            variableIndices.put(name, nextVariableIndex++);
+    protected void generate(Ir program, OutputStream out) throws IOException {
+        ir = program;
+        splitter = new MethodSplitter(program);
+        split = splitter.splits();
+        runtime = new JvmRuntimeGenerator(classWriter, className, program.contains(Ir.READ), program.contains(Ir.PRINT), profile != null);
+        classWriter.visit(V1_8, ACC_PUBLIC | ACC_SUPER, className, null, "java/lang/Object", runtime.getInterfaces());
+        classWriter.visitSource("Main.java", null);
+        runtime.generate();
+        methodWriter = FrameTracker.visitMethod(classWriter, className, ACC_PUBLIC | ACC_STATIC, "run", Program.RUN_DESCRIPTOR);
+        if (profile != null) profile.add(program);
+        if (split) {
+            BitSet used = new BitSet();
+            BitSet assigned = new BitSet();
+            collectDirectVariables(program.getBody(), used, assigned);
+            generateSplitMethod(used, assigned, RETURN, true, () -> visitProgram(program));
+            generatePendingMethods();
+        } else {
+            localIndex = new int[program.getVariableCount()];
+            for (int slot = 0; slot < localIndex.length; slot++) {
+                localIndex[slot] = OUTPUT_INDEX + 1 + slot;
+            }
+            nextHiddenLocal = OUTPUT_INDEX + 1 + localIndex.length;
+            methodWriter.visitCode();
+            // Variables start out as 0, which also makes them ints in every frame
+            for (int slot = 0; slot < localIndex.length; slot++) {
+                methodWriter.visitInsn(ICONST_0);
+                methodWriter.visitVarInsn(ISTORE, local(slot));
+            }
+            visitProgram(program);
+            methodWriter.visitInsn(RETURN);
+            methodWriter.visitMaxs(-1, -1);
+            methodWriter.visitEnd();
         }
+        if (profile != null) runtime.generateProfile(profile);
+        classWriter.visitEnd();
+        count("methods", methodCount + 1);
+        out.write(classWriter.toByteArray());
     }
 
+    // Streaming: the statements that haven't been generated yet, the variables of the program and
+    // the chunk methods generated so far, which the run method calls in order
+    private Ir batch;
+    private Ir streamVariables;
+    private int[] batchStatements;
+    private int batchLength;
+    private final List<String> chunks = new ArrayList<>();
+    private OutputStream streamOut;
+    // A batch is generated into a method of its own once it's this big
+    private static final int BATCH_SIZE = 1 << 16;
+    // The most calls that the run method, or a method it calls, makes to other methods
+    private static final int MAX_CALLS = 1000;
+
     @Override
-    public Void visitProg(ProgContext prog) {
-        classWriter.visit(V1_8, ACC_SUPER, "Main", null, "java/lang/Object", null);
+    public boolean supportsStreaming() { return true; }
+
+    /**
+     * Streaming works like split mode (see {@link #generateSplitMethod}), with the top-level
+     * statements collected into batches that become methods of their own. Only the class file
+     * as a whole can't be written until it's complete, since its constant pool comes first.
+     */
+    @Override
+    protected void beginStreaming(Ir variables, boolean readsInput, boolean printsOutput, OutputStream out) {
+        streamVariables = variables;
+        streamOut = out;
+        runtime = new JvmRuntimeGenerator(classWriter, className, readsInput, printsOutput, profile != null);
+        classWriter.visit(V1_8, ACC_PUBLIC | ACC_SUPER, className, null, "java/lang/Object", runtime.getInterfaces());
         classWriter.visitSource("Main.java", null);
-        methodWriter = classWriter.visitMethod(ACC_PUBLIC | ACC_STATIC, "main", "([Ljava/lang/String;)V", null, null);
+        runtime.generate();
+        startBatch();
+    }
+
+    private void startBatch() {
+        batch = new Ir(streamVariables);
+        batchStatements = new int[64];
+        batchLength = 0;
+    }
+
+    @Override
+    protected void generateStatements(Ir statements) {
+        int body = statements.getBody();
+        for (int i = 0; i < statements.listLength(body); i++) {
+            if (batchLength == batchStatements.length) {
+                batchStatements = Arrays.copyOf(batchStatements, 2 * batchLength);
+            }
+            batchStatements[batchLength++] = batch.copy(statements, statements.listElement(body, i));
+        }
+        if (batch.getSize() >= BATCH_SIZE) generateBatch();
+    }
+
+    private void generateBatch() {
+        if (batchLength == 0) return;
+        batch.setBody(batch.list(batchStatements, batchLength));
+        ir = batch;
+        if (profile != null) profile.add(batch);
+        splitter = new MethodSplitter(batch);
+        split = true;
+        String name = "chunk" + methodCount++;
+        chunks.add(name);
+        methodWriter = FrameTracker.visitMethod(classWriter, className, ACC_PRIVATE | ACC_STATIC, name, STATEMENTS_DESCRIPTOR);
+        BitSet used = new BitSet();
+        BitSet assigned = new BitSet();
+        collectDirectVariables(batch.getBody(), used, assigned);
+        generateSplitMethod(used, assigned, RETURN, false, () -> visitProgram(batch));
+        generatePendingMethods();
+        startBatch();
+    }
+
+    @Override
+    protected void endStreaming() throws IOException {
+        generateBatch();
+        ir = streamVariables;
+        List<String> calls = chunks;
+        while (calls.size() > MAX_CALLS) {
+            List<String> groups = new ArrayList<>();
+            for (int from = 0; from < calls.size(); from += MAX_CALLS) {
+                String name = "group" + methodCount++;
+                groups.add(name);
+                methodWriter = FrameTracker.visitMethod(classWriter, className, ACC_PRIVATE | ACC_STATIC, name, STATEMENTS_DESCRIPTOR);
+                List<String> group = calls.subList(from, Math.min(from + MAX_CALLS, calls.size()));
+                generateSplitMethod(new BitSet(), new BitSet(), RETURN, false, () -> emitCalls(group));
+            }
+            calls = groups;
+        }
+        List<String> runCalls = calls;
+        methodWriter = FrameTracker.visitMethod(classWriter, className, ACC_PUBLIC | ACC_STATIC, "run", Program.RUN_DESCRIPTOR);
+        generateSplitMethod(new BitSet(), new BitSet(), RETURN, true, () -> emitCalls(runCalls));
+        if (profile != null) runtime.generateProfile(profile);
+        classWriter.visitEnd();
+        count("methods", methodCount + 1);
+        streamOut.write(classWriter.toByteArray());
+        streamOut.flush();
+    }
+
+    private void emitCalls(List<String> methods) {
+        for (String method: methods) {
+            methodWriter.visitVarInsn(ALOAD, INPUT_INDEX);
+            methodWriter.visitVarInsn(ALOAD, OUTPUT_INDEX);
+            methodWriter.visitVarInsn(ALOAD, STATE_INDEX);
+            methodWriter.visitMethodInsn(INVOKESTATIC, className, method, STATEMENTS_DESCRIPTOR, false);
+        }
+    }
+
+    /**
+     * Generates the code of a method in split mode, where all variables live in an array that
+     * every method receives as its third parameter. Each method caches the variables that it
+     * accesses itself (not counting the methods it calls) in locals: it loads them from the array
+     * when it starts and stores the ones it assigns back before calls and before it returns. After
+     * a call, it reloads the variables that the callee may have assigned.
+     *
+     * @param isMain whether this is the program's run method, which creates the array and
+     *               initializes the variables instead
+     */
+    private void generateSplitMethod(BitSet used, BitSet assigned, int returnOpcode, boolean isMain, Runnable generator) {
+        localIndex = new int[ir.getVariableCount()];
+        Arrays.fill(localIndex, -1);
+        assignedLocals = assigned;
         methodWriter.visitCode();
-        methodWriter.visitTypeInsn(NEW, "java/util/Scanner");
-        methodWriter.visitInsn(DUP);
-        methodWriter.visitFieldInsn(GETSTATIC, "java/lang/System", "in", "Ljava/io/InputStream;");
-        methodWriter.visitMethodInsn(INVOKESPECIAL, "java/util/Scanner", "<init>", "(Ljava/io/InputStream;)V", false);
-        methodWriter.visitVarInsn(ASTORE, SCANNER_INDEX);
-        visitChildren(prog);
-        methodWriter.visitInsn(RETURN);
+        if (isMain) {
+            methodWriter.visitLdcInsn(ir.getVariableCount());
+            methodWriter.visitIntInsn(NEWARRAY, T_INT);
+            methodWriter.visitVarInsn(ASTORE, STATE_INDEX);
+        }
+        int nextLocal = STATE_INDEX + 1;
+        for (int slot = used.nextSetBit(0); slot >= 0; slot = used.nextSetBit(slot + 1)) {
+            localIndex[slot] = nextLocal++;
+            if (isMain) {
+                methodWriter.visitLdcInsn(0);
+            } else {
+                methodWriter.visitVarInsn(ALOAD, STATE_INDEX);
+                methodWriter.visitLdcInsn(slot);
+                methodWriter.visitInsn(IALOAD);
+            }
+            methodWriter.visitVarInsn(ISTORE, local(slot));
+        }
+        nextHiddenLocal = nextLocal;
+        generator.run();
+        if (!isMain) storeVariables(assigned);
+        methodWriter.visitInsn(returnOpcode);
         methodWriter.visitMaxs(-1, -1);
         methodWriter.visitEnd();
-        classWriter.visitEnd();
-        return null;
     }
 
-    @Override
-    public Void visitAssignment(AssignmentContext assignment) {
-        visit(assignment.exp());
-        methodWriter.visitVarInsn(ISTORE, variableIndices.get(assignment.ID().getText()));
-        return null;
+    private void generatePendingMethods() {
+        while (!pendingMethods.isEmpty()) {
+            pendingMethods.poll().run();
+        }
+    }
+
+    /**
+     * Adds the variables that the code generated for the given node accesses itself to used, and
+     * the ones it assigns to assigned, skipping over the parts that are moved to other methods.
+     */
+    private void collectDirectVariables(int node, BitSet used, BitSet assigned) {
+        if (!splitter.isOutlined(node)) collectOwnVariables(node, used, assigned);
+    }
+
+    private void collectOwnVariables(int node, BitSet used, BitSet assigned) {
+        switch (ir.kind(node)) {
+            case Ir.CONST: case Ir.READ:
+                break;
+            case Ir.VAR:
+                used.set(ir.varSlot(node));
+                break;
+            case Ir.NEG: case Ir.NOT:
+                collectDirectVariables(ir.lhs(node), used, assigned);
+                break;
+            case Ir.LIST:
+                if (splitter.getPieces(node) == null) {
+                    collectDirectVariables(node, 0, ir.listLength(node), used, assigned);
+                }
+                break;
+            case Ir.PRINT:
+                collectDirectVariables(ir.exp(node), used, assigned);
+                break;
+            case Ir.ASSIGN:
+                used.set(ir.slot(node));
+                assigned.set(ir.slot(node));
+                collectDirectVariables(ir.exp(node), used, assigned);
+                break;
+            case Ir.IF:
+                collectDirectVariables(ir.exp(node), used, assigned);
+                collectDirectVariables(ir.thenList(node), used, assigned);
+                collectDirectVariables(ir.elseList(node), used, assigned);
+                break;
+            case Ir.WHILE:
+                collectDirectVariables(ir.exp(node), used, assigned);
+                collectDirectVariables(ir.loopBody(node), used, assigned);
+                break;
+            case Ir.FOR:
+                used.set(ir.slot(node));
+                assigned.set(ir.slot(node));
+                collectDirectVariables(ir.forStart(node), used, assigned);
+                collectDirectVariables(ir.forEnd(node), used, assigned);
+                collectDirectVariables(ir.forStep(node), used, assigned);
+                collectDirectVariables(ir.loopBody(node), used, assigned);
+                break;
+            default:
+                collectDirectVariables(ir.lhs(node), used, assigned);
+                collectDirectVariables(ir.rhs(node), used, assigned);
+        }
+    }
+
+    private void collectDirectVariables(int list, int from, int to, BitSet used, BitSet assigned) {
+        for (int i = from; i < to; i++) {
+            collectDirectVariables(ir.listElement(list, i), used, assigned);
+        }
+    }
+
+    private void storeVariables(BitSet slots) {
+        for (int slot = slots.nextSetBit(0); slot >= 0; slot = slots.nextSetBit(slot + 1)) {
+            if (local(slot) < 0) continue;
+            methodWriter.visitVarInsn(ALOAD, STATE_INDEX);
+            methodWriter.visitLdcInsn(slot);
+            methodWriter.visitVarInsn(ILOAD, local(slot));
+            methodWriter.visitInsn(IASTORE);
+        }
+    }
+
+    private void loadVariables(BitSet slots) {
+        for (int slot = slots.nextSetBit(0); slot >= 0; slot = slots.nextSetBit(slot + 1)) {
+            if (local(slot) < 0) continue;
+            methodWriter.visitVarInsn(ALOAD, STATE_INDEX);
+            methodWriter.visitLdcInsn(slot);
+            methodWriter.visitInsn(IALOAD);
+            methodWriter.visitVarInsn(ISTORE, local(slot));
+        }
+    }
+
+    /**
+     * Emits a call to a split method that reads the variables in used and writes the ones in
+     * assigned, and queues the generation of the method.
+     */
+    private void callSplitMethod(String prefix, String descriptor, BitSet used, BitSet assigned, Runnable generator) {
+        String name = prefix + methodCount++;
+        BitSet stored = (BitSet) used.clone();
+        stored.and(assignedLocals);
+        storeVariables(stored);
+        methodWriter.visitVarInsn(ALOAD, INPUT_INDEX);
+        methodWriter.visitVarInsn(ALOAD, OUTPUT_INDEX);
+        methodWriter.visitVarInsn(ALOAD, STATE_INDEX);
+        methodWriter.visitMethodInsn(INVOKESTATIC, className, name, descriptor, false);
+        loadVariables(assigned);
+        pendingMethods.add(() -> {
+            methodWriter = FrameTracker.visitMethod(classWriter, className, ACC_PRIVATE | ACC_STATIC, name, descriptor);
+            generator.run();
+        });
+    }
+
+    private void callPiece(MethodSplitter.Piece piece) {
+        BitSet used = new BitSet();
+        BitSet assigned = new BitSet();
+        for (int i = piece.from; i < piece.to; i++) {
+            ir.collectVariables(ir.listElement(piece.list, i), used);
+            ir.collectAssignedVariables(ir.listElement(piece.list, i), assigned);
+        }
+        callSplitMethod("chunk", STATEMENTS_DESCRIPTOR, used, assigned, () -> {
+            BitSet ownUsed = new BitSet();
+            BitSet ownAssigned = new BitSet();
+            if (piece.parts == null) {
+                collectDirectVariables(piece.list, piece.from, piece.to, ownUsed, ownAssigned);
+            }
+            generateSplitMethod(ownUsed, ownAssigned, RETURN, false, () -> {
+                if (piece.parts == null) {
+                    for (int i = piece.from; i < piece.to; i++) {
+                        visit(ir.listElement(piece.list, i));
+                    }
+                } else {
+                    for (MethodSplitter.Piece part: piece.parts) {
+                        callPiece(part);
+                    }
+                }
+            });
+        });
     }
 
     @Override
-    public Void visitVariableExpression(VariableExpressionContext var) {
-        String name = var.ID().getText();
-        if (variableIndices.containsKey(name)) {
-            methodWriter.visitVarInsn(ILOAD, variableIndices.get(name));
+    public void visitList(int list) {
+        List<MethodSplitter.Piece> pieces = split ? splitter.getPieces(list) : null;
+        if (pieces == null) {
+            super.visitList(list);
         } else {
-            error(var.start.getLine(), var.start.getCharPositionInLine(), "Undefined variable: " + name);
+            for (MethodSplitter.Piece piece: pieces) {
+                callPiece(piece);
+            }
         }
-        return null;
     }
 
     @Override
-    public Void visitIntegerExpression(IntegerExpressionContext exp) {
-        methodWriter.visitLdcInsn(Integer.valueOf(exp.INT().getText()));
-        return null;
+    public void visit(int node) {
+        if (split && splitter.isOutlined(node)) {
+            BitSet used = new BitSet();
+            ir.collectVariables(node, used);
+            callSplitMethod("exp", EXPRESSION_DESCRIPTOR, used, new BitSet(), () -> {
+                BitSet ownUsed = new BitSet();
+                collectOwnVariables(node, ownUsed, new BitSet());
+                generateSplitMethod(ownUsed, new BitSet(), IRETURN, false, () -> super.visit(node));
+            });
+        } else {
+            super.visit(node);
+        }
     }
 
-    static private Map<String, Integer> operators = new HashMap<>();
-    static {
-        operators.put("+", IADD);
-        operators.put("-", ISUB);
-        operators.put("*", IMUL);
-        operators.put("/", IDIV);
-        operators.put("%", IREM);
+    /**
+     * Increments the given counter of --profile: profile[counter]++
+     */
+    private void countExecution(int stat, int kind) {
+        if (profile == null || !profile.counts(stat)) return;
+        methodWriter.visitFieldInsn(GETSTATIC, className, "profile", "[J");
+        // The counter's number is pushed without going through the constant pool, which would
+        // overflow for programs with many statements
+        int counter = profile.get(stat, kind);
+        if (counter <= Short.MAX_VALUE) {
+            methodWriter.visitIntInsn(SIPUSH, counter);
+        } else {
+            methodWriter.visitIntInsn(SIPUSH, counter >> 15);
+            methodWriter.visitIntInsn(BIPUSH, 15);
+            methodWriter.visitInsn(ISHL);
+            methodWriter.visitIntInsn(SIPUSH, counter & Short.MAX_VALUE);
+            methodWriter.visitInsn(IOR);
+        }
+        methodWriter.visitInsn(DUP2);
+        methodWriter.visitInsn(LALOAD);
+        methodWriter.visitInsn(LCONST_1);
+        methodWriter.visitInsn(LADD);
+        methodWriter.visitInsn(LASTORE);
     }
 
-    private void binOp(Token op, ExpContext lhs, ExpContext rhs) {
-        visit(lhs);
-        visit(rhs);
-        methodWriter.visitInsn(operators.get(op.getText()));
+    @Override
+    protected void visitAssign(int assignment) {
+        countExecution(assignment, ProfileCounters.STATEMENT);
+        visit(ir.exp(assignment));
+        methodWriter.visitVarInsn(ISTORE, local(ir.slot(assignment)));
     }
 
     @Override
-    public Void visitAdditiveExpression(AdditiveExpressionContext exp) {
-        binOp(exp.op, exp.lhs, exp.rhs);
-        return null;
+    protected void visitVar(int var) {
+        methodWriter.visitVarInsn(ILOAD, local(ir.varSlot(var)));
     }
 
     @Override
-    public Void visitMultiplicativeExpression(MultiplicativeExpressionContext exp) {
-        binOp(exp.op, exp.lhs, exp.rhs);
-        return null;
+    protected void visitConst(int exp) {
+        methodWriter.visitLdcInsn(ir.constValue(exp));
+    }
+
+    static private Map<Integer, Integer> operators = new HashMap<>();
+    static {
+        operators.put(Ir.ADD, IADD);
+        operators.put(Ir.SUB, ISUB);
+        operators.put(Ir.MUL, IMUL);
+        operators.put(Ir.DIV, IDIV);
+        operators.put(Ir.REM, IREM);
+        operators.put(Ir.SHL, ISHL);
     }
 
     @Override
-    public Void visitUnaryExpression(UnaryExpressionContext ctx) {
-        visit(ctx.exp());
-        String operator = ctx.op.getText();
-        if (operator.equals("+")) {
-            // do nothing
-        } else {
-            if (operator.equals("-")) {
-                methodWriter.visitInsn(INEG);
-            } else if (operator.equals("!")) {
-                Label falseLabel = new Label();
-                Label endLabel = new Label();
-                methodWriter.visitJumpInsn(IFEQ, falseLabel);
-                methodWriter.visitLdcInsn(0);
-                methodWriter.visitJumpInsn(GOTO, endLabel);
-                methodWriter.visitLabel(falseLabel);
-                methodWriter.visitLdcInsn(1);
-                methodWriter.visitLabel(endLabel);
-            } else {
-                throw new IllegalStateException("Unknown unary operator");
-            }
-        }
-        return null;
+    protected void visitArithmetic(int exp, int kind) {
+        visit(ir.lhs(exp));
+        visit(ir.rhs(exp));
+        methodWriter.visitInsn(operators.get(kind));
     }
 
     @Override
-    public Void visitParenthesizedExpression(ParenthesizedExpressionContext ctx) {
-        return visit(ctx.exp());
+    protected void visitUnary(int exp, int kind) {
+        visit(ir.lhs(exp));
+        if (kind == Ir.NEG) {
+            methodWriter.visitInsn(INEG);
+        } else if (kind == Ir.NOT) {
+            Label falseLabel = new Label();
+            Label endLabel = new Label();
+            methodWriter.visitJumpInsn(IFEQ, falseLabel);
+            methodWriter.visitLdcInsn(0);
+            methodWriter.visitJumpInsn(GOTO, endLabel);
+            methodWriter.visitLabel(falseLabel);
+            methodWriter.visitLdcInsn(1);
+            methodWriter.visitLabel(endLabel);
+        } else {
+            throw new IllegalStateException("Unknown unary operator");
+        }
     }
 
-    private static Map<String, Integer> comparisons = new HashMap<>();
+    private static Map<Integer, Integer> comparisons = new HashMap<>();
     static {
-        comparisons.put("==", IF_ICMPEQ);
-        comparisons.put("!=", IF_ICMPNE);
-        comparisons.put(">", IF_ICMPGT);
-        comparisons.put(">=", IF_ICMPGE);
-        comparisons.put("<=", IF_ICMPLE);
-        comparisons.put("<", IF_ICMPLT);
+        comparisons.put(Ir.EQ, IF_ICMPEQ);
+        comparisons.put(Ir.NE, IF_ICMPNE);
+        comparisons.put(Ir.GT, IF_ICMPGT);
+        comparisons.put(Ir.GE, IF_ICMPGE);
+        comparisons.put(Ir.LE, IF_ICMPLE);
+        comparisons.put(Ir.LT, IF_ICMPLT);
     }
 
     @Override
-    public Void visitComparison(ComparisonContext exp) {
+    protected void visitComparison(int exp, int kind) {
         Label trueLabel = new Label();
         Label endLabel = new Label();
-        visit(exp.lhs);
-        visit(exp.rhs);
-        methodWriter.visitJumpInsn(comparisons.get(exp.op.getText()), trueLabel);
+        visit(ir.lhs(exp));
+        visit(ir.rhs(exp));
+        methodWriter.visitJumpInsn(comparisons.get(kind), trueLabel);
         methodWriter.visitLdcInsn(0);
         methodWriter.visitJumpInsn(GOTO, endLabel);
         methodWriter.visitLabel(trueLabel);
         methodWriter.visitLdcInsn(1);
         methodWriter.visitLabel(endLabel);
-        return null;
+    }
+
+    /**
+     * Generates a condition as jumping code: jumps to the target if the condition's truth value
+     * is jumpIf and falls through otherwise. Comparisons jump on the comparison itself, and ! and
+     * the short-circuit operators only rearrange the jumps of their operands, so none of them
+     * computes a 0 or 1 that is then tested again.
+     */
+    private void jump(int condition, boolean jumpIf, Label target) {
+        int kind = ir.kind(condition);
+        if (split && splitter.isOutlined(condition)) kind = -1;
+        switch (kind) {
+            case Ir.EQ: case Ir.NE: case Ir.GT: case Ir.GE: case Ir.LE: case Ir.LT:
+                visit(ir.lhs(condition));
+                visit(ir.rhs(condition));
+                methodWriter.visitJumpInsn(comparisons.get(jumpIf ? kind : negatedComparisons.get(kind)), target);
+                break;
+            case Ir.NOT:
+                jump(ir.lhs(condition), !jumpIf, target);
+                break;
+            case Ir.AND: case Ir.OR:
+                // a && b jumps to a false target if either operand is false, and a || b to a true
+                // target if either is true. Otherwise the left operand skips the right one.
+                if (jumpIf == (kind == Ir.OR)) {
+                    jump(ir.lhs(condition), jumpIf, target);
+                    jump(ir.rhs(condition), jumpIf, target);
+                } else {
+                    Label skip = new Label();
+                    jump(ir.lhs(condition), !jumpIf, skip);
+                    jump(ir.rhs(condition), jumpIf, target);
+                    methodWriter.visitLabel(skip);
+                }
+                break;
+            default:
+                visit(condition);
+                methodWriter.visitJumpInsn(jumpIf ? IFNE : IFEQ, target);
+        }
+    }
+
+    private static Map<Integer, Integer> negatedComparisons = new HashMap<>();
+    static {
+        negatedComparisons.put(Ir.EQ, Ir.NE);
+        negatedComparisons.put(Ir.NE, Ir.EQ);
+        negatedComparisons.put(Ir.GT, Ir.LE);
+        negatedComparisons.put(Ir.GE, Ir.LT);
+        negatedComparisons.put(Ir.LE, Ir.GT);
+        negatedComparisons.put(Ir.LT, Ir.GE);
     }
 
     @Override
-    public Void visitPrintStatement(PrintStatementContext stat) {
-        methodWriter.visitFieldInsn(GETSTATIC, "java/lang/System", "out", "Ljava/io/PrintStream;");
-        visit(stat.exp());
-        methodWriter.visitMethodInsn(INVOKEVIRTUAL, "java/io/PrintStream", "println", "(I)V", false);
-        return null;
+    protected void visitPrint(int stat) {
+        countExecution(stat, ProfileCounters.STATEMENT);
+        methodWriter.visitVarInsn(ALOAD, OUTPUT_INDEX);
+        visit(ir.exp(stat));
+        methodWriter.visitMethodInsn(INVOKEINTERFACE, "java/util/function/IntConsumer", "accept", "(I)V", true);
     }
 
     @Override
-    public Void visitReadExpression(ReadExpressionContext read) {
-        methodWriter.visitVarInsn(ALOAD, SCANNER_INDEX);
-        methodWriter.visitMethodInsn(INVOKEVIRTUAL, "java/util/Scanner", "nextInt", "()I", false);
-        return null;
+    protected void visitRead(int read) {
+        methodWriter.visitVarInsn(ALOAD, INPUT_INDEX);
+        methodWriter.visitMethodInsn(INVOKEINTERFACE, "java/util/function/IntSupplier", "getAsInt", "()I", true);
     }
 
     @Override
-    public Void visitIfStatement(IfStatementContext ifStatement) {
-        boolean hasElse = ifStatement.elseCase != null;
+    protected void visitIf(int ifStatement) {
+        countExecution(ifStatement, ProfileCounters.STATEMENT);
+        // Profiling counts how often the condition is false, which takes an else branch
+        boolean hasElse = ir.listLength(ir.elseList(ifStatement)) > 0 || profile != null;
         Label endLabel = new Label();
         Label elseLabel = hasElse ? new Label() : endLabel;
-        visit(ifStatement.cond);
-        methodWriter.visitJumpInsn(IFEQ, elseLabel);
-        for(StatContext stat: ifStatement.thenCase) {
-            visit(stat);
-        }
-        methodWriter.visitJumpInsn(GOTO, endLabel);
+        jump(ir.exp(ifStatement), false, elseLabel);
+        countExecution(ifStatement, ProfileCounters.THEN);
+        visitList(ir.thenList(ifStatement));
         if(hasElse) {
+            methodWriter.visitJumpInsn(GOTO, endLabel);
             methodWriter.visitLabel(elseLabel);
-            for(StatContext stat: ifStatement.elseCase) {
-                visit(stat);
-            }
+            countExecution(ifStatement, ProfileCounters.ELSE);
+            visitList(ir.elseList(ifStatement));
         }
         methodWriter.visitLabel(endLabel);
-        return null;
     }
 
     @Override
-    public Void visitWhileLoop(WhileLoopContext loop) {
+    protected void visitWhile(int loop) {
+        countExecution(loop, ProfileCounters.STATEMENT);
         Label condLabel = new Label();
         Label endLabel = new Label();
         methodWriter.visitLabel(condLabel);
-        visit(loop.cond);
-        methodWriter.visitJumpInsn(IFEQ, endLabel);
-        for(StatContext stat: loop.body) {
-            visit(stat);
-        }
+        jump(ir.exp(loop), false, endLabel);
+        countExecution(loop, ProfileCounters.LOOP);
+        visitList(ir.loopBody(loop));
         methodWriter.visitJumpInsn(GOTO, condLabel);
         methodWriter.visitLabel(endLabel);
-        return null;
     }
 
+    /**
+     * Generates for loops the way javac does, so that HotSpot recognizes them as counted loops:
+     * the bound and the step are kept in locals that the program can't access, and the loop
+     * variable is updated in place, with IINC if the step is a constant.
+     */
     @Override
-    public Void visitForLoop(ForLoopContext loop) {
+    protected void visitFor(int loop) {
+        countExecution(loop, ProfileCounters.STATEMENT);
         Label condLabel = new Label();
         Label endLabel = new Label();
-        int loopVar = variableIndices.get(loop.ID().getText());
-        visit(loop.start); // Stack = start
-        methodWriter.visitInsn(DUP); // start, start
-        methodWriter.visitVarInsn(ISTORE, loopVar); // start
-        visit(loop.end); // stop, start
-        if (loop.step == null) {
-            methodWriter.visitLdcInsn(1);  // 1, stop, start
-        } else {
-            visit(loop.step); // inc, stop, start
+        int loopVar = local(ir.slot(loop));
+        int step = ir.forStep(loop);
+        boolean constantStep = ir.kind(step) == Ir.CONST
+            && ir.constValue(step) >= Short.MIN_VALUE && ir.constValue(step) <= Short.MAX_VALUE;
+        int stopVar = nextHiddenLocal++;
+        int stepVar = constantStep ? -1 : nextHiddenLocal++;
+        visit(ir.forStart(loop));
+        methodWriter.visitVarInsn(ISTORE, loopVar);
+        visit(ir.forEnd(loop));
+        methodWriter.visitVarInsn(ISTORE, stopVar);
+        if (!constantStep) {
+            visit(step);
+            methodWriter.visitVarInsn(ISTORE, stepVar);
         }
-        methodWriter.visitInsn(SWAP); // stop, inc, start
-        methodWriter.visitInsn(DUP2_X1); // stop, inc, start, stop, inc
-        methodWriter.visitInsn(POP2); // start, stop, inc
         methodWriter.visitLabel(condLabel);
-        // Entry condition: Stack = index, stop, inc
-        methodWriter.visitInsn(SWAP); // stop, index, inc
-        methodWriter.visitInsn(DUP_X1); // stop, index, stop, inc
-        methodWriter.visitJumpInsn(IF_ICMPGT, endLabel); // stop, inc
-        for(StatContext stat: loop.body) {
-            visit(stat);
+        methodWriter.visitVarInsn(ILOAD, loopVar);
+        methodWriter.visitVarInsn(ILOAD, stopVar);
+        methodWriter.visitJumpInsn(IF_ICMPGT, endLabel);
+        countExecution(loop, ProfileCounters.LOOP);
+        visitList(ir.loopBody(loop));
+        if (constantStep) {
+            methodWriter.visitIincInsn(loopVar, ir.constValue(step));
+        } else {
+            methodWriter.visitVarInsn(ILOAD, loopVar);
+            methodWriter.visitVarInsn(ILOAD, stepVar);
+            methodWriter.visitInsn(IADD);
+            methodWriter.visitVarInsn(ISTORE, loopVar);
         }
-        // stop, inc
-        methodWriter.visitInsn(SWAP); // inc, stop
-        methodWriter.visitInsn(DUP_X1); // inc, stop, inc
-        methodWriter.visitVarInsn(ILOAD, loopVar); // index, inc, stop, inc
-        methodWriter.visitInsn(IADD); // index + inc, stop, inc
-        methodWriter.visitInsn(DUP); // index + inc, index + inc, stop, inc
-        methodWriter.visitVarInsn(ISTORE, loopVar); // index + inc, stop, inc
         methodWriter.visitJumpInsn(GOTO, condLabel);
         methodWriter.visitLabel(endLabel);
-        methodWriter.visitInsn(POP2);
-        return null;
+        nextHiddenLocal = stopVar;
     }
 
-    private void visitLogicalExpression(ExpContext lhs, ExpContext rhs, int ifOp) {
+    @Override
+    protected void visitLogical(int exp, int kind) {
         Label endLabel = new Label();
-        visit(lhs);
+        visit(ir.lhs(exp));
         methodWriter.visitInsn(DUP);
-        methodWriter.visitJumpInsn(ifOp, endLabel);
+        methodWriter.visitJumpInsn(kind == Ir.AND ? IFEQ : IFNE, endLabel);
         methodWriter.visitInsn(POP);
-        visit(rhs);
+        visit(ir.rhs(exp));
         methodWriter.visitLabel(endLabel);
     }
-
-    @Override
-    public Void visitAndExpression(AndExpressionContext exp) {
-        visitLogicalExpression(exp.lhs, exp.rhs, IFEQ);
-        return null;
-    }
-
-    @Override
-    public Void visitOrExpression(OrExpressionContext exp) {
-        visitLogicalExpression(exp.lhs, exp.rhs, IFNE);
-        return null;
-    }
 }
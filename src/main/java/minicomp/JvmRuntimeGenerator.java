@@ -0,0 +1,528 @@
+package minicomp;
+
+import org.objectweb.asm.*;
+import static org.objectweb.asm.Opcodes.*;
+
+/**
+ * Generates the members that let a compiled MiniLang class run as a stand-alone program: a main
+ * method and buffered int I/O on top of stdin and stdout. The class implements IntSupplier (when
+ * the program reads) and IntConsumer (when it prints), so main can pass an instance of it to the
+ * generated run method. Only the parts the program actually uses are generated.
+ *
+ * <p>Input is read from System.in in large blocks and parsed by hand, rather than going through
+ * Scanner's regular expressions. Output is formatted into a byte buffer that is written to
+ * System.out when it is full and when the program ends (also if it ends with an exception).
+ *
+ * <p>With {@link Options#profile}, the class has a static array of the counters, which main prints
+ * to System.err after the output when the program ends (see {@link #generateProfile}).
+ */
+class JvmRuntimeGenerator {
+    private static final int BUFFER_SIZE = 1 << 16;
+    // Space needed for the longest formatted int: a minus sign, ten digits and a line break
+    private static final int MAX_LINE_LENGTH = 12;
+    // The longest string constant written at once, so that its modified UTF-8 encoding fits in
+    // the constant pool
+    private static final int MAX_CONSTANT_LENGTH = 1 << 15;
+
+    private final ClassWriter classWriter;
+    private final String className;
+    private final boolean usesInput;
+    private final boolean usesOutput;
+    private final boolean profiles;
+
+    JvmRuntimeGenerator(ClassWriter classWriter, String className, boolean usesInput, boolean usesOutput, boolean profiles) {
+        this.classWriter = classWriter;
+        this.className = className;
+        this.usesInput = usesInput;
+        this.usesOutput = usesOutput;
+        this.profiles = profiles;
+    }
+
+    /**
+     * The interfaces the generated class needs to declare.
+     */
+    String[] getInterfaces() {
+        if (usesInput && usesOutput) {
+            return new String[] {"java/util/function/IntSupplier", "java/util/function/IntConsumer"};
+        } else if (usesInput) {
+            return new String[] {"java/util/function/IntSupplier"};
+        } else if (usesOutput) {
+            return new String[] {"java/util/function/IntConsumer"};
+        } else {
+            return null;
+        }
+    }
+
+    void generate() {
+        generateMain();
+        if (!usesInput && !usesOutput) return;
+        generateConstructor();
+        if (usesInput) {
+            classWriter.visitField(ACC_PRIVATE | ACC_FINAL, "input", "[B", null, null).visitEnd();
+            classWriter.visitField(ACC_PRIVATE, "inputPosition", "I", null, null).visitEnd();
+            classWriter.visitField(ACC_PRIVATE, "inputLimit", "I", null, null).visitEnd();
+            generateReadByte();
+            generateGetAsInt();
+        }
+        if (usesOutput) {
+            classWriter.visitField(ACC_PRIVATE | ACC_FINAL, "output", "[B", null, null).visitEnd();
+            classWriter.visitField(ACC_PRIVATE, "outputPosition", "I", null, null).visitEnd();
+            generateAccept();
+            generateFlush();
+        }
+    }
+
+    // public static void main(String[] args) {
+    //     Main io = new Main();
+    //     try { run(io, io); } finally { io.flush(); printProfile(); }
+    // }
+    private void generateMain() {
+        MethodVisitor main = FrameTracker.visitMethod(classWriter, className, ACC_PUBLIC | ACC_STATIC, "main", "([Ljava/lang/String;)V");
+        main.visitCode();
+        Label start = new Label();
+        Label end = new Label();
+        Label handler = new Label();
+        boolean finishes = usesOutput || profiles;
+        if (finishes) main.visitTryCatchBlock(start, end, handler, null);
+        if (usesInput || usesOutput) {
+            main.visitTypeInsn(NEW, className);
+            main.visitInsn(DUP);
+            main.visitMethodInsn(INVOKESPECIAL, className, "<init>", "()V", false);
+            main.visitVarInsn(ASTORE, 1);
+        }
+        main.visitLabel(start);
+        loadInstanceIf(main, usesInput);
+        loadInstanceIf(main, usesOutput);
+        main.visitMethodInsn(INVOKESTATIC, className, "run", Program.RUN_DESCRIPTOR, false);
+        main.visitLabel(end);
+        finish(main);
+        main.visitInsn(RETURN);
+        if (finishes) {
+            main.visitLabel(handler);
+            main.visitVarInsn(ASTORE, 2);
+            finish(main);
+            main.visitVarInsn(ALOAD, 2);
+            main.visitInsn(ATHROW);
+        }
+        main.visitMaxs(-1, -1);
+        main.visitEnd();
+    }
+
+    private void finish(MethodVisitor main) {
+        if (usesOutput) {
+            main.visitVarInsn(ALOAD, 1);
+            main.visitMethodInsn(INVOKEVIRTUAL, className, "flush", "()V", false);
+        }
+        if (profiles) {
+            main.visitMethodInsn(INVOKESTATIC, className, "printProfile", "()V", false);
+        }
+    }
+
+    // Programs that don't read (or print) get null instead of an input (or output)
+    private static void loadInstanceIf(MethodVisitor main, boolean used) {
+        if (used) {
+            main.visitVarInsn(ALOAD, 1);
+        } else {
+            main.visitInsn(ACONST_NULL);
+        }
+    }
+
+    private void generateConstructor() {
+        MethodVisitor constructor = FrameTracker.visitMethod(classWriter, className, ACC_PRIVATE, "<init>", "()V");
+        constructor.visitCode();
+        constructor.visitVarInsn(ALOAD, 0);
+        constructor.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+        if (usesInput) {
+            constructor.visitVarInsn(ALOAD, 0);
+            constructor.visitLdcInsn(BUFFER_SIZE);
+            constructor.visitIntInsn(NEWARRAY, T_BYTE);
+            constructor.visitFieldInsn(PUTFIELD, className, "input", "[B");
+        }
+        if (usesOutput) {
+            constructor.visitVarInsn(ALOAD, 0);
+            constructor.visitLdcInsn(BUFFER_SIZE);
+            constructor.visitIntInsn(NEWARRAY, T_BYTE);
+            constructor.visitFieldInsn(PUTFIELD, className, "output", "[B");
+        }
+        constructor.visitInsn(RETURN);
+        constructor.visitMaxs(-1, -1);
+        constructor.visitEnd();
+    }
+
+    // Returns the next byte of stdin (as an unsigned value) or -1 at the end of the input.
+    private void generateReadByte() {
+        MethodVisitor method = FrameTracker.visitMethod(classWriter, className, ACC_PRIVATE, "readByte", "()I");
+        method.visitCode();
+        Label available = new Label();
+        method.visitVarInsn(ALOAD, 0);
+        method.visitFieldInsn(GETFIELD, className, "inputPosition", "I");
+        method.visitVarInsn(ALOAD, 0);
+        method.visitFieldInsn(GETFIELD, className, "inputLimit", "I");
+        method.visitJumpInsn(IF_ICMPLT, available);
+        // inputLimit = System.in.read(input, 0, input.length); inputPosition = 0;
+        method.visitVarInsn(ALOAD, 0);
+        method.visitFieldInsn(GETSTATIC, "java/lang/System", "in", "Ljava/io/InputStream;");
+        method.visitVarInsn(ALOAD, 0);
+        method.visitFieldInsn(GETFIELD, className, "input", "[B");
+        method.visitInsn(ICONST_0);
+        method.visitVarInsn(ALOAD, 0);
+        method.visitFieldInsn(GETFIELD, className, "input", "[B");
+        method.visitInsn(ARRAYLENGTH);
+        method.visitMethodInsn(INVOKEVIRTUAL, "java/io/InputStream", "read", "([BII)I", false);
+        method.visitFieldInsn(PUTFIELD, className, "inputLimit", "I");
+        method.visitVarInsn(ALOAD, 0);
+        method.visitInsn(ICONST_0);
+        method.visitFieldInsn(PUTFIELD, className, "inputPosition", "I");
+        method.visitVarInsn(ALOAD, 0);
+        method.visitFieldInsn(GETFIELD, className, "inputLimit", "I");
+        method.visitJumpInsn(IFGT, available);
+        // End of input: read returned -1, which must not be left in inputLimit
+        method.visitVarInsn(ALOAD, 0);
+        method.visitInsn(ICONST_0);
+        method.visitFieldInsn(PUTFIELD, className, "inputLimit", "I");
+        method.visitInsn(ICONST_M1);
+        method.visitInsn(IRETURN);
+        // return input[inputPosition++] & 0xFF;
+        method.visitLabel(available);
+        method.visitVarInsn(ALOAD, 0);
+        method.visitFieldInsn(GETFIELD, className, "input", "[B");
+        method.visitVarInsn(ALOAD, 0);
+        method.visitInsn(DUP);
+        method.visitFieldInsn(GETFIELD, className, "inputPosition", "I");
+        method.visitInsn(DUP_X1);
+        method.visitInsn(ICONST_1);
+        method.visitInsn(IADD);
+        method.visitFieldInsn(PUTFIELD, className, "inputPosition", "I");
+        method.visitInsn(BALOAD);
+        method.visitIntInsn(SIPUSH, 0xFF);
+        method.visitInsn(IAND);
+        method.visitInsn(IRETURN);
+        method.visitMaxs(-1, -1);
+        method.visitEnd();
+    }
+
+    // Skips whitespace and parses an optionally signed decimal number. Like Scanner.nextInt, it
+    // throws NoSuchElementException at the end of the input and InputMismatchException if the
+    // next token isn't a number or the number doesn't fit in an int.
+    private void generateGetAsInt() {
+        final int c = 1, negative = 2, result = 3, limit = 4, digit = 5;
+        MethodVisitor method = FrameTracker.visitMethod(classWriter, className, ACC_PUBLIC, "getAsInt", "()I");
+        method.visitCode();
+        Label skipWhitespace = new Label();
+        Label endOfInput = new Label();
+        Label sign = new Label();
+        Label positive = new Label();
+        Label digits = new Label();
+        Label digitLoop = new Label();
+        Label done = new Label();
+        Label negate = new Label();
+        Label mismatch = new Label();
+        readByte(method, c);
+        method.visitLabel(skipWhitespace);
+        method.visitVarInsn(ILOAD, c);
+        method.visitIntInsn(BIPUSH, ' ');
+        method.visitJumpInsn(IF_ICMPGT, sign);
+        method.visitVarInsn(ILOAD, c);
+        method.visitJumpInsn(IFLT, endOfInput);
+        readByte(method, c);
+        method.visitJumpInsn(GOTO, skipWhitespace);
+        method.visitLabel(endOfInput);
+        throwNew(method, "java/util/NoSuchElementException");
+        method.visitLabel(sign);
+        method.visitVarInsn(ILOAD, c);
+        method.visitIntInsn(BIPUSH, '-');
+        method.visitJumpInsn(IF_ICMPNE, positive);
+        method.visitInsn(ICONST_1);
+        method.visitVarInsn(ISTORE, negative);
+        readByte(method, c);
+        method.visitJumpInsn(GOTO, digits);
+        method.visitLabel(positive);
+        method.visitInsn(ICONST_0);
+        method.visitVarInsn(ISTORE, negative);
+        method.visitVarInsn(ILOAD, c);
+        method.visitIntInsn(BIPUSH, '+');
+        method.visitJumpInsn(IF_ICMPNE, digits);
+        readByte(method, c);
+        method.visitLabel(digits);
+        method.visitVarInsn(ILOAD, c);
+        method.visitIntInsn(BIPUSH, '0');
+        method.visitJumpInsn(IF_ICMPLT, mismatch);
+        method.visitVarInsn(ILOAD, c);
+        method.visitIntInsn(BIPUSH, '9');
+        method.visitJumpInsn(IF_ICMPGT, mismatch);
+        // limit = -Integer.MAX_VALUE - negative;
+        method.visitLdcInsn(-Integer.MAX_VALUE);
+        method.visitVarInsn(ILOAD, negative);
+        method.visitInsn(ISUB);
+        method.visitVarInsn(ISTORE, limit);
+        method.visitInsn(ICONST_0);
+        method.visitVarInsn(ISTORE, result);
+        // The number is accumulated as a negative value, so that -2147483648 can be read, too.
+        // Like in Integer.parseInt, the range is checked before each step:
+        // digit = c - '0';
+        // if (result < limit / 10 || result * 10 < limit + digit) throw ...;
+        // result = result * 10 - digit;
+        method.visitLabel(digitLoop);
+        method.visitVarInsn(ILOAD, c);
+        method.visitIntInsn(BIPUSH, '0');
+        method.visitInsn(ISUB);
+        method.visitVarInsn(ISTORE, digit);
+        method.visitVarInsn(ILOAD, result);
+        method.visitVarInsn(ILOAD, limit);
+        method.visitIntInsn(BIPUSH, 10);
+        method.visitInsn(IDIV);
+        method.visitJumpInsn(IF_ICMPLT, mismatch);
+        method.visitVarInsn(ILOAD, result);
+        method.visitIntInsn(BIPUSH, 10);
+        method.visitInsn(IMUL);
+        method.visitVarInsn(ISTORE, result);
+        method.visitVarInsn(ILOAD, result);
+        method.visitVarInsn(ILOAD, limit);
+        method.visitVarInsn(ILOAD, digit);
+        method.visitInsn(IADD);
+        method.visitJumpInsn(IF_ICMPLT, mismatch);
+        method.visitVarInsn(ILOAD, result);
+        method.visitVarInsn(ILOAD, digit);
+        method.visitInsn(ISUB);
+        method.visitVarInsn(ISTORE, result);
+        readByte(method, c);
+        method.visitVarInsn(ILOAD, c);
+        method.visitIntInsn(BIPUSH, '0');
+        method.visitJumpInsn(IF_ICMPLT, done);
+        method.visitVarInsn(ILOAD, c);
+        method.visitIntInsn(BIPUSH, '9');
+        method.visitJumpInsn(IF_ICMPLE, digitLoop);
+        // The number has to end the token: if (c > ' ') throw ...;
+        method.visitLabel(done);
+        method.visitVarInsn(ILOAD, c);
+        method.visitIntInsn(BIPUSH, ' ');
+        method.visitJumpInsn(IF_ICMPGT, mismatch);
+        method.visitVarInsn(ILOAD, negative);
+        method.visitJumpInsn(IFEQ, negate);
+        method.visitVarInsn(ILOAD, result);
+        method.visitInsn(IRETURN);
+        method.visitLabel(negate);
+        method.visitVarInsn(ILOAD, result);
+        method.visitInsn(INEG);
+        method.visitInsn(IRETURN);
+        method.visitLabel(mismatch);
+        throwNew(method, "java/util/InputMismatchException");
+        method.visitMaxs(-1, -1);
+        method.visitEnd();
+    }
+
+    // Formats the value followed by a line break into the output buffer, flushing it first if the
+    // line might not fit.
+    private void generateAccept() {
+        final int value = 1, length = 2, position = 3;
+        MethodVisitor method = FrameTracker.visitMethod(classWriter, className, ACC_PUBLIC, "accept", "(I)V");
+        method.visitCode();
+        Label hasRoom = new Label();
+        Label negative = new Label();
+        Label countDigits = new Label();
+        Label countLoop = new Label();
+        Label fill = new Label();
+        Label digitLoop = new Label();
+        method.visitVarInsn(ALOAD, 0);
+        method.visitFieldInsn(GETFIELD, className, "outputPosition", "I");
+        method.visitVarInsn(ALOAD, 0);
+        method.visitFieldInsn(GETFIELD, className, "output", "[B");
+        method.visitInsn(ARRAYLENGTH);
+        method.visitIntInsn(BIPUSH, MAX_LINE_LENGTH);
+        method.visitInsn(ISUB);
+        method.visitJumpInsn(IF_ICMPLE, hasRoom);
+        method.visitVarInsn(ALOAD, 0);
+        method.visitMethodInsn(INVOKEVIRTUAL, className, "flush", "()V", false);
+        method.visitLabel(hasRoom);
+        // Digits are computed from the negated value if it is positive, since not every negative
+        // int can be negated
+        method.visitVarInsn(ILOAD, value);
+        method.visitJumpInsn(IFLT, negative);
+        method.visitVarInsn(ILOAD, value);
+        method.visitInsn(INEG);
+        method.visitVarInsn(ISTORE, value);
+        method.visitJumpInsn(GOTO, countDigits);
+        // output[outputPosition++] = '-';
+        method.visitLabel(negative);
+        method.visitVarInsn(ALOAD, 0);
+        method.visitFieldInsn(GETFIELD, className, "output", "[B");
+        method.visitVarInsn(ALOAD, 0);
+        method.visitInsn(DUP);
+        method.visitFieldInsn(GETFIELD, className, "outputPosition", "I");
+        method.visitInsn(DUP_X1);
+        method.visitInsn(ICONST_1);
+        method.visitInsn(IADD);
+        method.visitFieldInsn(PUTFIELD, className, "outputPosition", "I");
+        method.visitIntInsn(BIPUSH, '-');
+        method.visitInsn(BASTORE);
+        // for (length = 1, position = value; position <= -10; position /= 10) length++;
+        method.visitLabel(countDigits);
+        method.visitInsn(ICONST_1);
+        method.visitVarInsn(ISTORE, length);
+        method.visitVarInsn(ILOAD, value);
+        method.visitVarInsn(ISTORE, position);
+        method.visitLabel(countLoop);
+        method.visitVarInsn(ILOAD, position);
+        method.visitIntInsn(BIPUSH, -10);
+        method.visitJumpInsn(IF_ICMPGT, fill);
+        method.visitVarInsn(ILOAD, position);
+        method.visitIntInsn(BIPUSH, 10);
+        method.visitInsn(IDIV);
+        method.visitVarInsn(ISTORE, position);
+        method.visitIincInsn(length, 1);
+        method.visitJumpInsn(GOTO, countLoop);
+        // position = outputPosition + length; output[position] = '\n'; outputPosition = position + 1;
+        method.visitLabel(fill);
+        method.visitVarInsn(ALOAD, 0);
+        method.visitFieldInsn(GETFIELD, className, "outputPosition", "I");
+        method.visitVarInsn(ILOAD, length);
+        method.visitInsn(IADD);
+        method.visitVarInsn(ISTORE, position);
+        method.visitVarInsn(ALOAD, 0);
+        method.visitFieldInsn(GETFIELD, className, "output", "[B");
+        method.visitVarInsn(ILOAD, position);
+        method.visitIntInsn(BIPUSH, '\n');
+        method.visitInsn(BASTORE);
+        method.visitVarInsn(ALOAD, 0);
+        method.visitVarInsn(ILOAD, position);
+        method.visitInsn(ICONST_1);
+        method.visitInsn(IADD);
+        method.visitFieldInsn(PUTFIELD, className, "outputPosition", "I");
+        // do { output[--position] = '0' - value % 10; value /= 10; } while (value != 0);
+        method.visitLabel(digitLoop);
+        method.visitIincInsn(position, -1);
+        method.visitVarInsn(ALOAD, 0);
+        method.visitFieldInsn(GETFIELD, className, "output", "[B");
+        method.visitVarInsn(ILOAD, position);
+        method.visitIntInsn(BIPUSH, '0');
+        method.visitVarInsn(ILOAD, value);
+        method.visitIntInsn(BIPUSH, 10);
+        method.visitInsn(IREM);
+        method.visitInsn(ISUB);
+        method.visitInsn(I2B);
+        method.visitInsn(BASTORE);
+        method.visitVarInsn(ILOAD, value);
+        method.visitIntInsn(BIPUSH, 10);
+        method.visitInsn(IDIV);
+        method.visitInsn(DUP);
+        method.visitVarInsn(ISTORE, value);
+        method.visitJumpInsn(IFNE, digitLoop);
+        method.visitInsn(RETURN);
+        method.visitMaxs(-1, -1);
+        method.visitEnd();
+    }
+
+    // System.out.write(output, 0, outputPosition); System.out.flush(); outputPosition = 0;
+    private void generateFlush() {
+        MethodVisitor method = FrameTracker.visitMethod(classWriter, className, ACC_PUBLIC, "flush", "()V");
+        method.visitCode();
+        method.visitFieldInsn(GETSTATIC, "java/lang/System", "out", "Ljava/io/PrintStream;");
+        method.visitVarInsn(ALOAD, 0);
+        method.visitFieldInsn(GETFIELD, className, "output", "[B");
+        method.visitInsn(ICONST_0);
+        method.visitVarInsn(ALOAD, 0);
+        method.visitFieldInsn(GETFIELD, className, "outputPosition", "I");
+        method.visitMethodInsn(INVOKEVIRTUAL, "java/io/PrintStream", "write", "([BII)V", false);
+        method.visitFieldInsn(GETSTATIC, "java/lang/System", "out", "Ljava/io/PrintStream;");
+        method.visitMethodInsn(INVOKEVIRTUAL, "java/io/PrintStream", "flush", "()V", false);
+        method.visitVarInsn(ALOAD, 0);
+        method.visitInsn(ICONST_0);
+        method.visitFieldInsn(PUTFIELD, className, "outputPosition", "I");
+        method.visitInsn(RETURN);
+        method.visitMaxs(-1, -1);
+        method.visitEnd();
+    }
+
+    /**
+     * Generates the array of counters and the method that prints them, once the program has been
+     * generated and all counters are known. The counters' descriptions are stored in string
+     * constants, which printProfile splits into lines.
+     */
+    void generateProfile(ProfileCounters profile) {
+        classWriter.visitField(ACC_STATIC | ACC_FINAL, "profile", "[J", null, null).visitEnd();
+        // static { profile = new long[size]; }
+        MethodVisitor initializer = FrameTracker.visitMethod(classWriter, className, ACC_STATIC, "<clinit>", "()V");
+        initializer.visitCode();
+        initializer.visitLdcInsn(profile.size());
+        initializer.visitIntInsn(NEWARRAY, T_LONG);
+        initializer.visitFieldInsn(PUTSTATIC, className, "profile", "[J");
+        initializer.visitInsn(RETURN);
+        initializer.visitMaxs(-1, -1);
+        initializer.visitEnd();
+
+        final int lines = 0, report = 1, counter = 2;
+        MethodVisitor method = FrameTracker.visitMethod(classWriter, className, ACC_PRIVATE | ACC_STATIC, "printProfile", "()V");
+        method.visitCode();
+        // String[] lines = (descriptions...).split("\n");
+        StringBuilder descriptions = new StringBuilder();
+        boolean first = true;
+        for (int i = 0; i < profile.size(); i++) {
+            descriptions.append(profile.describe(i)).append('\n');
+            if (descriptions.length() >= MAX_CONSTANT_LENGTH || i == profile.size() - 1) {
+                method.visitLdcInsn(descriptions.toString());
+                if (!first) method.visitMethodInsn(INVOKEVIRTUAL, "java/lang/String", "concat", "(Ljava/lang/String;)Ljava/lang/String;", false);
+                descriptions.setLength(0);
+                first = false;
+            }
+        }
+        if (first) method.visitLdcInsn("");
+        method.visitLdcInsn("\n");
+        method.visitMethodInsn(INVOKEVIRTUAL, "java/lang/String", "split", "(Ljava/lang/String;)[Ljava/lang/String;", false);
+        method.visitVarInsn(ASTORE, lines);
+        method.visitTypeInsn(NEW, "java/lang/StringBuilder");
+        method.visitInsn(DUP);
+        method.visitMethodInsn(INVOKESPECIAL, "java/lang/StringBuilder", "<init>", "()V", false);
+        method.visitVarInsn(ASTORE, report);
+        // for (counter = 0; counter < profile.length; counter++) {
+        //     report.append(lines[counter]).append(' ').append(profile[counter]).append('\n');
+        // }
+        Label test = new Label();
+        Label end = new Label();
+        method.visitInsn(ICONST_0);
+        method.visitVarInsn(ISTORE, counter);
+        method.visitLabel(test);
+        method.visitVarInsn(ILOAD, counter);
+        method.visitFieldInsn(GETSTATIC, className, "profile", "[J");
+        method.visitInsn(ARRAYLENGTH);
+        method.visitJumpInsn(IF_ICMPGE, end);
+        method.visitVarInsn(ALOAD, report);
+        method.visitVarInsn(ALOAD, lines);
+        method.visitVarInsn(ILOAD, counter);
+        method.visitInsn(AALOAD);
+        method.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "append", "(Ljava/lang/String;)Ljava/lang/StringBuilder;", false);
+        method.visitIntInsn(BIPUSH, ' ');
+        method.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "append", "(C)Ljava/lang/StringBuilder;", false);
+        method.visitFieldInsn(GETSTATIC, className, "profile", "[J");
+        method.visitVarInsn(ILOAD, counter);
+        method.visitInsn(LALOAD);
+        method.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "append", "(J)Ljava/lang/StringBuilder;", false);
+        method.visitIntInsn(BIPUSH, '\n');
+        method.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "append", "(C)Ljava/lang/StringBuilder;", false);
+        method.visitInsn(POP);
+        method.visitIincInsn(counter, 1);
+        method.visitJumpInsn(GOTO, test);
+        method.visitLabel(end);
+        // System.err.print(report); System.err.flush();
+        method.visitFieldInsn(GETSTATIC, "java/lang/System", "err", "Ljava/io/PrintStream;");
+        method.visitVarInsn(ALOAD, report);
+        method.visitMethodInsn(INVOKEVIRTUAL, "java/io/PrintStream", "print", "(Ljava/lang/Object;)V", false);
+        method.visitFieldInsn(GETSTATIC, "java/lang/System", "err", "Ljava/io/PrintStream;");
+        method.visitMethodInsn(INVOKEVIRTUAL, "java/io/PrintStream", "flush", "()V", false);
+        method.visitInsn(RETURN);
+        method.visitMaxs(-1, -1);
+        method.visitEnd();
+    }
+
+    private void readByte(MethodVisitor method, int target) {
+        method.visitVarInsn(ALOAD, 0);
+        method.visitMethodInsn(INVOKESPECIAL, className, "readByte", "()I", false);
+        method.visitVarInsn(ISTORE, target);
+    }
+
+    private static void throwNew(MethodVisitor method, String exceptionClass) {
+        method.visitTypeInsn(NEW, exceptionClass);
+        method.visitInsn(DUP);
+        method.visitMethodInsn(INVOKESPECIAL, exceptionClass, "<init>", "()V", false);
+        method.visitInsn(ATHROW);
+    }
+}
@@ -1,283 +1,603 @@
 package minicomp;
 
+import java.io.*;
 import java.util.*;
-import org.antlr.v4.runtime.*;
-import minicomp.MiniLangParser.*;
 
-public class LlvmCompiler extends Compiler.Base<String> {
-    private static String llvmHeader =
+/**
+ * Generates LLVM IR for a main function. By default every variable lives in a stack slot that is
+ * loaded and stored on each access, leaving it to LLVM's mem2reg pass to promote them to
+ * registers. With {@link Options#ssa}, variables are tracked as SSA values during code generation
+ * instead, with phi nodes wherever control flow joins, so no stack slots are needed at all.
+ * Without it, a variable is still only loaded once per basic block, after which the value loaded
+ * or stored last is reused.
+ *
+ * <p>The IR is written to the output stream while it's being generated (see {@link LlvmWriter}).
+ * Registers and labels are numbered, and the value of each expression is returned as an operand
+ * that is either a register number or a constant (see {@link #register} and {@link #constant}),
+ * so generating an instruction doesn't involve building any strings.
+ *
+ * <p>Printing and reading call the buffered runtime that is written in front of main (see
+ * {@link LlvmRuntime}), or printf and scanf with {@link Options#libcIo}.
+ *
+ * <p>With {@link Options#profile}, each statement, branch and loop body starts by incrementing its
+ * counter, a global that the runtime prints when the program exits.
+ */
+public class LlvmCompiler extends Compiler.Base {
+    private static String libcHeader =
         "@out_fmt = constant [4 x i8] c\"%d\\0A\\00\", align 1\n" +
         "@in_fmt = constant [3 x i8] c\"%d\\00\", align 1\n" +
         "declare i32 @printf(i8*, ...)\n" +
-        "declare i32 @scanf(i8*, ...)\n" +
-        "define i32 @main() {\n";
+        "declare i32 @scanf(i8*, ...)\n";
+    private static String mainHeader = "define i32 @main() {\n";
     private static String llvmFooter =
         "  ret i32 0\n" +
         "}\n";
+    private static String PRINTF_CALL = "call i32 (i8*, ...) @printf(i8* getelementptr inbounds ([4 x i8], [4 x i8]* @out_fmt, i32 0, i32 0), i32 ";
+    private static String SCANF_CALL = "call i32 (i8*, ...) @scanf(i8* getelementptr inbounds ([3 x i8], [3 x i8]* @in_fmt, i32 0, i32 0), i32* ";
+    private static String ENTRY_LABEL = "$entry";
+    // Stack slot that scanf reads into. It's allocated once in the entry block and shared by all
+    // read expressions.
+    private static String INPUT_SLOT = "%$input";
+
+    private final boolean ssa;
+    private final boolean libcIo;
+    // The counters of --profile, or null without it
+    private final ProfileCounters profile;
+
+    public LlvmCompiler() {
+        this(new Options());
+    }
+
+    public LlvmCompiler(Options options) {
+        super(options);
+        this.ssa = options.ssa;
+        this.libcIo = options.libcIo;
+        this.profile = options.profile ? new ProfileCounters() : null;
+    }
+
+    // Operands are encoded as longs: registers have the REGISTER bit set above the 32 bits that
+    // hold the register number or the constant's value.
+    private static final long REGISTER = 1L << 32;
+
+    private static long register(int id) { return REGISTER | id; }
+
+    private static long constant(int value) { return value & 0xFFFFFFFFL; }
+
+    // The operand holding the value of the most recently visited expression
+    private long result;
+
+    private long evaluate(int exp) {
+        visit(exp);
+        return result;
+    }
 
     private int idCounter = 0;
 
-    private String makeId() {
-        // All generated IDs contain a dollar sign, so that they can't conflict with variable
-        // names (which can't contain dollar signs)
-        return "$" + idCounter++;
+    private int makeId() {
+        return idCounter++;
     }
 
-    private StringBuilder llvm = new StringBuilder();
+    private LlvmWriter llvm;
 
     @Override
-    public byte[] getGeneratedCode() { return llvm.toString().getBytes(); }
+    protected void generate(Ir program, OutputStream out) throws IOException {
+        llvm = new LlvmWriter(out);
+        try {
+            generateMain(program);
+            llvm.flush();
+            count("registersAndLabels", idCounter);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
 
-    private void emitLabel(String name) {
-        llvm.append(" " + name + ":\n");
+    // All generated names contain a dollar sign, so that they can't conflict with variable names
+    // (which can't contain dollar signs)
+
+    private LlvmWriter writeRegister(int id) {
+        return llvm.append("%$").append(id);
     }
 
-    private void emit(String instr) {
-        llvm.append("  " + instr + "\n");
+    private LlvmWriter writeOperand(long operand) {
+        if ((operand & REGISTER) != 0) {
+            return writeRegister((int) operand);
+        } else {
+            return llvm.append((int) operand);
+        }
     }
 
-    Set<String> variables = new HashSet<String>();
+    private LlvmWriter writeLabel(int id) {
+        return llvm.append("label %$").append(id);
+    }
 
-    @Override
-    protected void addVariable(String name) {
-        variables.add(name);
+    // The label of the basic block that is currently being generated, or -1 for the entry block
+    private int currentBlock;
+
+    private void writeBlockName(int block) {
+        if (block < 0) {
+            llvm.append('%').append(ENTRY_LABEL);
+        } else {
+            writeRegister(block);
+        }
     }
 
-    @Override
-    public String visitProg(ProgContext prog) {
-        llvm.append(llvmHeader);
-        for(String var: variables) {
-            emit("%" + var + " = alloca i32");
+    private void emitLabel(int id) {
+        llvm.append(" $").append(id).append(":\n");
+        currentBlock = id;
+    }
+
+    // Starts an instruction that defines the given register
+    private LlvmWriter define(int register) {
+        return llvm.append("  %$").append(register).append(" = ");
+    }
+
+    private void emitBranch(int label) {
+        llvm.append("  br ");
+        writeLabel(label).append('\n');
+    }
+
+    private void emitConditionalBranch(int condition, int trueLabel, int falseLabel) {
+        llvm.append("  br i1 ");
+        writeRegister(condition).append(", ");
+        writeLabel(trueLabel).append(", ");
+        writeLabel(falseLabel).append('\n');
+    }
+
+    // In SSA mode, the operand holding each variable's current value, indexed by slot
+    private long[] values;
+    // Otherwise, the operand holding each variable's value in the basic block it was last loaded
+    // or stored in, which is only valid while that block is still the current one
+    private long[] loadedValues;
+    private int[] loadedBlocks;
+
+    private void generateMain(Ir program) {
+        beginMain(program, program.contains(Ir.READ), program.contains(Ir.PRINT));
+        if (profile != null) profile.add(program);
+        visitProgram(program);
+        endMain();
+    }
+
+    private void beginMain(Ir variables, boolean readsInput, boolean printsOutput) {
+        if (libcIo) {
+            llvm.append(libcHeader);
+            LlvmRuntime.write(llvm, false, false, profile != null);
+        } else {
+            LlvmRuntime.write(llvm, readsInput, printsOutput, profile != null);
+        }
+        llvm.append(mainHeader);
+        llvm.append(' ').append(ENTRY_LABEL).append(":\n");
+        currentBlock = -1;
+        if (ssa) {
+            // Reading a variable before it's been assigned gives 0 rather than undef
+            values = new long[variables.getVariableCount()];
+        } else {
+            for (int slot = 0; slot < variables.getVariableCount(); slot++) {
+                llvm.append("  %").append(variables.getVariableName(slot)).append(" = alloca i32\n");
+            }
+            // Like in SSA mode, where missing values are 0, variables start out as 0
+            for (int slot = 0; slot < variables.getVariableCount(); slot++) {
+                llvm.append("  store i32 0, i32* %").append(variables.getVariableName(slot)).append("\n");
+            }
+            loadedValues = new long[variables.getVariableCount()];
+            loadedBlocks = new int[variables.getVariableCount()];
+            Arrays.fill(loadedBlocks, Integer.MIN_VALUE);
+        }
+        if (libcIo && readsInput) {
+            llvm.append("  ").append(INPUT_SLOT).append(" = alloca i32\n");
         }
-        visitChildren(prog);
+        // Functions registered with atexit are called in reverse order, so the profile is
+        // printed after the output has been flushed
+        if (profile != null) {
+            llvm.append("  call i32 @atexit(void ()* ").append(LlvmRuntime.PROFILE_FUNCTION).append(")\n");
+        }
+        if (!libcIo && printsOutput) {
+            llvm.append("  call i32 @atexit(void ()* ").append(LlvmRuntime.FLUSH_FUNCTION).append(")\n");
+        }
+    }
+
+    private void endMain() {
         llvm.append(llvmFooter);
-        return null;
+        if (profile != null) LlvmRuntime.writeProfile(llvm, profile);
+    }
+
+    private void countExecution(int stat, int kind) {
+        if (profile == null || !profile.counts(stat)) return;
+        int counter = profile.get(stat, kind);
+        int count = makeId();
+        define(count).append("load i64, i64* ").append(LlvmRuntime.PROFILE_COUNTER).append(counter).append('\n');
+        int incremented = makeId();
+        define(incremented).append("add i64 ");
+        writeRegister(count).append(", 1\n");
+        llvm.append("  store i64 ");
+        writeRegister(incremented).append(", i64* ").append(LlvmRuntime.PROFILE_COUNTER).append(counter).append('\n');
     }
 
     @Override
-    public String visitAssignment(AssignmentContext assignment) {
-        String rhs = visit(assignment.exp());
-        emit("store i32 " + rhs + ", i32* %" + assignment.ID().getText());
-        return null;
+    public boolean supportsStreaming() { return true; }
+
+    // Since main is a single function whose entry block allocates all variables up front, each
+    // statement can be written as soon as it's generated
+
+    @Override
+    protected void beginStreaming(Ir variables, boolean readsInput, boolean printsOutput, OutputStream out) throws IOException {
+        llvm = new LlvmWriter(out);
+        try {
+            beginMain(variables, readsInput, printsOutput);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
     }
 
-    private String readVar(String name) {
-        String register = "%" + makeId();
-        emit(register + " = load i32, i32* %" + name);
-        return register;
+    @Override
+    protected void generateStatements(Ir statements) throws IOException {
+        try {
+            if (profile != null) profile.add(statements);
+            visitProgram(statements);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
     }
 
     @Override
-    public String visitVariableExpression(VariableExpressionContext var) {
-        String name = var.ID().getText();
-        if (!variables.contains(name)) {
-            error(var.start.getLine(), var.start.getCharPositionInLine(), "Undefined variable: " + name);
+    protected void endStreaming() throws IOException {
+        try {
+            endMain();
+            llvm.flush();
+            count("registersAndLabels", idCounter);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
         }
-        // If the variable was undefined, this will create LLVM code that accesses an undefined
-        // register, so the LLVM code will not be valid. Since we already signalled an error,
-        // that's fine as we won't output the generated code if there's been an error, so no
-        // one is going to see the invalid code.
-        return readVar(name);
     }
 
     @Override
-    public String visitIntegerExpression(IntegerExpressionContext exp) {
-        return exp.INT().getText();
+    protected void visitAssign(int assignment) {
+        countExecution(assignment, ProfileCounters.STATEMENT);
+        long rhs = evaluate(ir.exp(assignment));
+        writeVar(ir.slot(assignment), rhs);
     }
 
-    static private Map<String, String> operators = new HashMap<>();
+    private long readVar(int slot) {
+        if (ssa) return values[slot];
+        if (loadedBlocks[slot] == currentBlock) return loadedValues[slot];
+        int register = makeId();
+        define(register).append("load i32, i32* %").append(ir.getVariableName(slot)).append('\n');
+        loadedValues[slot] = register(register);
+        loadedBlocks[slot] = currentBlock;
+        return register(register);
+    }
+
+    private void writeVar(int slot, long value) {
+        if (ssa) {
+            values[slot] = value;
+        } else {
+            llvm.append("  store i32 ");
+            writeOperand(value).append(", i32* %").append(ir.getVariableName(slot)).append('\n');
+            loadedValues[slot] = value;
+            loadedBlocks[slot] = currentBlock;
+        }
+    }
+
+    @Override
+    protected void visitVar(int var) {
+        result = readVar(ir.varSlot(var));
+    }
+
+    @Override
+    protected void visitConst(int exp) {
+        result = constant(ir.constValue(exp));
+    }
+
+    static private Map<Integer, String> operators = new HashMap<>();
     static {
-        operators.put("+", "add");
-        operators.put("-", "sub");
-        operators.put("*", "mul");
-        operators.put("/", "sdiv");
-        operators.put("%", "srem");
-        operators.put("==", "icmp eq");
-        operators.put("!=", "icmp ne");
-        operators.put(">", "icmp sgt");
-        operators.put(">=", "icmp sge");
-        operators.put("<=", "icmp sle");
-        operators.put("<", "icmp slt");
-    }
-
-    private String binOp(Token op, ExpContext lhs, ExpContext rhs) {
-        String register = "%" + makeId();
-        String opCode = operators.get(op.getText());
-        String lhsReg = visit(lhs);
-        String rhsReg = visit(rhs);
-        emit(register + " = " + opCode + " i32 " + lhsReg + ", " + rhsReg);
+        operators.put(Ir.ADD, "add i32 ");
+        operators.put(Ir.SUB, "sub i32 ");
+        operators.put(Ir.MUL, "mul i32 ");
+        operators.put(Ir.DIV, "sdiv i32 ");
+        operators.put(Ir.REM, "srem i32 ");
+        operators.put(Ir.SHL, "shl i32 ");
+        operators.put(Ir.EQ, "icmp eq i32 ");
+        operators.put(Ir.NE, "icmp ne i32 ");
+        operators.put(Ir.GT, "icmp sgt i32 ");
+        operators.put(Ir.GE, "icmp sge i32 ");
+        operators.put(Ir.LE, "icmp sle i32 ");
+        operators.put(Ir.LT, "icmp slt i32 ");
+    }
+
+    private int binOp(int kind, int exp) {
+        int register = makeId();
+        String opCode = operators.get(kind);
+        long lhsReg = evaluate(ir.lhs(exp));
+        long rhsReg = evaluate(ir.rhs(exp));
+        emitInstruction(register, opCode, lhsReg, rhsReg);
         return register;
     }
 
-    @Override
-    public String visitAdditiveExpression(AdditiveExpressionContext exp) {
-        return binOp(exp.op, exp.lhs, exp.rhs);
+    private void emitInstruction(int register, String opCode, long lhs, long rhs) {
+        define(register).append(opCode);
+        writeOperand(lhs).append(", ");
+        writeOperand(rhs).append('\n');
     }
 
     @Override
-    public String visitMultiplicativeExpression(MultiplicativeExpressionContext exp) {
-        return binOp(exp.op, exp.lhs, exp.rhs);
+    protected void visitArithmetic(int exp, int kind) {
+        result = register(binOp(kind, exp));
     }
 
     @Override
-    public String visitUnaryExpression(UnaryExpressionContext ctx) {
-        String operand = visit(ctx.exp());
-        String operator = ctx.op.getText();
-        if (operator.equals("+")) {
-            return operand;
+    protected void visitUnary(int exp, int kind) {
+        long operand = evaluate(ir.lhs(exp));
+        int register = makeId();
+        if (kind == Ir.NEG) {
+            emitInstruction(register, "sub i32 ", constant(0), operand);
+        } else if (kind == Ir.NOT) {
+            int boolReg = makeId();
+            emitInstruction(boolReg, "icmp eq i32 ", constant(0), operand);
+            emitZext(register, boolReg);
         } else {
-            String register = "%" + makeId();
-            if (operator.equals("-")) {
-                emit(register + " = sub i32 0, " + operand);
-            } else if (operator.equals("!")) {
-                String boolReg = "%" + makeId();
-                emit(boolReg + " = icmp eq i32 0, " + operand);
-                emit(register + " = zext i1 " + boolReg + " to i32");
-            } else {
-                throw new IllegalStateException("Unknown unary operator");
-            }
-            return register;
+            throw new IllegalStateException("Unknown unary operator");
         }
+        result = register(register);
     }
 
-    @Override
-    public String visitParenthesizedExpression(ParenthesizedExpressionContext ctx) {
-        return visit(ctx.exp());
+    private void emitZext(int register, int boolReg) {
+        define(register).append("zext i1 ");
+        writeRegister(boolReg).append(" to i32\n");
     }
 
     @Override
-    public String visitComparison(ComparisonContext exp) {
-        String register = "%" + makeId();
-        String boolResult = binOp(exp.op, exp.lhs, exp.rhs);
-        emit(register + " = zext i1 " + boolResult + " to i32");
-        return register;
+    protected void visitComparison(int exp, int kind) {
+        int register = makeId();
+        int boolResult = binOp(kind, exp);
+        emitZext(register, boolResult);
+        result = register(register);
     }
 
     @Override
-    public String visitPrintStatement(PrintStatementContext stat) {
-        String argument = visit(stat.exp());
-        emit("call i32 (i8*, ...) @printf(i8* getelementptr inbounds ([4 x i8], [4 x i8]* @out_fmt, i32 0, i32 0), i32 " + argument  + ")");
-        return null;
+    protected void visitPrint(int stat) {
+        countExecution(stat, ProfileCounters.STATEMENT);
+        long argument = evaluate(ir.exp(stat));
+        if (libcIo) {
+            llvm.append("  ").append(PRINTF_CALL);
+        } else {
+            llvm.append("  call void ").append(LlvmRuntime.PRINT_FUNCTION).append("(i32 ");
+        }
+        writeOperand(argument).append(")\n");
     }
 
     @Override
-    public String visitReadExpression(ReadExpressionContext stat) {
-        String tempVar = "%" + makeId();
-        emit(tempVar + " = alloca i32");
-        emit("call i32 (i8*, ...) @scanf(i8* getelementptr inbounds ([3 x i8], [3 x i8]* @in_fmt, i32 0, i32 0), i32* " + tempVar  + ")");
-        String result = "%" + makeId();
-        emit(result + " = load i32, i32* "+ tempVar);
-        return result;
+    protected void visitRead(int read) {
+        int register = makeId();
+        if (libcIo) {
+            llvm.append("  ").append(SCANF_CALL).append(INPUT_SLOT).append(")\n");
+            define(register).append("load i32, i32* ").append(INPUT_SLOT).append('\n');
+        } else {
+            define(register).append("call i32 ").append(LlvmRuntime.READ_FUNCTION).append("()\n");
+        }
+        result = register(register);
+    }
+
+    /**
+     * Generates a condition as branches to the given labels, which ends the current block.
+     * Comparisons branch on the i1 of their icmp, and ! and the short-circuit operators only
+     * rearrange the branches of their operands, so none of them extends its result to an i32
+     * that is then compared to 0 again. A && or || operand starts a block of its own.
+     */
+    private void emitCondition(int condition, int trueLabel, int falseLabel) {
+        int kind = ir.kind(condition);
+        switch (kind) {
+            case Ir.EQ: case Ir.NE: case Ir.GT: case Ir.GE: case Ir.LE: case Ir.LT:
+                emitConditionalBranch(binOp(kind, condition), trueLabel, falseLabel);
+                break;
+            case Ir.NOT:
+                emitCondition(ir.lhs(condition), falseLabel, trueLabel);
+                break;
+            case Ir.AND: case Ir.OR: {
+                int rhsLabel = makeId();
+                if (kind == Ir.AND) {
+                    emitCondition(ir.lhs(condition), rhsLabel, falseLabel);
+                } else {
+                    emitCondition(ir.lhs(condition), trueLabel, rhsLabel);
+                }
+                emitLabel(rhsLabel);
+                emitCondition(ir.rhs(condition), trueLabel, falseLabel);
+                break;
+            }
+            default: {
+                long conditionReg = evaluate(condition);
+                int conditionAsBool = makeId();
+                emitInstruction(conditionAsBool, "icmp ne i32 ", constant(0), conditionReg);
+                emitConditionalBranch(conditionAsBool, trueLabel, falseLabel);
+            }
+        }
     }
 
-    private String visitCondition(ExpContext condition) {
-        String conditionReg = visit(condition);
-        String conditionAsBool = "%" + makeId();
-        emit(conditionAsBool + " = icmp ne i32 0, " + conditionReg);
-        return conditionAsBool;
+    /**
+     * Whether the condition branches from more than one block (see {@link #emitCondition}).
+     */
+    private boolean hasShortCircuit(int condition) {
+        int kind = ir.kind(condition);
+        if (kind == Ir.NOT) return hasShortCircuit(ir.lhs(condition));
+        return kind == Ir.AND || kind == Ir.OR;
     }
 
     @Override
-    public String visitIfStatement(IfStatementContext ifStatement) {
-        boolean hasElse = ifStatement.elseCase != null;
-        String thenLabel = makeId();
-        String endLabel = makeId();
-        String elseLabel = hasElse ? makeId() : endLabel;
-        String cond = visitCondition(ifStatement.cond);
-        emit("br i1 " + cond + ", label %" + thenLabel + ", label %" + elseLabel);
+    protected void visitIf(int ifStatement) {
+        countExecution(ifStatement, ProfileCounters.STATEMENT);
+        // Profiling counts how often the condition is false, which takes an else block. So do
+        // the phi nodes of SSA mode when the condition can be false in several blocks, since they
+        // need a single block to come from.
+        boolean hasElse = ir.listLength(ir.elseList(ifStatement)) > 0 || profile != null
+            || ssa && hasShortCircuit(ir.exp(ifStatement));
+        int thenLabel = makeId();
+        int endLabel = makeId();
+        int elseLabel = hasElse ? makeId() : endLabel;
+        emitCondition(ir.exp(ifStatement), thenLabel, elseLabel);
+        int elseEnd = currentBlock;
+        long[] valuesBefore = ssa ? values.clone() : null;
         emitLabel(thenLabel);
-        for(StatContext stat: ifStatement.thenCase) {
-            visit(stat);
-        }
-        emit("br label %" + endLabel);
+        countExecution(ifStatement, ProfileCounters.THEN);
+        visitList(ir.thenList(ifStatement));
+        emitBranch(endLabel);
+        int thenEnd = currentBlock;
+        long[] thenValues = values;
+        values = valuesBefore;
         if(hasElse) {
             emitLabel(elseLabel);
-            for(StatContext stat: ifStatement.elseCase) {
-                visit(stat);
-            }
-            emit("br label %" + endLabel);
+            countExecution(ifStatement, ProfileCounters.ELSE);
+            visitList(ir.elseList(ifStatement));
+            emitBranch(endLabel);
+            elseEnd = currentBlock;
         }
         emitLabel(endLabel);
-        return null;
+        if (ssa) {
+            for (int var = 0; var < values.length; var++) {
+                if (thenValues[var] != values[var]) {
+                    int phi = makeId();
+                    emitPhi(phi, thenValues[var], thenEnd, values[var], elseEnd);
+                    values[var] = register(phi);
+                }
+            }
+        }
+    }
+
+    private void emitPhi(int register, long value1, int block1, long value2, int block2) {
+        define(register).append("phi i32 [ ");
+        writeOperand(value1).append(", ");
+        writeBlockName(block1);
+        llvm.append(" ], [ ");
+        writeOperand(value2).append(", ");
+        writeBlockName(block2);
+        llvm.append(" ]\n");
     }
 
     @Override
-    public String visitWhileLoop(WhileLoopContext loop) {
-        String condLabel = makeId();
-        String bodyLabel = makeId();
-        String endLabel = makeId();
-        emit("br label %" + condLabel);
-        emitLabel(condLabel);
-        String cond = visitCondition(loop.cond);
-        emit("br i1 " + cond + ", label %" + bodyLabel + ", label %" + endLabel);
+    protected void visitWhile(int loop) {
+        countExecution(loop, ProfileCounters.STATEMENT);
+        int condLabel = makeId();
+        int bodyLabel = makeId();
+        int endLabel = makeId();
+        emitBranch(condLabel);
+        LoopHeader header = new LoopHeader(condLabel, assignedVariables(loop));
+        emitCondition(ir.exp(loop), bodyLabel, endLabel);
+        long[] exitValues = ssa ? values.clone() : null;
         emitLabel(bodyLabel);
-        for(StatContext stat: loop.body) {
-            visit(stat);
-        }
-        emit("br label %" + condLabel);
+        countExecution(loop, ProfileCounters.LOOP);
+        visitList(ir.loopBody(loop));
+        emitBranch(condLabel);
+        header.close();
+        values = exitValues;
         emitLabel(endLabel);
-        return null;
     }
 
     @Override
-    public String visitForLoop(ForLoopContext loop) {
-        String condLabel = makeId();
-        String bodyLabel = makeId();
-        String endLabel = makeId();
-        String start = visit(loop.start);
-        String end = visit(loop.end);
-        String step = loop.step == null ? "1" : visit(loop.step);
-        emit("store i32 " + start + ", i32* %" + loop.ID().getText());
-        emit("br label %" + condLabel);
-        emitLabel(condLabel);
-        String condReg = "%" + makeId();
-        String indexReg = readVar(loop.ID().getText());
-        emit(condReg + " = icmp sle i32 " + indexReg + ", " + end);
-        emit("br i1 " + condReg + ", label %" + bodyLabel + ", label %" + endLabel);
+    protected void visitFor(int loop) {
+        countExecution(loop, ProfileCounters.STATEMENT);
+        int condLabel = makeId();
+        int bodyLabel = makeId();
+        int endLabel = makeId();
+        // Like the other backends, the loop variable already holds the start when the end and
+        // step are evaluated
+        int loopVar = ir.slot(loop);
+        writeVar(loopVar, evaluate(ir.forStart(loop)));
+        long end = evaluate(ir.forEnd(loop));
+        long step = evaluate(ir.forStep(loop));
+        emitBranch(condLabel);
+        LoopHeader header = new LoopHeader(condLabel, assignedVariables(loop));
+        int condReg = makeId();
+        long indexReg = readVar(loopVar);
+        emitInstruction(condReg, "icmp sle i32 ", indexReg, end);
+        emitConditionalBranch(condReg, bodyLabel, endLabel);
+        long[] exitValues = ssa ? values.clone() : null;
         emitLabel(bodyLabel);
-        for(StatContext stat: loop.body) {
-            visit(stat);
-        }
-        String indexReg2 = readVar(loop.ID().getText());
-        String incrementedIndexReg = "%" + makeId();
-        emit(incrementedIndexReg + " = " + "add i32 " + indexReg2 + ", " + step);
-        emit("store i32 " + incrementedIndexReg + ", i32* %" + loop.ID().getText());
-        emit("br label %" + condLabel);
+        countExecution(loop, ProfileCounters.LOOP);
+        visitList(ir.loopBody(loop));
+        long indexReg2 = readVar(loopVar);
+        int incrementedIndexReg = makeId();
+        emitInstruction(incrementedIndexReg, "add i32 ", indexReg2, step);
+        writeVar(loopVar, register(incrementedIndexReg));
+        emitBranch(condLabel);
+        header.close();
+        values = exitValues;
         emitLabel(endLabel);
-        return null;
-    }
-
-    private String visitLogicalExpression(ExpContext lhs, ExpContext rhs, boolean and) {
-        String lhsReg = visit(lhs);
-        String resultMem = "%" + makeId();
-        emit(resultMem + " = alloca i32");
-        emit("store i32 " + lhsReg + ", i32* " + resultMem);
-        String lhsAsBool = "%" + makeId();
-        emit(lhsAsBool + " = icmp ne i32 0, " + lhsReg);
-        String rhsLabel = makeId();
-        String endLabel = makeId();
-        if(and) {
-            emit("br i1 " + lhsAsBool + ", label %" + rhsLabel + ", label %" + endLabel);
-        } else {
-            emit("br i1 " + lhsAsBool + ", label %" + endLabel + ", label %" + rhsLabel);
+    }
+
+    /**
+     * The phi nodes at the start of a loop's condition block in SSA mode. The values flowing in
+     * from the end of the loop body are only known once the body has been generated, so the
+     * condition block and the body are captured by the writer and written after the phi nodes
+     * when the loop is closed.
+     */
+    private class LoopHeader {
+        private final int entryBlock;
+        private final int[] slots;
+        private final long[] entryValues;
+        private final int[] phis;
+
+        /**
+         * Starts the condition block of a loop whose body assigns the given variables. Must be
+         * called right after branching to it from the block before the loop.
+         */
+        LoopHeader(int label, BitSet assignedVariables) {
+            this.entryBlock = currentBlock;
+            emitLabel(label);
+            if (!ssa) {
+                slots = null;
+                entryValues = null;
+                phis = null;
+                return;
+            }
+            llvm.beginCapture();
+            slots = assignedVariables.stream().toArray();
+            entryValues = new long[slots.length];
+            phis = new int[slots.length];
+            for (int i = 0; i < slots.length; i++) {
+                entryValues[i] = values[slots[i]];
+                phis[i] = makeId();
+                values[slots[i]] = register(phis[i]);
+            }
+        }
+
+        /**
+         * Adds the phi nodes. Must be called right after branching back to the condition from
+         * the end of the loop body.
+         */
+        void close() {
+            if (!ssa) return;
+            ByteArrayOutputStream loop = llvm.endCapture();
+            for (int i = 0; i < slots.length; i++) {
+                emitPhi(phis[i], entryValues[i], entryBlock, values[slots[i]], currentBlock);
+            }
+            llvm.append(loop);
         }
-        emitLabel(rhsLabel);
-        String rhsReg = visit(rhs);
-        emit("store i32 " + rhsReg + ", i32* " + resultMem);
-        emit("br label %" + endLabel);
-        emitLabel(endLabel);
-        String resultReg = "%" + makeId();
-        emit(resultReg + " = load i32, i32* " + resultMem);
-        return resultReg;
     }
 
-    @Override
-    public String visitAndExpression(AndExpressionContext exp) {
-        return visitLogicalExpression(exp.lhs, exp.rhs, true);
+    private BitSet assignedVariables(int loop) {
+        BitSet assigned = new BitSet();
+        if (ir.kind(loop) == Ir.FOR) assigned.set(ir.slot(loop));
+        ir.collectAssignedVariables(ir.loopBody(loop), assigned);
+        return assigned;
     }
 
     @Override
-    public String visitOrExpression(OrExpressionContext exp) {
-        return visitLogicalExpression(exp.lhs, exp.rhs, false);
+    protected void visitLogical(int exp, int kind) {
+        long lhsReg = evaluate(ir.lhs(exp));
+        int lhsAsBool = makeId();
+        emitInstruction(lhsAsBool, "icmp ne i32 ", constant(0), lhsReg);
+        int rhsLabel = makeId();
+        int endLabel = makeId();
+        if(kind == Ir.AND) {
+            emitConditionalBranch(lhsAsBool, rhsLabel, endLabel);
+        } else {
+            emitConditionalBranch(lhsAsBool, endLabel, rhsLabel);
+        }
+        int lhsBlock = currentBlock;
+        emitLabel(rhsLabel);
+        long rhsReg = evaluate(ir.rhs(exp));
+        emitBranch(endLabel);
+        int rhsBlock = currentBlock;
+        emitLabel(endLabel);
+        int resultReg = makeId();
+        emitPhi(resultReg, lhsReg, lhsBlock, rhsReg, rhsBlock);
+        result = register(resultReg);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,297 @@
+package minicomp;
+
+import java.util.function.IntConsumer;
+
+/**
+ * The int I/O runtime that {@link LlvmCompiler} writes into every module, unless
+ * {@link Options#libcIo} asks for printf and scanf. It works like the one that
+ * {@link JvmRuntimeGenerator} generates for the JVM:
+ *
+ * <ul>
+ * <li>Output is formatted by hand into a static buffer, which is written to stdout with write(2)
+ *     when it's full and when the program exits (the flush function is registered with atexit in
+ *     main's entry block). If the program crashes, e.g. on a division by zero, the buffered
+ *     output is lost, as it is with printf when stdout isn't a terminal.</li>
+ * <li>Input is read from stdin in blocks with read(2) and parsed by hand. Numbers are separated
+ *     by whitespace and may have a sign. Reading past the end of the input or input that isn't
+ *     a number ends the program with exit status 1, after writing the buffered output.</li>
+ * </ul>
+ *
+ * Only the parts the program uses are written. All names contain a dollar sign, so they can't
+ * conflict with variables. The declarations of write and read assume a 64 bit size_t.
+ */
+class LlvmRuntime {
+    static final String PRINT_FUNCTION = "@$print";
+    static final String READ_FUNCTION = "@$read";
+    static final String FLUSH_FUNCTION = "@$flush";
+    static final String PROFILE_FUNCTION = "@$print_profile";
+    static final String PROFILE_COUNTER = "@$profile.";
+
+    private static final String BUFFER_SIZE = "65536";
+    private static final String BUFFER_TYPE = "[" + BUFFER_SIZE + " x i8]";
+    // The position after which a formatted int might not fit anymore: the buffer's size minus a
+    // minus sign, ten digits and a line break
+    private static final String LAST_SAFE_POSITION = "65524";
+    private static final String INPUT_ERROR = "Invalid or missing input\n";
+
+    private static final String OUTPUT =
+        "@$output = internal global " + BUFFER_TYPE + " zeroinitializer\n" +
+        "@$output_position = internal global i64 0\n" +
+        "define internal void @$flush() {\n" +
+        " entry:\n" +
+        "  %length = load i64, i64* @$output_position\n" +
+        "  store i64 0, i64* @$output_position\n" +
+        "  br label %loop\n" +
+        " loop:\n" +
+        "  %written = phi i64 [0, %entry], [%next, %continue]\n" +
+        "  %done = icmp sge i64 %written, %length\n" +
+        "  br i1 %done, label %end, label %write\n" +
+        " write:\n" +
+        "  %start = getelementptr inbounds " + BUFFER_TYPE + ", " + BUFFER_TYPE + "* @$output, i64 0, i64 %written\n" +
+        "  %rest = sub i64 %length, %written\n" +
+        "  %result = call i64 @write(i32 1, i8* %start, i64 %rest)\n" +
+        // There's nobody to report write errors to, so the rest of the output is dropped
+        "  %failed = icmp slt i64 %result, 1\n" +
+        "  br i1 %failed, label %end, label %continue\n" +
+        " continue:\n" +
+        "  %next = add i64 %written, %result\n" +
+        "  br label %loop\n" +
+        " end:\n" +
+        "  ret void\n" +
+        "}\n" +
+        "define internal void @$print(i32 %value) {\n" +
+        " entry:\n" +
+        "  %position = load i64, i64* @$output_position\n" +
+        "  %full = icmp sgt i64 %position, " + LAST_SAFE_POSITION + "\n" +
+        "  br i1 %full, label %flush, label %format\n" +
+        " flush:\n" +
+        "  call void @$flush()\n" +
+        "  br label %format\n" +
+        " format:\n" +
+        "  %start = phi i64 [%position, %entry], [0, %flush]\n" +
+        // The magnitude is computed in 64 bits, since not every negative int can be negated. The
+        // minus sign is always stored and then overwritten by the first digit for other numbers.
+        "  %negative = icmp slt i32 %value, 0\n" +
+        "  %wide = sext i32 %value to i64\n" +
+        "  %negated = sub i64 0, %wide\n" +
+        "  %magnitude = select i1 %negative, i64 %negated, i64 %wide\n" +
+        "  %sign_pointer = getelementptr inbounds " + BUFFER_TYPE + ", " + BUFFER_TYPE + "* @$output, i64 0, i64 %start\n" +
+        "  store i8 45, i8* %sign_pointer\n" +
+        "  %sign_length = zext i1 %negative to i64\n" +
+        "  %first = add i64 %start, %sign_length\n" +
+        "  br label %count\n" +
+        " count:\n" +
+        "  %rest = phi i64 [%magnitude, %format], [%rest_next, %count]\n" +
+        "  %length = phi i64 [1, %format], [%length_next, %count]\n" +
+        "  %rest_next = udiv i64 %rest, 10\n" +
+        "  %length_next = add i64 %length, 1\n" +
+        "  %more = icmp uge i64 %rest, 10\n" +
+        "  br i1 %more, label %count, label %counted\n" +
+        " counted:\n" +
+        "  %end = add i64 %first, %length\n" +
+        "  %newline_pointer = getelementptr inbounds " + BUFFER_TYPE + ", " + BUFFER_TYPE + "* @$output, i64 0, i64 %end\n" +
+        "  store i8 10, i8* %newline_pointer\n" +
+        "  %after = add i64 %end, 1\n" +
+        "  store i64 %after, i64* @$output_position\n" +
+        "  br label %digit\n" +
+        " digit:\n" +
+        "  %digit_end = phi i64 [%end, %counted], [%digit_position, %digit]\n" +
+        "  %remaining = phi i64 [%magnitude, %counted], [%remaining_next, %digit]\n" +
+        "  %digit_position = sub i64 %digit_end, 1\n" +
+        "  %digit_value = urem i64 %remaining, 10\n" +
+        "  %digit_byte = trunc i64 %digit_value to i8\n" +
+        "  %character = add i8 %digit_byte, 48\n" +
+        "  %digit_pointer = getelementptr inbounds " + BUFFER_TYPE + ", " + BUFFER_TYPE + "* @$output, i64 0, i64 %digit_position\n" +
+        "  store i8 %character, i8* %digit_pointer\n" +
+        "  %remaining_next = udiv i64 %remaining, 10\n" +
+        "  %again = icmp ne i64 %remaining_next, 0\n" +
+        "  br i1 %again, label %digit, label %done\n" +
+        " done:\n" +
+        "  ret void\n" +
+        "}\n";
+
+    private static final String INPUT =
+        "@$input = internal global " + BUFFER_TYPE + " zeroinitializer\n" +
+        "@$input_position = internal global i64 0\n" +
+        "@$input_limit = internal global i64 0\n" +
+        "@$input_error = internal constant " + stringType(INPUT_ERROR) + " c\"" + escape(INPUT_ERROR) + "\"\n" +
+        "declare i64 @read(i32, i8*, i64)\n" +
+        "declare void @exit(i32)\n" +
+        // Returns the next byte of the input, or -1 at its end
+        "define internal i32 @$read_byte() {\n" +
+        " entry:\n" +
+        "  %position = load i64, i64* @$input_position\n" +
+        "  %limit = load i64, i64* @$input_limit\n" +
+        "  %empty = icmp eq i64 %position, %limit\n" +
+        "  br i1 %empty, label %fill, label %next\n" +
+        " fill:\n" +
+        "  %buffer = getelementptr inbounds " + BUFFER_TYPE + ", " + BUFFER_TYPE + "* @$input, i64 0, i64 0\n" +
+        "  %count = call i64 @read(i32 0, i8* %buffer, i64 " + BUFFER_SIZE + ")\n" +
+        "  %end = icmp slt i64 %count, 1\n" +
+        "  br i1 %end, label %at_end, label %filled\n" +
+        " filled:\n" +
+        "  store i64 %count, i64* @$input_limit\n" +
+        "  br label %next\n" +
+        " next:\n" +
+        "  %index = phi i64 [%position, %entry], [0, %filled]\n" +
+        "  %pointer = getelementptr inbounds " + BUFFER_TYPE + ", " + BUFFER_TYPE + "* @$input, i64 0, i64 %index\n" +
+        "  %byte = load i8, i8* %pointer\n" +
+        "  %index_next = add i64 %index, 1\n" +
+        "  store i64 %index_next, i64* @$input_position\n" +
+        "  %result = zext i8 %byte to i32\n" +
+        "  ret i32 %result\n" +
+        " at_end:\n" +
+        "  store i64 0, i64* @$input_position\n" +
+        "  store i64 0, i64* @$input_limit\n" +
+        "  ret i32 -1\n" +
+        "}\n" +
+        "define internal i32 @$read() {\n" +
+        " entry:\n" +
+        "  br label %skip\n" +
+        " skip:\n" +
+        "  %c = call i32 @$read_byte()\n" +
+        "  %space = icmp sle i32 %c, 32\n" +
+        "  br i1 %space, label %whitespace, label %sign\n" +
+        " whitespace:\n" +
+        "  %end = icmp slt i32 %c, 0\n" +
+        "  br i1 %end, label %fail, label %skip\n" +
+        " sign:\n" +
+        "  %minus = icmp eq i32 %c, 45\n" +
+        "  %plus = icmp eq i32 %c, 43\n" +
+        "  %signed = or i1 %minus, %plus\n" +
+        "  br i1 %signed, label %after_sign, label %first_digit\n" +
+        " after_sign:\n" +
+        "  %after_sign_c = call i32 @$read_byte()\n" +
+        "  br label %first_digit\n" +
+        " first_digit:\n" +
+        "  %first_c = phi i32 [%c, %sign], [%after_sign_c, %after_sign]\n" +
+        "  %first_value = sub i32 %first_c, 48\n" +
+        "  %valid = icmp ult i32 %first_value, 10\n" +
+        "  br i1 %valid, label %digits, label %fail\n" +
+        // The number is accumulated as a negative value, so that -2147483648 can be read, too
+        " digits:\n" +
+        "  %accumulated = phi i32 [0, %first_digit], [%accumulated_next, %digits]\n" +
+        "  %digit = phi i32 [%first_value, %first_digit], [%next_digit, %digits]\n" +
+        "  %shifted = mul i32 %accumulated, 10\n" +
+        "  %accumulated_next = sub i32 %shifted, %digit\n" +
+        "  %next_c = call i32 @$read_byte()\n" +
+        "  %next_digit = sub i32 %next_c, 48\n" +
+        "  %more = icmp ult i32 %next_digit, 10\n" +
+        "  br i1 %more, label %digits, label %done\n" +
+        " done:\n" +
+        "  %positive = sub i32 0, %accumulated_next\n" +
+        "  %result = select i1 %minus, i32 %accumulated_next, i32 %positive\n" +
+        "  ret i32 %result\n" +
+        " fail:\n";
+
+    // The end of @$read, after the output has been flushed if there is any: exit isn't enough
+    // for that, since lli doesn't call the functions registered with atexit when the program
+    // calls exit
+    private static final String INPUT_FAILURE =
+        "  %message = getelementptr inbounds " + stringType(INPUT_ERROR) + ", " + stringType(INPUT_ERROR) + "* @$input_error, i64 0, i64 0\n" +
+        "  call i64 @write(i32 2, i8* %message, i64 " + INPUT_ERROR.length() + ")\n" +
+        "  call void @exit(i32 1)\n" +
+        "  unreachable\n" +
+        "}\n";
+
+    private static String stringType(String text) {
+        return "[" + text.length() + " x i8]";
+    }
+
+    private static String escape(String text) {
+        return text.replace("\n", "\\0A").replace("\0", "\\00");
+    }
+
+    private static final String PROFILE_FORMAT = "%d:%d %s %lld\n\0";
+
+    /**
+     * Writes the counters of {@link Options#profile}, each a global of its own named
+     * {@link #PROFILE_COUNTER} followed by its number, and the function that prints them, which
+     * main registers with atexit. Since the counters are only known once the program has been
+     * generated, this comes after main, along with tables of the counters and their positions
+     * that the function walks.
+     */
+    static void writeProfile(LlvmWriter llvm, ProfileCounters profile) {
+        int size = profile.size();
+        String format = stringType(PROFILE_FORMAT);
+        String lines = "[" + size + " x i32]";
+        String kinds = "[" + size + " x i8*]";
+        String counters = "[" + size + " x i64*]";
+        llvm.append("declare i32 @dprintf(i32, i8*, ...)\n");
+        llvm.append("@$profile_format = internal constant ").append(format).append(" c\"").append(escape(PROFILE_FORMAT)).append("\"\n");
+        for (int kind = 0; kind < ProfileCounters.KIND_NAMES.length; kind++) {
+            String name = ProfileCounters.KIND_NAMES[kind] + "\0";
+            llvm.append("@$profile_kind").append(kind).append(" = internal constant ").append(stringType(name))
+                .append(" c\"").append(escape(name)).append("\"\n");
+        }
+        for (int counter = 0; counter < size; counter++) {
+            llvm.append(PROFILE_COUNTER).append(counter).append(" = internal global i64 0\n");
+        }
+        llvm.append("@$profile_lines = internal constant ").append(lines).append(' ');
+        writeTable(llvm, size, counter -> llvm.append("i32 ").append(profile.line(counter)));
+        llvm.append("@$profile_columns = internal constant ").append(lines).append(' ');
+        writeTable(llvm, size, counter -> llvm.append("i32 ").append(profile.column(counter)));
+        llvm.append("@$profile_kinds = internal constant ").append(kinds).append(' ');
+        writeTable(llvm, size, counter -> {
+            String name = stringType(ProfileCounters.KIND_NAMES[profile.kind(counter)] + "\0");
+            llvm.append("i8* getelementptr inbounds (").append(name).append(", ").append(name)
+                .append("* @$profile_kind").append(profile.kind(counter)).append(", i64 0, i64 0)");
+        });
+        llvm.append("@$profile_counters = internal constant ").append(counters).append(' ');
+        writeTable(llvm, size, counter -> llvm.append("i64* ").append(PROFILE_COUNTER).append(counter));
+        llvm.append(
+            "define internal void " + PROFILE_FUNCTION + "() {\n" +
+            " entry:\n" +
+            "  %format = getelementptr inbounds " + format + ", " + format + "* @$profile_format, i64 0, i64 0\n" +
+            "  br label %loop\n" +
+            " loop:\n" +
+            "  %counter = phi i64 [0, %entry], [%next, %print]\n" +
+            "  %done = icmp eq i64 %counter, " + size + "\n" +
+            "  br i1 %done, label %end, label %print\n" +
+            " print:\n" +
+            "  %line_pointer = getelementptr inbounds " + lines + ", " + lines + "* @$profile_lines, i64 0, i64 %counter\n" +
+            "  %line = load i32, i32* %line_pointer\n" +
+            "  %column_pointer = getelementptr inbounds " + lines + ", " + lines + "* @$profile_columns, i64 0, i64 %counter\n" +
+            "  %column = load i32, i32* %column_pointer\n" +
+            "  %kind_pointer = getelementptr inbounds " + kinds + ", " + kinds + "* @$profile_kinds, i64 0, i64 %counter\n" +
+            "  %kind = load i8*, i8** %kind_pointer\n" +
+            "  %count_pointer_pointer = getelementptr inbounds " + counters + ", " + counters + "* @$profile_counters, i64 0, i64 %counter\n" +
+            "  %count_pointer = load i64*, i64** %count_pointer_pointer\n" +
+            "  %count = load i64, i64* %count_pointer\n" +
+            "  call i32 (i32, i8*, ...) @dprintf(i32 2, i8* %format, i32 %line, i32 %column, i8* %kind, i64 %count)\n" +
+            "  %next = add i64 %counter, 1\n" +
+            "  br label %loop\n" +
+            " end:\n" +
+            "  ret void\n" +
+            "}\n");
+    }
+
+    private static void writeTable(LlvmWriter llvm, int size, IntConsumer element) {
+        if (size == 0) {
+            llvm.append("zeroinitializer\n");
+            return;
+        }
+        llvm.append('[');
+        for (int counter = 0; counter < size; counter++) {
+            if (counter > 0) llvm.append(", ");
+            element.accept(counter);
+        }
+        llvm.append("]\n");
+    }
+
+    /**
+     * Writes the parts of the runtime that the program uses, in front of main. Profiling only
+     * needs atexit here, the rest of it is written by {@link #writeProfile}.
+     */
+    static void write(LlvmWriter llvm, boolean usesInput, boolean usesOutput, boolean profiles) {
+        // Both parts write, output to stdout and input errors to stderr
+        if (usesInput || usesOutput) llvm.append("declare i64 @write(i32, i8*, i64)\n");
+        if (usesOutput || profiles) llvm.append("declare i32 @atexit(void ()*)\n");
+        if (usesOutput) llvm.append(OUTPUT);
+        if (usesInput) {
+            llvm.append(INPUT);
+            if (usesOutput) llvm.append("  call void ").append(FLUSH_FUNCTION).append("()\n");
+            llvm.append(INPUT_FAILURE);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package minicomp;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Writes LLVM IR text to an output stream through a reusable buffer. Strings are expected to be
+ * ASCII (which everything in the generated IR is), and numbers are formatted directly into the
+ * buffer, so writing an instruction doesn't allocate.
+ *
+ * <p>I/O errors are thrown as UncheckedIOExceptions, so that the writer can be used from visitor
+ * methods.
+ *
+ * <p>Parts of the output can be captured instead of being written right away (see
+ * {@link #beginCapture}), so that code can be inserted in front of them once they're complete.
+ */
+class LlvmWriter {
+    private static final int BUFFER_SIZE = 1 << 16;
+    // Longest text appended in one piece without checking for space: "-2147483648"
+    private static final int MAX_NUMBER_LENGTH = 11;
+
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position = 0;
+    private OutputStream out;
+    private final Deque<OutputStream> capturedStreams = new ArrayDeque<OutputStream>();
+
+    LlvmWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    LlvmWriter append(String text) {
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            if (position == BUFFER_SIZE) flushBuffer();
+            buffer[position++] = (byte) text.charAt(i);
+        }
+        return this;
+    }
+
+    LlvmWriter append(char c) {
+        if (position == BUFFER_SIZE) flushBuffer();
+        buffer[position++] = (byte) c;
+        return this;
+    }
+
+    LlvmWriter append(int value) {
+        if (position > BUFFER_SIZE - MAX_NUMBER_LENGTH) flushBuffer();
+        // Digits are generated from the negated value, since not every negative int can be negated
+        if (value < 0) {
+            buffer[position++] = '-';
+        } else {
+            value = -value;
+        }
+        int length = 1;
+        for (int rest = value; rest <= -10; rest /= 10) {
+            length++;
+        }
+        position += length;
+        int digit = position;
+        do {
+            buffer[--digit] = (byte) ('0' - value % 10);
+            value /= 10;
+        } while (value != 0);
+        return this;
+    }
+
+    /**
+     * Redirects all output into memory until the matching call to {@link #endCapture}. Captures
+     * can be nested.
+     */
+    void beginCapture() {
+        flushBuffer();
+        capturedStreams.push(out);
+        out = new ByteArrayOutputStream();
+    }
+
+    /**
+     * Ends the innermost capture and returns what was written since it began. Further output goes
+     * wherever it went before the capture began.
+     */
+    ByteArrayOutputStream endCapture() {
+        flushBuffer();
+        ByteArrayOutputStream captured = (ByteArrayOutputStream) out;
+        out = capturedStreams.pop();
+        return captured;
+    }
+
+    /**
+     * Writes previously captured output.
+     */
+    void append(ByteArrayOutputStream captured) {
+        flushBuffer();
+        try {
+            captured.writeTo(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    void flush() {
+        flushBuffer();
+        try {
+            out.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void flushBuffer() {
+        try {
+            out.write(buffer, 0, position);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        position = 0;
+    }
+}
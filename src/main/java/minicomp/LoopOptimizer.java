@@ -0,0 +1,654 @@
+package minicomp;
+
+import java.util.*;
+import static minicomp.Ir.*;
+
+/**
+ * Optimizations of loops, run by the {@link Optimizer} on complete programs after they were
+ * simplified, from the innermost loops outwards:
+ *
+ * <ul>
+ * <li>A for loop with a positive constant step whose body only adds to or subtracts from
+ *     accumulators terms that are affine in the loop variable (like {@code s = s + i*k}, where k
+ *     isn't changed by the loop) is replaced by the closed form of the sums. The closed form is
+ *     computed with the same wrap-around as the loop, since the sums of two's complement
+ *     arithmetic are correct modulo 2^32. It's only taken if the loop variable can't overflow
+ *     and the trip count fits in an int, otherwise the original loop is run.</li>
+ * <li>A for loop whose start, end and step are constants is unrolled completely, with the loop
+ *     variable replaced by its value in each copy of the body, if it makes few enough trips and
+ *     its body is small.</li>
+ * <li>The expressions in a loop that don't depend on any variable assigned in it, and don't read
+ *     or divide by a variable, are computed once before the loop. The assignments of the
+ *     temporaries hoisted out of inner loops are moved further out if they're invariant in the
+ *     outer loop, too.</li>
+ * </ul>
+ *
+ * The new values are stored in variables whose names start with "$", so, like
+ * {@link ValueNumbering}, this is only done for complete programs.
+ */
+class LoopOptimizer {
+    // Loops are unrolled if they make at most this many trips and the copies of their body
+    // have at most MAX_UNROLLED_SIZE nodes altogether
+    static final int MAX_UNROLLED_TRIPS = 16;
+    static final int MAX_UNROLLED_SIZE = 256;
+
+    private final Ir ir;
+    private final Ir out;
+    private boolean changed = false;
+    // Whether loops were replaced by statements that leave constants to fold and dead stores
+    private boolean replaced = false;
+
+    private LoopOptimizer(Ir ir) {
+        this.ir = ir;
+        this.out = new Ir(ir);
+    }
+
+    /**
+     * Returns the simplified program with its loops optimized, or the given program if nothing
+     * changed.
+     */
+    static Ir optimize(Ir ir) {
+        if (!ir.contains(WHILE) && !ir.contains(FOR)) return ir;
+        LoopOptimizer optimizer = new LoopOptimizer(ir);
+        int body = optimizer.statements(ir.getBody());
+        if (!optimizer.changed) return ir;
+        optimizer.out.setBody(body);
+        // Hoisting only moves expressions, which are already simplified
+        return optimizer.replaced ? Optimizer.optimize(optimizer.out, new BitSet()) : optimizer.out;
+    }
+
+    private int[] stats = new int[16];
+    private int length = 0;
+
+    /**
+     * Copies the statements of the list into a new list, with the loops optimized. The
+     * statements are collected on a stack shared by all lists, like in
+     * {@link DeadCodeEliminator}.
+     */
+    private int statements(int list) {
+        int start = length;
+        for (int i = 0; i < ir.listLength(list); i++) {
+            statement(ir.listElement(list, i));
+        }
+        return endList(start);
+    }
+
+    private int endList(int start) {
+        int result = out.list(Arrays.copyOfRange(stats, start, length), length - start);
+        length = start;
+        return result;
+    }
+
+    private void add(int stat) {
+        if (length == stats.length) stats = Arrays.copyOf(stats, 2 * length);
+        stats[length++] = stat;
+    }
+
+    private void statement(int stat) {
+        int line = ir.line(stat);
+        int column = ir.column(stat);
+        switch (ir.kind(stat)) {
+            case PRINT: case ASSIGN:
+                add(out.copy(ir, stat));
+                break;
+            case IF: {
+                int thenList = statements(ir.thenList(stat));
+                add(out.ifStatement(line, column, out.copy(ir, ir.exp(stat)), thenList, statements(ir.elseList(stat))));
+                break;
+            }
+            case WHILE:
+                loop(out.whileLoop(line, column, out.copy(ir, ir.exp(stat)), statements(ir.loopBody(stat))));
+                break;
+            case FOR:
+                loop(out.forLoop(line, column, ir.slot(stat), out.copy(ir, ir.forStart(stat)), out.copy(ir, ir.forEnd(stat)),
+                                 out.copy(ir, ir.forStep(stat)), statements(ir.loopBody(stat))));
+                break;
+            default:
+                throw new IllegalStateException("Unknown statement kind: " + ir.kind(stat));
+        }
+    }
+
+    /**
+     * Adds the given loop of the new program, whose inner loops have already been optimized, to
+     * the current list, or the statements replacing it.
+     */
+    private void loop(int loop) {
+        if (out.kind(loop) == FOR && (reduce(loop) || unroll(loop))) {
+            changed = true;
+            replaced = true;
+            return;
+        }
+        add(hoistInvariants(loop));
+    }
+
+    // The variables that may change from one iteration of the loop being optimized to the next
+    private BitSet variant;
+
+    private boolean reads(int exp, BitSet variables) {
+        switch (out.kind(exp)) {
+            case CONST: return false;
+            case VAR: return variables.get(out.varSlot(exp));
+            case READ: return true;
+            case NEG: case NOT: return reads(out.lhs(exp), variables);
+            default: return reads(out.lhs(exp), variables) || reads(out.rhs(exp), variables);
+        }
+    }
+
+    private boolean reads(int exp, int slot) {
+        BitSet variables = new BitSet();
+        variables.set(slot);
+        return reads(exp, variables);
+    }
+
+    private int size(int node) {
+        switch (out.kind(node)) {
+            case CONST: case VAR: case READ: return 1;
+            case NEG: case NOT: return 1 + size(out.lhs(node));
+            case PRINT: case ASSIGN: return 1 + size(out.exp(node));
+            case IF: return 1 + size(out.exp(node)) + size(out.thenList(node)) + size(out.elseList(node));
+            case WHILE: return 1 + size(out.exp(node)) + size(out.loopBody(node));
+            case FOR:
+                return 1 + size(out.forStart(node)) + size(out.forEnd(node)) + size(out.forStep(node))
+                    + size(out.loopBody(node));
+            case LIST: {
+                int size = 1;
+                for (int i = 0; i < out.listLength(node); i++) {
+                    size += size(out.listElement(node, i));
+                }
+                return size;
+            }
+            default: return 1 + size(out.lhs(node)) + size(out.rhs(node));
+        }
+    }
+
+    /**
+     * The value of an expression as alpha*i + beta, where i is the loop variable. Either part
+     * may be ZERO.
+     */
+    private static final class Affine {
+        final int alpha;
+        final int beta;
+
+        Affine(int alpha, int beta) {
+            this.alpha = alpha;
+            this.beta = beta;
+        }
+    }
+
+    // Stands for a term that is zero in the expressions built below, which leave it out
+    private static final int ZERO = -1;
+
+    /**
+     * Splits the expression into its coefficient of the loop variable and the rest, or returns
+     * null if it isn't affine in the loop variable. Everything else the expression reads must be
+     * invariant.
+     */
+    private Affine affine(int exp, int loopSlot) {
+        switch (out.kind(exp)) {
+            case CONST:
+                return new Affine(ZERO, copy(exp));
+            case VAR:
+                if (out.varSlot(exp) == loopSlot) return new Affine(out.constant(1), ZERO);
+                return variant.get(out.varSlot(exp)) ? null : new Affine(ZERO, copy(exp));
+            case NEG: {
+                Affine operand = affine(out.lhs(exp), loopSlot);
+                return operand == null ? null : new Affine(neg(operand.alpha), neg(operand.beta));
+            }
+            case ADD: case SUB: {
+                Affine lhs = affine(out.lhs(exp), loopSlot);
+                Affine rhs = lhs == null ? null : affine(out.rhs(exp), loopSlot);
+                if (rhs == null) return null;
+                if (out.kind(exp) == ADD) return new Affine(add(lhs.alpha, rhs.alpha), add(lhs.beta, rhs.beta));
+                return new Affine(sub(lhs.alpha, rhs.alpha), sub(lhs.beta, rhs.beta));
+            }
+            case MUL: {
+                Affine lhs = affine(out.lhs(exp), loopSlot);
+                Affine rhs = lhs == null ? null : affine(out.rhs(exp), loopSlot);
+                if (rhs == null) return null;
+                if (lhs.alpha == ZERO) return new Affine(mul(lhs.beta, rhs.alpha), mul(copy(lhs.beta), rhs.beta));
+                if (rhs.alpha == ZERO) return new Affine(mul(lhs.alpha, rhs.beta), mul(lhs.beta, copy(rhs.beta)));
+                return null;
+            }
+            case SHL: {
+                if (out.kind(out.rhs(exp)) != CONST) return invariantTerm(exp);
+                Affine lhs = affine(out.lhs(exp), loopSlot);
+                if (lhs == null) return null;
+                int factor = 1 << out.constValue(out.rhs(exp));
+                return new Affine(mul(lhs.alpha, out.constant(factor)), mul(lhs.beta, out.constant(factor)));
+            }
+            default:
+                return invariantTerm(exp);
+        }
+    }
+
+    /**
+     * Returns the expression as a term without the loop variable, or null if it isn't invariant.
+     */
+    private Affine invariantTerm(int exp) {
+        if (reads(exp, variant)) return null;
+        return new Affine(ZERO, copy(exp));
+    }
+
+    // Builders of the expressions of the closed forms that fold constants and leave out ZERO
+
+    private int copy(int exp) {
+        return exp == ZERO ? ZERO : out.copy(out, exp);
+    }
+
+    private int neg(int exp) {
+        if (exp == ZERO) return ZERO;
+        if (out.kind(exp) == CONST) return out.constant(-out.constValue(exp));
+        return out.unary(NEG, exp);
+    }
+
+    private int add(int lhs, int rhs) {
+        if (lhs == ZERO) return rhs;
+        if (rhs == ZERO) return lhs;
+        if (out.kind(lhs) == CONST && out.kind(rhs) == CONST) return out.constant(out.constValue(lhs) + out.constValue(rhs));
+        return out.binary(ADD, lhs, rhs);
+    }
+
+    private int sub(int lhs, int rhs) {
+        if (rhs == ZERO) return lhs;
+        if (lhs == ZERO) return neg(rhs);
+        if (out.kind(lhs) == CONST && out.kind(rhs) == CONST) return out.constant(out.constValue(lhs) - out.constValue(rhs));
+        return out.binary(SUB, lhs, rhs);
+    }
+
+    private int mul(int lhs, int rhs) {
+        if (lhs == ZERO || rhs == ZERO) return ZERO;
+        if (out.kind(lhs) == CONST && out.kind(rhs) == CONST) return out.constant(out.constValue(lhs) * out.constValue(rhs));
+        if (out.isConst(lhs, 1)) return rhs;
+        if (out.isConst(rhs, 1)) return lhs;
+        return out.binary(MUL, lhs, rhs);
+    }
+
+    /**
+     * Divides a non-negative value by a positive constant.
+     */
+    private int div(int lhs, int divisor) {
+        if (divisor == 1) return lhs;
+        if (out.kind(lhs) == CONST) return out.constant(out.constValue(lhs) / divisor);
+        return out.binary(DIV, lhs, out.constant(divisor));
+    }
+
+    private int rem(int lhs, int divisor) {
+        if (out.kind(lhs) == CONST) return out.constant(out.constValue(lhs) % divisor);
+        return out.binary(REM, lhs, out.constant(divisor));
+    }
+
+    private int temporaries = 0;
+
+    /**
+     * Returns the given value if it's a constant or a variable whose value the loop doesn't
+     * change, or otherwise a variable that it's assigned to. Either way, the result must be
+     * copied for each use.
+     */
+    private int stable(int loop, int exp, String name) {
+        if (out.kind(exp) == CONST || out.kind(exp) == VAR && !variant.get(out.varSlot(exp))) return exp;
+        int slot = out.addVariable("$" + name + temporaries++);
+        add(out.assign(out.line(loop), out.column(loop), slot, exp));
+        return out.variable(slot);
+    }
+
+    /**
+     * Replaces a for loop whose body only updates accumulators by affine terms with the closed
+     * form of the sums. Each statement of the body must be s = s + e, s = e + s or s = s - e,
+     * where s is only assigned by this statement and e is affine in the loop variable and doesn't
+     * read any accumulator or input. Returns whether the loop was replaced.
+     */
+    private boolean reduce(int loop) {
+        int step = out.forStep(loop);
+        if (out.kind(step) != CONST || out.constValue(step) <= 0) return false;
+        int loopSlot = out.slot(loop);
+        int start = out.forStart(loop);
+        int end = out.forEnd(loop);
+        int body = out.loopBody(loop);
+        int statements = out.listLength(body);
+        if (reads(start, loopSlot) || reads(end, loopSlot)) return false;
+        variant = new BitSet();
+        variant.set(loopSlot);
+        for (int i = 0; i < statements; i++) {
+            int stat = out.listElement(body, i);
+            if (out.kind(stat) != ASSIGN || variant.get(out.slot(stat))) return false;
+            variant.set(out.slot(stat));
+        }
+        int[] accumulators = new int[statements];
+        Affine[] terms = new Affine[statements];
+        for (int i = 0; i < statements; i++) {
+            int stat = out.listElement(body, i);
+            int exp = out.exp(stat);
+            int slot = out.slot(stat);
+            int kind = out.kind(exp);
+            if (kind != ADD && kind != SUB) return false;
+            int term;
+            if (out.kind(out.lhs(exp)) == VAR && out.varSlot(out.lhs(exp)) == slot) {
+                term = out.rhs(exp);
+            } else if (kind == ADD && out.kind(out.rhs(exp)) == VAR && out.varSlot(out.rhs(exp)) == slot) {
+                term = out.lhs(exp);
+            } else {
+                return false;
+            }
+            BitSet others = (BitSet) variant.clone();
+            others.clear(loopSlot);
+            if (reads(term, others)) return false;
+            Affine affine = affine(term, loopSlot);
+            if (affine == null) return false;
+            accumulators[i] = slot;
+            terms[i] = kind == ADD ? affine : new Affine(neg(affine.alpha), neg(affine.beta));
+        }
+        int c = out.constValue(step);
+        // The closed form is only valid if i + c doesn't overflow for the last i <= end, and
+        // the trip count (end - start) / c + 1 is computed without overflow
+        boolean constantBounds = out.kind(start) == CONST && out.kind(end) == CONST;
+        if (out.kind(end) == CONST && out.constValue(end) > Integer.MAX_VALUE - c) return false;
+        if (constantBounds) {
+            long difference = (long) out.constValue(end) - out.constValue(start);
+            if (difference < 0 || difference >= Integer.MAX_VALUE) return false;
+        }
+
+        int line = out.line(loop);
+        int column = out.column(loop);
+        int outer = length;
+        int first = stable(loop, start, "start");
+        int last = stable(loop, end, "end");
+        int taken = length;
+        int difference = stable(loop, sub(copy(last), copy(first)), "difference");
+        int guarded = length;
+        int trips1 = stable(loop, div(copy(difference), c), "trips");
+        int trips = add(copy(trips1), out.constant(1));
+        boolean affine = false;
+        for (Affine term : terms) {
+            if (term.alpha != ZERO) affine = true;
+        }
+        // The sum of 0..trips1, computed without dividing an odd product by 2
+        int triangle = ZERO;
+        if (affine) {
+            int half = mul(div(copy(trips1), 2), copy(trips));
+            triangle = stable(loop, add(half, mul(rem(copy(trips1), 2), div(copy(trips), 2))), "triangle");
+        }
+        for (int i = 0; i < statements; i++) {
+            Affine term = terms[i];
+            int initial = add(mul(term.alpha, copy(first)), term.beta);
+            int alpha = copy(term.alpha);
+            int sum = add(mul(copy(trips), initial), mul(mul(alpha, out.constant(c)), copy(triangle)));
+            if (sum == ZERO) continue;
+            add(out.assign(line, column, accumulators[i], add(out.variable(accumulators[i]), sum)));
+        }
+        add(out.assign(line, column, loopSlot, add(copy(first), mul(copy(trips), out.constant(c)))));
+        if (!constantBounds) {
+            int guard = out.binary(AND, out.binary(GE, copy(difference), out.constant(0)),
+                    out.binary(LT, copy(difference), out.constant(Integer.MAX_VALUE)));
+            if (out.kind(last) != CONST) {
+                guard = out.binary(AND, out.binary(LE, copy(last), out.constant(Integer.MAX_VALUE - c)), guard);
+            }
+            int closedForm = endList(guarded);
+            int fallback = out.forLoop(line, column, loopSlot, copy(first), copy(last), step, body);
+            add(out.ifStatement(line, column, guard, closedForm, out.list(new int[] {fallback}, 1)));
+            int skip = out.assign(line, column, loopSlot, copy(first));
+            int runs = endList(taken);
+            add(out.ifStatement(line, column, out.binary(LE, copy(first), copy(last)), runs,
+                                out.list(new int[] {skip}, 1)));
+        }
+        return true;
+    }
+
+    /**
+     * Unrolls a for loop with constant bounds that makes few trips through a small body.
+     * Returns whether the loop was unrolled.
+     */
+    private boolean unroll(int loop) {
+        int start = out.forStart(loop);
+        int end = out.forEnd(loop);
+        int step = out.forStep(loop);
+        if (out.kind(start) != CONST || out.kind(end) != CONST || out.kind(step) != CONST) return false;
+        long first = out.constValue(start);
+        long last = out.constValue(end);
+        long c = out.constValue(step);
+        if (c <= 0 || first > last || last + c > Integer.MAX_VALUE) return false;
+        long trips = (last - first) / c + 1;
+        int body = out.loopBody(loop);
+        int loopSlot = out.slot(loop);
+        if (trips > MAX_UNROLLED_TRIPS || trips * size(body) > MAX_UNROLLED_SIZE) return false;
+        BitSet assigned = new BitSet();
+        out.collectAssignedVariables(body, assigned);
+        if (assigned.get(loopSlot)) return false;
+        // The copies of temporaries would be assigned more than once, with different values
+        for (int slot = assigned.nextSetBit(0); slot >= 0; slot = assigned.nextSetBit(slot + 1)) {
+            if (out.getVariableName(slot).startsWith("$")) return false;
+        }
+        for (long i = first; i <= last; i += c) {
+            for (int j = 0; j < out.listLength(body); j++) {
+                add(substitute(out.listElement(body, j), loopSlot, (int) i));
+            }
+        }
+        add(out.assign(out.line(loop), out.column(loop), loopSlot, out.constant((int) (first + trips * c))));
+        return true;
+    }
+
+    /**
+     * Copies the given node with the variable in the given slot replaced by a constant.
+     */
+    private int substitute(int node, int slot, int value) {
+        int kind = out.kind(node);
+        switch (kind) {
+            case CONST: case READ:
+                return copy(node);
+            case VAR:
+                return out.varSlot(node) == slot ? out.constant(value) : out.variable(out.varSlot(node));
+            case NEG: case NOT:
+                return out.unary(kind, substitute(out.lhs(node), slot, value));
+            case PRINT:
+                return out.print(out.line(node), out.column(node), substitute(out.exp(node), slot, value));
+            case ASSIGN:
+                return out.assign(out.line(node), out.column(node), out.slot(node), substitute(out.exp(node), slot, value));
+            case IF:
+                return out.ifStatement(out.line(node), out.column(node), substitute(out.exp(node), slot, value),
+                        substitute(out.thenList(node), slot, value), substitute(out.elseList(node), slot, value));
+            case WHILE:
+                return out.whileLoop(out.line(node), out.column(node), substitute(out.exp(node), slot, value),
+                        substitute(out.loopBody(node), slot, value));
+            case FOR:
+                return out.forLoop(out.line(node), out.column(node), out.slot(node), substitute(out.forStart(node), slot, value),
+                        substitute(out.forEnd(node), slot, value), substitute(out.forStep(node), slot, value),
+                        substitute(out.loopBody(node), slot, value));
+            case LIST: {
+                int length = out.listLength(node);
+                int[] statements = new int[length];
+                for (int i = 0; i < length; i++) {
+                    statements[i] = substitute(out.listElement(node, i), slot, value);
+                }
+                return out.list(statements, length);
+            }
+            default:
+                return out.binary(kind, substitute(out.lhs(node), slot, value), substitute(out.rhs(node), slot, value));
+        }
+    }
+
+    // The nodes of the loop being optimized whose values are invariant
+    private final BitSet invariant = new BitSet();
+
+    /**
+     * Adds the assignments of the loop's invariant expressions to the current list, followed by
+     * the loop using them, which is the given loop if there were none.
+     */
+    private int hoistInvariants(int loop) {
+        variant = new BitSet();
+        out.collectAssignedVariables(loop, variant);
+        int body = out.loopBody(loop);
+        int bodyLength = out.listLength(body);
+        int[] kept = new int[bodyLength];
+        int keptLength = 0;
+        boolean hoisted = false;
+        for (int i = 0; i < bodyLength; i++) {
+            int stat = out.listElement(body, i);
+            // The temporaries of inner loops are assigned once, so if their value is invariant,
+            // it's the same in every iteration
+            if (out.kind(stat) == ASSIGN && out.getVariableName(out.slot(stat)).startsWith("$invariant")
+                && !reads(out.exp(stat), variant) && !dividesByVariable(out.exp(stat))) {
+                add(stat);
+                variant.clear(out.slot(stat));
+                hoisted = true;
+            } else {
+                kept[keptLength++] = stat;
+            }
+        }
+        int newBody = rewriteList(kept, keptLength);
+        if (newBody == -1 && hoisted) newBody = out.list(kept, keptLength);
+        int line = out.line(loop);
+        int column = out.column(loop);
+        if (out.kind(loop) == WHILE) {
+            int cond = rewrite(out.exp(loop), line, column);
+            if (cond == out.exp(loop) && newBody == -1) return loop;
+            changed = true;
+            return out.whileLoop(line, column, cond, newBody == -1 ? body : newBody);
+        }
+        if (newBody == -1) return loop;
+        changed = true;
+        return out.forLoop(line, column, out.slot(loop), out.forStart(loop), out.forEnd(loop), out.forStep(loop), newBody);
+    }
+
+    private boolean dividesByVariable(int exp) {
+        switch (out.kind(exp)) {
+            case CONST: case VAR: case READ:
+                return false;
+            case NEG: case NOT:
+                return dividesByVariable(out.lhs(exp));
+            case DIV: case REM:
+                if (out.kind(out.rhs(exp)) != CONST || out.constValue(out.rhs(exp)) == 0) return true;
+                return dividesByVariable(out.lhs(exp));
+            default:
+                return dividesByVariable(out.lhs(exp)) || dividesByVariable(out.rhs(exp));
+        }
+    }
+
+    /**
+     * Marks the invariant nodes of the expression and returns whether the expression is one.
+     * Invariant expressions don't read input or variables assigned by the loop and don't divide
+     * by anything but non-zero constants, so they can be computed before the loop, even if it's
+     * never entered.
+     */
+    private boolean markInvariant(int exp) {
+        boolean result;
+        switch (out.kind(exp)) {
+            case CONST:
+                result = true;
+                break;
+            case VAR:
+                result = !variant.get(out.varSlot(exp));
+                break;
+            case READ:
+                result = false;
+                break;
+            case NEG: case NOT:
+                result = markInvariant(out.lhs(exp));
+                break;
+            case DIV: case REM: {
+                boolean lhs = markInvariant(out.lhs(exp));
+                boolean rhs = markInvariant(out.rhs(exp));
+                int divisor = out.rhs(exp);
+                result = lhs && rhs && out.kind(divisor) == CONST && out.constValue(divisor) != 0;
+                break;
+            }
+            default: {
+                boolean lhs = markInvariant(out.lhs(exp));
+                boolean rhs = markInvariant(out.rhs(exp));
+                result = lhs && rhs;
+            }
+        }
+        invariant.set(exp, result);
+        return result;
+    }
+
+    /**
+     * Rewrites the statements with their invariant expressions replaced by temporaries, or
+     * returns -1 if there were none.
+     */
+    private int rewriteList(int[] list, int listLength) {
+        int[] rewritten = null;
+        for (int i = 0; i < listLength; i++) {
+            int stat = rewriteStatement(list[i]);
+            if (stat != list[i] && rewritten == null) rewritten = Arrays.copyOf(list, listLength);
+            if (rewritten != null) rewritten[i] = stat;
+        }
+        return rewritten == null ? -1 : out.list(rewritten, listLength);
+    }
+
+    private int rewriteList(int list) {
+        int length = out.listLength(list);
+        int[] statements = new int[length];
+        for (int i = 0; i < length; i++) {
+            statements[i] = out.listElement(list, i);
+        }
+        int result = rewriteList(statements, length);
+        return result == -1 ? list : result;
+    }
+
+    private int rewriteStatement(int stat) {
+        int line = out.line(stat);
+        int column = out.column(stat);
+        switch (out.kind(stat)) {
+            case PRINT: {
+                int exp = rewrite(out.exp(stat), line, column);
+                return exp == out.exp(stat) ? stat : out.print(line, column, exp);
+            }
+            case ASSIGN: {
+                int exp = rewrite(out.exp(stat), line, column);
+                return exp == out.exp(stat) ? stat : out.assign(line, column, out.slot(stat), exp);
+            }
+            case IF: {
+                int cond = rewrite(out.exp(stat), line, column);
+                int thenList = rewriteList(out.thenList(stat));
+                int elseList = rewriteList(out.elseList(stat));
+                if (cond == out.exp(stat) && thenList == out.thenList(stat) && elseList == out.elseList(stat)) return stat;
+                return out.ifStatement(line, column, cond, thenList, elseList);
+            }
+            case WHILE: {
+                int cond = rewrite(out.exp(stat), line, column);
+                int body = rewriteList(out.loopBody(stat));
+                if (cond == out.exp(stat) && body == out.loopBody(stat)) return stat;
+                return out.whileLoop(line, column, cond, body);
+            }
+            case FOR: {
+                int start = rewrite(out.forStart(stat), line, column);
+                int end = rewrite(out.forEnd(stat), line, column);
+                int step = rewrite(out.forStep(stat), line, column);
+                int body = rewriteList(out.loopBody(stat));
+                if (start == out.forStart(stat) && end == out.forEnd(stat) && step == out.forStep(stat)
+                    && body == out.loopBody(stat)) {
+                    return stat;
+                }
+                return out.forLoop(line, column, out.slot(stat), start, end, step, body);
+            }
+            default:
+                throw new IllegalStateException("Unknown statement kind: " + out.kind(stat));
+        }
+    }
+
+    /**
+     * Replaces the largest invariant subexpressions of the expression with temporaries, whose
+     * assignments are added to the current list with the given position.
+     */
+    private int rewrite(int exp, int line, int column) {
+        markInvariant(exp);
+        return replaceInvariant(exp, line, column);
+    }
+
+    private int replaceInvariant(int exp, int line, int column) {
+        int kind = out.kind(exp);
+        if (kind == CONST || kind == VAR || kind == READ) return exp;
+        // Negating or inverting a variable is cheaper than a temporary
+        if (invariant.get(exp) && !((kind == NEG || kind == NOT) && out.kind(out.lhs(exp)) == VAR)) {
+            int slot = out.addVariable("$invariant" + out.getVariableCount());
+            add(out.assign(line, column, slot, exp));
+            return out.variable(slot);
+        }
+        if (kind == NEG || kind == NOT) {
+            int operand = replaceInvariant(out.lhs(exp), line, column);
+            return operand == out.lhs(exp) ? exp : out.unary(kind, operand);
+        }
+        int lhs = replaceInvariant(out.lhs(exp), line, column);
+        int rhs = replaceInvariant(out.rhs(exp), line, column);
+        return lhs == out.lhs(exp) && rhs == out.rhs(exp) ? exp : out.binary(kind, lhs, rhs);
+    }
+}
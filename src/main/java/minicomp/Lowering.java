@@ -0,0 +1,195 @@
+package minicomp;
+
+import java.util.*;
+import org.antlr.v4.runtime.*;
+import org.antlr.v4.runtime.tree.ParseTreeWalker;
+import minicomp.MiniLangParser.*;
+
+/**
+ * Turns a parse tree without syntax errors into an {@link Ir}, reporting undefined variables and
+ * integer literals that don't fit into an int on the way. Each visit method returns the IR node
+ * for the visited statement or expression. Parentheses and unary plus disappear, and for loops
+ * without a step get an explicit step of 1.
+ */
+class Lowering extends MiniLangBaseVisitor<Integer> {
+    private final Compiler.Base compiler;
+    private final Ir ir;
+
+    private Lowering(Compiler.Base compiler, Ir ir) {
+        this.compiler = compiler;
+        this.ir = ir;
+    }
+
+    /**
+     * Lowers the given program. Errors are reported to the given compiler, and the result must
+     * not be used if there were any.
+     */
+    static Ir lower(ProgContext prog, Compiler.Base compiler) {
+        Lowering lowering = new Lowering(compiler, new Ir());
+        // Variables get their slots in the order of their first assignment, so that they're
+        // known before any of their uses
+        ParseTreeWalker.DEFAULT.walk(new MiniLangBaseListener() {
+            @Override
+            public void enterAssignment(AssignmentContext assignment) {
+                lowering.ir.addVariable(assignment.ID().getText());
+            }
+
+            @Override
+            public void enterForLoop(ForLoopContext loop) {
+                lowering.ir.addVariable(loop.ID().getText());
+            }
+        }, prog);
+        lowering.ir.setBody(lowering.lowerList(prog.body));
+        return lowering.ir;
+    }
+
+    /**
+     * Lowers a single top-level statement into a program whose body consists of just that
+     * statement. The program shares the given program's variables, which must already contain
+     * all variables assigned anywhere in the source (see {@link Compiler.Base#compileStreaming}).
+     */
+    static Ir lowerStatement(StatContext stat, Ir variables, Compiler.Base compiler) {
+        Lowering lowering = new Lowering(compiler, new Ir(variables));
+        int node = lowering.visit(stat);
+        lowering.ir.setBody(lowering.ir.list(new int[] {node}, 1));
+        return lowering.ir;
+    }
+
+    private int lowerList(List<StatContext> stats) {
+        int[] nodes = new int[stats.size()];
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = visit(stats.get(i));
+        }
+        return ir.list(nodes, nodes.length);
+    }
+
+    private static int line(ParserRuleContext ctx) { return ctx.start.getLine(); }
+
+    private static int column(ParserRuleContext ctx) { return ctx.start.getCharPositionInLine(); }
+
+    private int slot(Token id) {
+        return ir.getSlot(id.getText());
+    }
+
+    @Override
+    public Integer visitPrintStatement(PrintStatementContext stat) {
+        return ir.print(line(stat), column(stat), visit(stat.exp()));
+    }
+
+    @Override
+    public Integer visitAssignment(AssignmentContext stat) {
+        return ir.assign(line(stat), column(stat), slot(stat.ID().getSymbol()), visit(stat.exp()));
+    }
+
+    @Override
+    public Integer visitIfStatement(IfStatementContext stat) {
+        int cond = visit(stat.cond);
+        int thenList = lowerList(stat.thenCase);
+        int elseList = lowerList(stat.elseCase);
+        return ir.ifStatement(line(stat), column(stat), cond, thenList, elseList);
+    }
+
+    @Override
+    public Integer visitWhileLoop(WhileLoopContext loop) {
+        int cond = visit(loop.cond);
+        return ir.whileLoop(line(loop), column(loop), cond, lowerList(loop.body));
+    }
+
+    @Override
+    public Integer visitForLoop(ForLoopContext loop) {
+        int slot = slot(loop.ID().getSymbol());
+        int start = visit(loop.start);
+        int end = visit(loop.end);
+        int step = loop.step == null ? ir.constant(1) : visit(loop.step);
+        return ir.forLoop(line(loop), column(loop), slot, start, end, step, lowerList(loop.body));
+    }
+
+    @Override
+    public Integer visitVariableExpression(VariableExpressionContext exp) {
+        String name = exp.ID().getText();
+        int slot = ir.getSlot(name);
+        if (slot < 0) {
+            compiler.error(line(exp), column(exp), "Undefined variable: " + name);
+        }
+        return ir.variable(slot);
+    }
+
+    @Override
+    public Integer visitIntegerExpression(IntegerExpressionContext exp) {
+        try {
+            return ir.constant(Integer.parseInt(exp.INT().getText()));
+        } catch (NumberFormatException e) {
+            compiler.error(line(exp), column(exp), "Integer literal too large: " + exp.INT().getText());
+            return ir.constant(0);
+        }
+    }
+
+    @Override
+    public Integer visitReadExpression(ReadExpressionContext exp) {
+        return ir.read();
+    }
+
+    @Override
+    public Integer visitParenthesizedExpression(ParenthesizedExpressionContext exp) {
+        return visit(exp.exp());
+    }
+
+    @Override
+    public Integer visitUnaryExpression(UnaryExpressionContext exp) {
+        int operand = visit(exp.exp());
+        switch (exp.op.getText()) {
+            case "+": return operand;
+            case "-": return ir.unary(Ir.NEG, operand);
+            case "!": return ir.unary(Ir.NOT, operand);
+            default: throw new IllegalStateException("Unknown unary operator");
+        }
+    }
+
+    private static final Map<String, Integer> operators = new HashMap<String, Integer>();
+    static {
+        operators.put("+", Ir.ADD);
+        operators.put("-", Ir.SUB);
+        operators.put("*", Ir.MUL);
+        operators.put("/", Ir.DIV);
+        operators.put("%", Ir.REM);
+        operators.put("==", Ir.EQ);
+        operators.put("!=", Ir.NE);
+        operators.put(">", Ir.GT);
+        operators.put(">=", Ir.GE);
+        operators.put("<", Ir.LT);
+        operators.put("<=", Ir.LE);
+        operators.put("&&", Ir.AND);
+        operators.put("||", Ir.OR);
+    }
+
+    private int binary(Token op, ExpContext lhs, ExpContext rhs) {
+        int lhsNode = visit(lhs);
+        int rhsNode = visit(rhs);
+        return ir.binary(operators.get(op.getText()), lhsNode, rhsNode);
+    }
+
+    @Override
+    public Integer visitMultiplicativeExpression(MultiplicativeExpressionContext exp) {
+        return binary(exp.op, exp.lhs, exp.rhs);
+    }
+
+    @Override
+    public Integer visitAdditiveExpression(AdditiveExpressionContext exp) {
+        return binary(exp.op, exp.lhs, exp.rhs);
+    }
+
+    @Override
+    public Integer visitComparison(ComparisonContext exp) {
+        return binary(exp.op, exp.lhs, exp.rhs);
+    }
+
+    @Override
+    public Integer visitAndExpression(AndExpressionContext exp) {
+        return binary(exp.op, exp.lhs, exp.rhs);
+    }
+
+    @Override
+    public Integer visitOrExpression(OrExpressionContext exp) {
+        return binary(exp.op, exp.lhs, exp.rhs);
+    }
+}
@@ -1,43 +1,197 @@
 package minicomp;
 
-import java.io.IOException;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
 import org.antlr.v4.runtime.*;
 
 public class Main {
     private static void usage() {
-        System.err.println("Usage: java -jar minicomp.jar {--llvm|--jvm} [sourcefile.minilang]");
+        System.err.println("Usage: java -jar minicomp.jar {--llvm|--jvm|--interp} " + Options.USAGE + " [sourcefile.minilang]");
+        System.err.println("       java -jar minicomp.jar --server [port]");
+        System.err.println("       java -jar minicomp.jar --train <snapshot> {sourcefile.minilang|tests.test_suite}...");
         System.exit(1);
     }
 
+    private static void server(String[] args) throws IOException {
+        CompileServer server = new CompileServer(Runtime.getRuntime().availableProcessors());
+        if (args.length == 1) {
+            server.serve(System.in, System.out);
+            System.err.println(server.getStatistics());
+        } else if (args.length == 2) {
+            int port = -1;
+            try {
+                port = Integer.parseInt(args[1]);
+            } catch (NumberFormatException e) {
+                usage();
+            }
+            if (port < 0 || port > 65535) usage();
+            server.listen(port);
+        } else {
+            usage();
+        }
+    }
+
+    private static void train(String[] args) throws IOException {
+        if (args.length < 3) usage();
+        List<Path> files = new ArrayList<>();
+        for (int i = 2; i < args.length; i++) {
+            files.add(Paths.get(args[i]));
+        }
+        int programs = ParserSnapshot.train(Paths.get(args[1]), files);
+        System.err.println("Wrote a snapshot of the parser's state after compiling " + programs + " programs to " + args[1]);
+    }
+
+    private static void printErrors(Iterable<String> errors) {
+        for (String error: errors) {
+            System.err.println(error);
+        }
+    }
+
+    /**
+     * The outcome of compiling a source file: the compiler, which is null if the result came
+     * from the cache, and whether there were errors.
+     */
+    private static class Result {
+        final Compiler compiler;
+        final boolean hasErrors;
+
+        Result(Compiler compiler, boolean hasErrors) {
+            this.compiler = compiler;
+            this.hasErrors = hasErrors;
+        }
+
+        Result(Compiler compiler) {
+            this(compiler, compiler.hasErrors());
+        }
+    }
+
+    /**
+     * Compiles the source and writes the generated code to stdout, or prints the errors. If a
+     * cache is given, the result is looked up there first, so that the source isn't even parsed
+     * on a hit, and stored there otherwise.
+     */
+    private static Result compile(Backend backend, Options options, String fileName, CompileCache cache) throws IOException {
+        if (cache == null) {
+            CharStream input = fileName == null ? CharStreams.fromStream(System.in) : CharStreams.fromFileName(fileName);
+            Compiler compiler = backend.newCompiler(options);
+            compiler.compile(input);
+            if (compiler.hasErrors()) {
+                printErrors(compiler.getErrors());
+            } else {
+                compiler.writeGeneratedCode(System.out);
+                System.out.flush();
+            }
+            return new Result(compiler);
+        }
+        byte[] source = fileName == null ? readAll(System.in) : Files.readAllBytes(Paths.get(fileName));
+        String key = cache.key(backend, options, source);
+        CompileCache.Entry entry = cache.lookup(key);
+        if (entry != null) {
+            if (entry.hasErrors()) {
+                printErrors(entry.getErrors());
+            } else {
+                entry.writeGeneratedCode(System.out);
+                System.out.flush();
+            }
+            return new Result(null, entry.hasErrors());
+        }
+        Compiler compiler = backend.newCompiler(options);
+        compiler.compile(CharStreams.fromStream(new ByteArrayInputStream(source)));
+        if (compiler.hasErrors()) {
+            cache.storeErrors(key, compiler.getErrors());
+            printErrors(compiler.getErrors());
+        } else {
+            cache.storeGeneratedCode(key, compiler, System.out);
+            System.out.flush();
+        }
+        return new Result(compiler);
+    }
+
+    /**
+     * Compiles the given file with --stream. Since code is written while the rest of the source
+     * is still being parsed, any errors are printed after the code generated before them.
+     */
+    private static Result compileStreaming(Backend backend, Options options, String fileName) throws IOException {
+        Compiler compiler = backend.newCompiler(options);
+        if (fileName == null || !compiler.supportsStreaming()) {
+            System.err.println(fileName == null ? "--stream needs a source file" : "The backend doesn't support --stream");
+            System.exit(1);
+        }
+        compiler.compileStreaming(Paths.get(fileName), System.out);
+        System.out.flush();
+        printErrors(compiler.getErrors());
+        return new Result(compiler);
+    }
+
+    /**
+     * Writes the --stats report: the total time, whether the result came from the cache
+     * ("hit", "miss" or "off") and the compiler's metrics, which are null on a cache hit.
+     */
+    private static void writeStats(String fileName, Backend backend, String cache, long totalNanos, CompileMetrics metrics) throws IOException {
+        String json = "{\"backend\": \"" + backend.getFlag() + "\", \"cache\": \"" + cache + "\", \"totalNanos\": " + totalNanos
+            + ", \"compilation\": " + (metrics == null ? "null" : metrics.toJson()) + "}\n";
+        if (fileName.equals("-")) {
+            System.err.print(json);
+        } else {
+            Files.write(Paths.get(fileName), json.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1 << 16];
+        int length;
+        while ((length = in.read(buffer)) != -1) {
+            bytes.write(buffer, 0, length);
+        }
+        return bytes.toByteArray();
+    }
+
     public static void main(String[] args) {
         try {
-            CharStream input;
-            if (args.length == 1) {
-                input = CharStreams.fromStream(System.in);
-            } else if (args.length == 2) {
-                input = CharStreams.fromFileName(args[1]);
-            } else {
-                usage();
+            if (args.length > 0 && args[0].equals("--server")) {
+                server(args);
                 return;
             }
-            Compiler compiler;
-            if (args[0].equals("--llvm")) {
-                compiler = new LlvmCompiler();
-            } else if (args[0].equals("--jvm")) {
-                compiler = new JavaBytecodeCompiler();
-            } else {
+            if (args.length > 0 && args[0].equals("--train")) {
+                train(args);
+                return;
+            }
+            Backend backend = args.length > 0 ? Backend.fromFlag(args[0]) : null;
+            if (backend == null) {
                 usage();
                 return;
             }
-            compiler.compile(input);
-            if (compiler.hasErrors()) {
-                for (String error: compiler.getErrors()) {
-                    System.err.println(error);
+            Options options = new Options();
+            String fileName = null;
+            for (int i = 1; i < args.length; i++) {
+                if (args[i].startsWith("--")) {
+                    if (!options.set(args[i])) usage();
+                } else if (fileName == null) {
+                    fileName = args[i];
+                } else {
+                    usage();
                 }
-                System.exit(2);
-            } else {
-                System.out.write(compiler.getGeneratedCode());
             }
+            long startTime = System.nanoTime();
+            if (options.warmStartFile != null) ParserSnapshot.load(Paths.get(options.warmStartFile));
+            CompileCache cache = null;
+            if (options.cacheDirectory != null && !backend.runsProgram() && !options.stream) {
+                cache = new CompileCache(Paths.get(options.cacheDirectory), options.cacheSize);
+                if (!cache.isUsable()) cache = null;
+            }
+            Result result = options.stream
+                ? compileStreaming(backend, options, fileName)
+                : compile(backend, options, fileName, cache);
+            Compiler compiler = result.compiler;
+            if (options.statsFile != null) {
+                String cacheStatus = cache == null ? "off" : compiler == null ? "hit" : "miss";
+                writeStats(options.statsFile, backend, cacheStatus, System.nanoTime() - startTime,
+                           compiler == null ? null : compiler.getMetrics());
+            }
+            if (result.hasErrors) System.exit(2);
         } catch(IOException e) {
             e.printStackTrace();
             System.exit(3);
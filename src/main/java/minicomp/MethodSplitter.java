@@ -0,0 +1,185 @@
+package minicomp;
+
+import java.util.*;
+import static minicomp.Ir.*;
+
+/**
+ * Decides which parts of a program {@link JavaBytecodeCompiler} moves into methods of their own,
+ * so that no generated method grows beyond the size up to which HotSpot JIT-compiles methods
+ * (HugeMethodLimit, 8000 bytes), let alone beyond the JVM's limit of 64KB per method.
+ *
+ * <p>The bytecode size of every node is estimated bottom-up. Wherever the code that would end up
+ * in one method exceeds {@link #METHOD_LIMIT}, runs of statements are split off into
+ * {@link Piece}s and big subexpressions are outlined, which reduces their size in the enclosing
+ * method to that of a call. Statement lists so long that even the calls to their pieces don't fit
+ * are split hierarchically, into pieces that call other pieces.
+ */
+class MethodSplitter {
+    /**
+     * The estimated size up to which the code of a method may grow. This leaves room for the
+     * estimates being off and for the code around calls to outlined methods.
+     */
+    static final int METHOD_LIMIT = 4000;
+    private static final int CALL_SIZE = 12;
+
+    /**
+     * Statements from..to (exclusive) of a list that are generated as a method of their own. The
+     * method contains the statements themselves if parts is null, and calls to the methods of
+     * the parts otherwise.
+     */
+    static final class Piece {
+        final int list;
+        final int from;
+        final int to;
+        final List<Piece> parts;
+
+        Piece(int list, int from, int to, List<Piece> parts) {
+            this.list = list;
+            this.from = from;
+            this.to = to;
+            this.parts = parts;
+        }
+    }
+
+    private final Ir ir;
+    private final Map<Integer, List<Piece>> pieces = new HashMap<Integer, List<Piece>>();
+    private final BitSet outlinedExpressions = new BitSet();
+
+    MethodSplitter(Ir ir) {
+        this.ir = ir;
+        int body = ir.getBody();
+        splitList(body, planStatements(body), METHOD_LIMIT / CALL_SIZE);
+    }
+
+    /**
+     * Whether anything has to be moved out of the program's main method.
+     */
+    boolean splits() {
+        return !pieces.isEmpty() || !outlinedExpressions.isEmpty();
+    }
+
+    /**
+     * The pieces that make up the given list, or null if its statements are generated in place.
+     */
+    List<Piece> getPieces(int list) {
+        return pieces.get(list);
+    }
+
+    boolean isOutlined(int exp) {
+        return outlinedExpressions.get(exp);
+    }
+
+    private int[] planStatements(int list) {
+        int[] sizes = new int[ir.listLength(list)];
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = planStatement(ir.listElement(list, i));
+        }
+        return sizes;
+    }
+
+    private int planStatement(int stat) {
+        switch (ir.kind(stat)) {
+            case PRINT:
+                return fit(6, new int[] {ir.exp(stat)}, new int[0]);
+            case ASSIGN:
+                return fit(2, new int[] {ir.exp(stat)}, new int[0]);
+            case IF:
+                return fit(6, new int[] {ir.exp(stat)}, new int[] {ir.thenList(stat), ir.elseList(stat)});
+            case WHILE:
+                return fit(6, new int[] {ir.exp(stat)}, new int[] {ir.loopBody(stat)});
+            case FOR:
+                return fit(25, new int[] {ir.forStart(stat), ir.forEnd(stat), ir.forStep(stat)}, new int[] {ir.loopBody(stat)});
+            default:
+                throw new IllegalStateException("Unknown statement kind: " + ir.kind(stat));
+        }
+    }
+
+    private int planExpression(int exp) {
+        int kind = ir.kind(exp);
+        switch (kind) {
+            case CONST: return 3;
+            case VAR: return 2;
+            case READ: return 6;
+            case NEG: return fit(1, new int[] {ir.lhs(exp)}, new int[0]);
+            case NOT: return fit(10, new int[] {ir.lhs(exp)}, new int[0]);
+            default:
+                int own = isComparison(kind) ? 10 : kind == AND || kind == OR ? 6 : 1;
+                return fit(own, new int[] {ir.lhs(exp), ir.rhs(exp)}, new int[0]);
+        }
+    }
+
+    /**
+     * Plans the operands of a node and returns its size. If it would exceed the limit, its
+     * statement lists are moved into pieces first, and then its biggest operands are outlined
+     * until it fits.
+     */
+    private int fit(int own, int[] exps, int[] lists) {
+        int[] expSizes = new int[exps.length];
+        int size = own;
+        for (int i = 0; i < exps.length; i++) {
+            expSizes[i] = planExpression(exps[i]);
+            size += expSizes[i];
+        }
+        int[][] statementSizes = new int[lists.length][];
+        int[] listSizes = new int[lists.length];
+        for (int i = 0; i < lists.length; i++) {
+            statementSizes[i] = planStatements(lists[i]);
+            listSizes[i] = splitList(lists[i], statementSizes[i], METHOD_LIMIT / CALL_SIZE);
+            size += listSizes[i];
+        }
+        if (size <= METHOD_LIMIT) return size;
+        for (int i = 0; i < lists.length; i++) {
+            if (listSizes[i] > CALL_SIZE) {
+                size -= listSizes[i];
+                listSizes[i] = splitList(lists[i], statementSizes[i], 1);
+                size += listSizes[i];
+            }
+        }
+        while (size > METHOD_LIMIT) {
+            int biggest = 0;
+            for (int i = 1; i < exps.length; i++) {
+                if (expSizes[i] > expSizes[biggest]) biggest = i;
+            }
+            // Only possible with tiny limits, since every operand is down to a call by now
+            if (expSizes[biggest] <= CALL_SIZE) break;
+            outlinedExpressions.set(exps[biggest]);
+            size += CALL_SIZE - expSizes[biggest];
+            expSizes[biggest] = CALL_SIZE;
+        }
+        return size;
+    }
+
+    /**
+     * Splits the given list into pieces unless its statements fit into the enclosing method,
+     * grouping the pieces until there are at most maxCalls of them, and returns the list's
+     * size in the enclosing method.
+     */
+    private int splitList(int list, int[] sizes, int maxCalls) {
+        int size = 0;
+        for (int statementSize: sizes) {
+            size += statementSize;
+        }
+        if (sizes.length == 0 || maxCalls > 1 && size <= METHOD_LIMIT) return size;
+        List<Piece> level = new ArrayList<Piece>();
+        for (int from = 0; from < sizes.length;) {
+            int to = from + 1;
+            int pieceSize = sizes[from];
+            while (to < sizes.length && pieceSize + sizes[to] <= METHOD_LIMIT) {
+                pieceSize += sizes[to++];
+            }
+            level.add(new Piece(list, from, to, null));
+            from = to;
+        }
+        int callsPerPiece = METHOD_LIMIT / CALL_SIZE;
+        while (level.size() > maxCalls) {
+            List<Piece> grouped = new ArrayList<Piece>();
+            for (int i = 0; i < level.size(); i += callsPerPiece) {
+                List<Piece> parts = level.subList(i, Math.min(i + callsPerPiece, level.size()));
+                grouped.add(new Piece(list, parts.get(0).from, parts.get(parts.size() - 1).to, new ArrayList<Piece>(parts)));
+            }
+            level = grouped;
+        }
+        pieces.put(list, level);
+        return level.size() * CALL_SIZE;
+    }
+}
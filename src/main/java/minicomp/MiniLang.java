@@ -0,0 +1,24 @@
+package minicomp;
+
+import org.antlr.v4.runtime.*;
+
+/**
+ * Entry point for running MiniLang programs inside the current JVM instead of writing a class
+ * file and starting a new JVM for it.
+ */
+public class MiniLang {
+    private MiniLang() {}
+
+    public static Program compile(String source) throws CompileException {
+        return compile(CharStreams.fromString(source));
+    }
+
+    public static Program compile(CharStream source) throws CompileException {
+        JavaBytecodeCompiler compiler = new JavaBytecodeCompiler();
+        compiler.compile(source);
+        if (compiler.hasErrors()) {
+            throw new CompileException(compiler.getErrors());
+        }
+        return Program.load(compiler.getGeneratedCode());
+    }
+}
@@ -0,0 +1,213 @@
+package minicomp;
+
+import java.util.BitSet;
+import static minicomp.Ir.*;
+
+/**
+ * Backend-independent simplification of the program, run by {@link Compiler.Base#compile}
+ * before code generation. The optimized program is built as a new {@link Ir}:
+ *
+ * <ul>
+ * <li>The statements that don't depend on the input are run at compile time (see
+ *     {@link PartialEvaluator}). This is only done for complete programs that aren't
+ *     profiled.</li>
+ * <li>Operators whose operands are all constants are folded using Java's int semantics. Divisions
+ *     and remainders by zero are left alone, so they still fail at run time.</li>
+ * <li>Identities like x+0, x*1 and --x are removed. Operands are only dropped altogether (as in
+ *     x*0) if they don't have side effects, i.e. they neither read nor divide by something that
+ *     may be zero (see {@link Ir#hasSideEffects}).</li>
+ * <li>Multiplications by a power of two are replaced by left shifts.</li>
+ * <li>Unreachable statements and dead stores are removed (see {@link DeadCodeEliminator}).</li>
+ * <li>Loop invariant expressions are hoisted out of loops, accumulations in for loops are replaced
+ *     by closed forms and short for loops are unrolled (see {@link LoopOptimizer}). This adds
+ *     variables, so it's only done for complete programs, and not if they're profiled.</li>
+ * <li>Expressions whose value has already been computed reuse it (see {@link ValueNumbering}).
+ *     This adds variables, so it's only done for complete programs.</li>
+ * </ul>
+ */
+public class Optimizer {
+    private final Ir ir;
+    private final Ir out;
+
+    private Optimizer(Ir ir) {
+        this.ir = ir;
+        this.out = new Ir(ir);
+    }
+
+    /**
+     * Optimizes a complete program. If it's profiled, loops are neither run at compile time nor
+     * replaced, since the statements that replace them would be counted at the loop's position.
+     */
+    public static Ir optimize(Ir ir, boolean profiled) {
+        if (profiled) return ValueNumbering.eliminate(optimize(ir, new BitSet()));
+        return ValueNumbering.eliminate(LoopOptimizer.optimize(optimize(PartialEvaluator.evaluate(ir), new BitSet())));
+    }
+
+    /**
+     * Optimizes a part of a program, after which the given variables may still be read.
+     */
+    public static Ir optimize(Ir ir, BitSet liveAtExit) {
+        Optimizer optimizer = new Optimizer(ir);
+        optimizer.out.setBody(optimizer.statements(ir.getBody()));
+        return DeadCodeEliminator.eliminate(optimizer.out, liveAtExit);
+    }
+
+    private int statements(int list) {
+        int length = ir.listLength(list);
+        int[] stats = new int[length];
+        for (int i = 0; i < length; i++) {
+            stats[i] = statement(ir.listElement(list, i));
+        }
+        return out.list(stats, length);
+    }
+
+    private int statement(int stat) {
+        int line = ir.line(stat);
+        int column = ir.column(stat);
+        switch (ir.kind(stat)) {
+            case PRINT:
+                return out.print(line, column, expression(ir.exp(stat)));
+            case ASSIGN:
+                return out.assign(line, column, ir.slot(stat), expression(ir.exp(stat)));
+            case IF: {
+                int cond = condition(ir.exp(stat));
+                int thenList = statements(ir.thenList(stat));
+                return out.ifStatement(line, column, cond, thenList, statements(ir.elseList(stat)));
+            }
+            case WHILE: {
+                int cond = condition(ir.exp(stat));
+                return out.whileLoop(line, column, cond, statements(ir.loopBody(stat)));
+            }
+            case FOR: {
+                int start = expression(ir.forStart(stat));
+                int end = expression(ir.forEnd(stat));
+                int step = expression(ir.forStep(stat));
+                return out.forLoop(line, column, ir.slot(stat), start, end, step, statements(ir.loopBody(stat)));
+            }
+            default:
+                throw new IllegalStateException("Unknown statement kind: " + ir.kind(stat));
+        }
+    }
+
+    /**
+     * Optimizes an expression whose value is only compared against zero, where x != 0 (the
+     * result of simplifying !!x) can be replaced by x.
+     */
+    private int condition(int condition) {
+        int result = expression(condition);
+        if (out.kind(result) == NE && out.isConst(out.rhs(result), 0)) {
+            return out.lhs(result);
+        }
+        return result;
+    }
+
+    private int expression(int exp) {
+        int kind = ir.kind(exp);
+        switch (kind) {
+            case CONST:
+                return out.constant(ir.constValue(exp));
+            case VAR:
+                return out.variable(ir.varSlot(exp));
+            case READ:
+                return out.read();
+            case NEG:
+                return negation(expression(ir.lhs(exp)));
+            case NOT: {
+                int operand = expression(ir.lhs(exp));
+                if (out.kind(operand) == CONST) return out.constant(out.constValue(operand) == 0 ? 1 : 0);
+                if (out.kind(operand) == NOT) {
+                    int inner = out.lhs(operand);
+                    // !!x is x itself only if x is already 0 or 1
+                    return isBoolean(inner) ? inner : out.binary(NE, inner, out.constant(0));
+                }
+                return out.unary(NOT, operand);
+            }
+            // && and || evaluate to their left operand if that decides the result and to their
+            // right operand otherwise, so a constant left operand always lets us pick one of the two.
+            case AND: {
+                int lhs = expression(ir.lhs(exp));
+                int rhs = expression(ir.rhs(exp));
+                if (out.kind(lhs) != CONST) return out.binary(AND, lhs, rhs);
+                return out.constValue(lhs) == 0 ? lhs : rhs;
+            }
+            case OR: {
+                int lhs = expression(ir.lhs(exp));
+                int rhs = expression(ir.rhs(exp));
+                if (out.kind(lhs) != CONST) return out.binary(OR, lhs, rhs);
+                return out.constValue(lhs) != 0 ? lhs : rhs;
+            }
+            default:
+                return arithmetic(kind, expression(ir.lhs(exp)), expression(ir.rhs(exp)));
+        }
+    }
+
+    private int arithmetic(int kind, int lhs, int rhs) {
+        if (out.kind(lhs) == CONST && out.kind(rhs) == CONST) {
+            int a = out.constValue(lhs);
+            int b = out.constValue(rhs);
+            switch (kind) {
+                case ADD: return out.constant(a + b);
+                case SUB: return out.constant(a - b);
+                case MUL: return out.constant(a * b);
+                case DIV: if (b != 0) return out.constant(a / b); break;
+                case REM: if (b != 0) return out.constant(a % b); break;
+                case SHL: return out.constant(a << b);
+                case EQ: return out.constant(a == b ? 1 : 0);
+                case NE: return out.constant(a != b ? 1 : 0);
+                case GT: return out.constant(a > b ? 1 : 0);
+                case GE: return out.constant(a >= b ? 1 : 0);
+                case LT: return out.constant(a < b ? 1 : 0);
+                case LE: return out.constant(a <= b ? 1 : 0);
+            }
+            return out.binary(kind, lhs, rhs);
+        }
+        switch (kind) {
+            case ADD:
+                if (out.isConst(rhs, 0)) return lhs;
+                if (out.isConst(lhs, 0)) return rhs;
+                break;
+            case SUB:
+                if (out.isConst(rhs, 0)) return lhs;
+                if (out.isConst(lhs, 0)) return negation(rhs);
+                break;
+            case MUL:
+                if (out.kind(lhs) == CONST) return multiplication(rhs, out.constValue(lhs));
+                if (out.kind(rhs) == CONST) return multiplication(lhs, out.constValue(rhs));
+                break;
+            case DIV:
+                if (out.isConst(rhs, 1)) return lhs;
+                if (out.isConst(rhs, -1)) return negation(lhs);
+                break;
+            case REM:
+                if ((out.isConst(rhs, 1) || out.isConst(rhs, -1)) && !out.hasSideEffects(lhs)) return out.constant(0);
+                break;
+        }
+        return out.binary(kind, lhs, rhs);
+    }
+
+    private int multiplication(int operand, int factor) {
+        if (factor == 1) return operand;
+        if (factor == -1) return negation(operand);
+        if (factor == 0 && !out.hasSideEffects(operand)) return out.constant(0);
+        if (factor > 0 && Integer.bitCount(factor) == 1) {
+            return out.binary(SHL, operand, out.constant(Integer.numberOfTrailingZeros(factor)));
+        }
+        return out.binary(MUL, operand, out.constant(factor));
+    }
+
+    private int negation(int operand) {
+        if (out.kind(operand) == CONST) return out.constant(-out.constValue(operand));
+        if (out.kind(operand) == NEG) return out.lhs(operand);
+        return out.unary(NEG, operand);
+    }
+
+    /**
+     * Whether the expression is known to evaluate to either 0 or 1.
+     */
+    private boolean isBoolean(int exp) {
+        int kind = out.kind(exp);
+        if (isComparison(kind) || kind == NOT) return true;
+        if (kind == AND || kind == OR) return isBoolean(out.lhs(exp)) && isBoolean(out.rhs(exp));
+        return out.isConst(exp, 0) || out.isConst(exp, 1);
+    }
+}
@@ -0,0 +1,131 @@
+package minicomp;
+
+/**
+ * Code generation options that can be given on the command line after the backend flag. Options
+ * that don't apply to the selected backend are ignored by it.
+ */
+public class Options {
+    /**
+     * LLVM: keep variables in SSA registers and join them with phi nodes instead of storing
+     * them in stack slots.
+     */
+    public boolean ssa = false;
+
+    /**
+     * LLVM: print and read with printf and scanf instead of the buffered runtime (see
+     * {@link LlvmRuntime}).
+     */
+    public boolean libcIo = false;
+
+    /**
+     * LLVM and JVM: count how often each statement is executed, each branch is entered and each
+     * loop body is run, and write the counts to stderr when the program exits (see
+     * {@link ProfileCounters}).
+     */
+    public boolean profile = false;
+
+    /**
+     * JVM: let ASM compute the stack map frames and the maximum stack size and number of locals
+     * of the generated methods instead of taking the ones tracked while generating them (see
+     * {@link FrameTracker}). ASM's dataflow analysis is much slower, but can serve to check that
+     * the tracked frames aren't the cause of a problem.
+     */
+    public boolean computeFrames = false;
+
+    /**
+     * Interpreter: the number of iterations after which a loop is compiled to JVM bytecode, or 0
+     * to interpret everything.
+     */
+    public int tierUpThreshold = 0;
+
+    /**
+     * All backends: print statistics about the parser's prediction decisions (see
+     * {@link Compiler.Base}) to stderr.
+     */
+    public boolean profileParser = false;
+
+    /**
+     * All backends: the file to write a JSON report of the compilation's {@link CompileMetrics}
+     * to, "-" for stderr, or null for no report.
+     */
+    public String statsFile = null;
+
+    /**
+     * All backends that generate code: the directory of the {@link CompileCache}, or null to
+     * always compile from scratch.
+     */
+    public String cacheDirectory = null;
+
+    /**
+     * The size in bytes up to which the compile cache may grow.
+     */
+    public long cacheSize = 256L << 20;
+
+    /**
+     * All backends: a {@link ParserSnapshot} of the lexer and parser's DFA caches to load before
+     * parsing, or null to build the caches from scratch.
+     */
+    public String warmStartFile = null;
+
+    /**
+     * LLVM and JVM: compile the source file one top-level statement at a time, writing code as it
+     * goes, instead of reading, parsing and lowering all of it first (see
+     * {@link Compiler#compileStreaming}).
+     */
+    public boolean stream = false;
+
+    static final String USAGE = "[--ssa] [--libc-io] [--profile] [--stream] [--compute-frames] [--tier-up=<iterations>] [--cache=<directory>] [--cache-size=<megabytes>] [--profile-parser] [--warm-start=<snapshot>] [--stats[=<file>]]";
+
+    /**
+     * Returns a string that identifies the options that affect the generated code, for use in
+     * the compile cache's keys.
+     */
+    public String fingerprint() {
+        return "ssa=" + ssa + ",libc-io=" + libcIo + ",profile=" + profile + ",compute-frames=" + computeFrames + ",tier-up=" + tierUpThreshold;
+    }
+
+    /**
+     * Sets the option corresponding to the given command line flag. Returns false if there is no
+     * such option.
+     */
+    public boolean set(String flag) {
+        if (flag.startsWith("--tier-up=")) {
+            try {
+                tierUpThreshold = Integer.parseInt(flag.substring("--tier-up=".length()));
+            } catch (NumberFormatException e) {
+                return false;
+            }
+            return tierUpThreshold >= 0;
+        }
+        if (flag.startsWith("--stats=")) {
+            statsFile = flag.substring("--stats=".length());
+            return !statsFile.isEmpty();
+        }
+        if (flag.startsWith("--cache=")) {
+            cacheDirectory = flag.substring("--cache=".length());
+            return !cacheDirectory.isEmpty();
+        }
+        if (flag.startsWith("--warm-start=")) {
+            warmStartFile = flag.substring("--warm-start=".length());
+            return !warmStartFile.isEmpty();
+        }
+        if (flag.startsWith("--cache-size=")) {
+            try {
+                cacheSize = Long.parseLong(flag.substring("--cache-size=".length())) << 20;
+            } catch (NumberFormatException e) {
+                return false;
+            }
+            return cacheSize >= 0;
+        }
+        switch (flag) {
+            case "--ssa": ssa = true; return true;
+            case "--libc-io": libcIo = true; return true;
+            case "--profile": profile = true; return true;
+            case "--stream": stream = true; return true;
+            case "--compute-frames": computeFrames = true; return true;
+            case "--profile-parser": profileParser = true; return true;
+            case "--stats": statsFile = "-"; return true;
+            default: return false;
+        }
+    }
+}
@@ -0,0 +1,644 @@
+package minicomp;
+
+import java.io.*;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.CRC32;
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.RuntimeMetaData;
+import org.antlr.v4.runtime.atn.*;
+import org.antlr.v4.runtime.dfa.DFA;
+import org.antlr.v4.runtime.dfa.DFAState;
+
+/**
+ * Saves the lexer and parser's DFA caches to a file and restores them in a later process, so that
+ * short-lived compiler processes don't have to rebuild them from the ATN for every prediction
+ * they make. The caches are static and start out empty in each process; {@link #train} fills
+ * them by compiling a corpus of programs and writes the snapshot, and {@link #load} installs a
+ * snapshot before the first program is parsed (see {@link Options#warmStartFile}).
+ *
+ * <p>A snapshot stores the DFA states with their ATN configurations, whose prediction contexts
+ * are shared and therefore stored once and referred to by index. The header holds checksums of the
+ * serialized ATNs and the version of the ANTLR runtime, so snapshots of a different grammar or
+ * runtime are rejected. Like the {@link CompileCache}, the snapshot is an optimization only:
+ * a snapshot that can't be read is ignored and the caches are built as usual.
+ */
+class ParserSnapshot {
+    private static final int MAGIC = 0x4d435053; // "MCPS"
+    private static final int FORMAT_VERSION = 1;
+
+    // Edge targets other than DFA states
+    private static final int NO_EDGE = -1;
+    private static final int ERROR_EDGE = -2;
+
+    // Tags of prediction contexts
+    private static final byte CONTEXT_NULL = 0;
+    private static final byte CONTEXT_EMPTY = 1;
+    private static final byte CONTEXT_REFERENCE = 2;
+    private static final byte CONTEXT_SINGLETON = 3;
+    private static final byte CONTEXT_ARRAY = 4;
+
+    // Tags of semantic contexts
+    private static final byte SEMANTIC_NONE = 0;
+    private static final byte SEMANTIC_PREDICATE = 1;
+    private static final byte SEMANTIC_PRECEDENCE = 2;
+    private static final byte SEMANTIC_AND = 3;
+    private static final byte SEMANTIC_OR = 4;
+
+    // ATNConfigSet.conflictingAlts is protected, but the parser needs it when it falls back to
+    // full-context prediction for a state that was loaded from a snapshot
+    private static final Field CONFLICTING_ALTS;
+
+    static {
+        Field field = null;
+        try {
+            field = ATNConfigSet.class.getDeclaredField("conflictingAlts");
+            field.setAccessible(true);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            field = null;
+        }
+        CONFLICTING_ALTS = field;
+    }
+
+    private ParserSnapshot() {}
+
+    /**
+     * Compiles every program in the given files with each backend that generates code, so that
+     * the DFA caches cover the decisions those programs make, and writes the snapshot. Files
+     * ending in .test_suite contribute the sources of all their tests, other files are programs.
+     * Programs with errors are compiled as well, since they exercise the parser's recovery.
+     * Returns the number of programs compiled.
+     */
+    static int train(Path snapshot, List<Path> files) throws IOException {
+        List<String> sources = new ArrayList<>();
+        for (Path file: files) {
+            if (file.toString().endsWith(".test_suite")) {
+                sources.addAll(testSuiteSources(file));
+            } else {
+                sources.add(new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+            }
+        }
+        OutputStream discard = new OutputStream() {
+            @Override
+            public void write(int b) {}
+
+            @Override
+            public void write(byte[] b, int off, int len) {}
+        };
+        for (String source: sources) {
+            for (Backend backend: Backend.values()) {
+                if (backend.runsProgram()) continue;
+                Compiler compiler = backend.newCompiler();
+                compiler.compile(CharStreams.fromString(source));
+                if (!compiler.hasErrors()) compiler.writeGeneratedCode(discard);
+            }
+        }
+        write(snapshot);
+        return sources.size();
+    }
+
+    /**
+     * Returns the sources of the tests in a cli-testrunner test suite, i.e. the contents of its
+     * "source: |" blocks.
+     */
+    private static List<String> testSuiteSources(Path file) throws IOException {
+        List<String> sources = new ArrayList<>();
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i);
+            if (!line.trim().equals("source: |")) continue;
+            int indentation = indentation(line);
+            StringBuilder source = new StringBuilder();
+            int blockIndentation = -1;
+            for (i++; i < lines.size(); i++) {
+                String sourceLine = lines.get(i);
+                if (!sourceLine.trim().isEmpty()) {
+                    if (indentation(sourceLine) <= indentation) break;
+                    if (blockIndentation < 0) blockIndentation = indentation(sourceLine);
+                    source.append(sourceLine.substring(Math.min(blockIndentation, indentation(sourceLine))));
+                }
+                source.append('\n');
+            }
+            i--;
+            sources.add(source.toString());
+        }
+        return sources;
+    }
+
+    private static int indentation(String line) {
+        int i = 0;
+        while (i < line.length() && line.charAt(i) == ' ') i++;
+        return i;
+    }
+
+    /**
+     * Writes the current contents of the lexer and parser's DFA caches to the given file. The
+     * file is replaced atomically, so processes loading it never see a partial snapshot.
+     */
+    static void write(Path path) throws IOException {
+        if (CONFLICTING_ALTS == null) throw new IOException("The ANTLR runtime's configuration sets can't be saved");
+        Path temp = Files.createTempFile(path.toAbsolutePath().getParent(), path.getFileName().toString(), ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                byte[] version = RuntimeMetaData.VERSION.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(version.length);
+                out.write(version);
+                out.writeLong(atnChecksum(MiniLangLexer._serializedATN));
+                out.writeLong(atnChecksum(MiniLangParser._serializedATN));
+                new Writer(out, true).writeDfas(MiniLangLexer._decisionToDFA);
+                new Writer(out, false).writeDfas(MiniLangParser._decisionToDFA);
+            }
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Installs the DFA states stored in the given file into the lexer and parser's caches. Does
+     * nothing and returns false if the file can't be read, was written for a different grammar
+     * or runtime, or if the caches have already been filled in this process.
+     */
+    static boolean load(Path path) {
+        if (CONFLICTING_ALTS == null) return false;
+        try {
+            Input in = new Input(Files.readAllBytes(path));
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) return false;
+            if (!new String(in.readBytes(in.readInt()), StandardCharsets.UTF_8).equals(RuntimeMetaData.VERSION)) return false;
+            if (in.readLong() != atnChecksum(MiniLangLexer._serializedATN) || in.readLong() != atnChecksum(MiniLangParser._serializedATN)) return false;
+            Reader lexer = new Reader(in, MiniLangLexer._ATN, MiniLangLexer._decisionToDFA, true);
+            Reader parser = new Reader(in, MiniLangParser._ATN, MiniLangParser._decisionToDFA, false);
+            if (!lexer.readDfas() || !parser.readDfas() || in.hasRemaining()) return false;
+            synchronized (ParserSnapshot.class) {
+                if (!lexer.isEmpty() || !parser.isEmpty()) return false;
+                lexer.install();
+                parser.install();
+            }
+            return true;
+        } catch (IOException | RuntimeException e) {
+            return false;
+        }
+    }
+
+    private static long atnChecksum(String serializedAtn) {
+        CRC32 checksum = new CRC32();
+        checksum.update(serializedAtn.getBytes(StandardCharsets.UTF_16BE));
+        return (long) serializedAtn.length() << 32 | checksum.getValue();
+    }
+
+    private static class Writer {
+        private final DataOutputStream out;
+        private final boolean lexer;
+        private final Map<PredictionContext, Integer> contexts = new IdentityHashMap<>();
+
+        Writer(DataOutputStream out, boolean lexer) {
+            this.out = out;
+            this.lexer = lexer;
+        }
+
+        void writeDfas(DFA[] dfas) throws IOException {
+            out.writeInt(dfas.length);
+            for (DFA dfa: dfas) {
+                writeDfa(dfa);
+            }
+        }
+
+        private void writeDfa(DFA dfa) throws IOException {
+            List<DFAState> states = new ArrayList<>(dfa.states.values());
+            states.sort(Comparator.comparingInt(state -> state.stateNumber));
+            Map<DFAState, Integer> indices = new IdentityHashMap<>();
+            for (DFAState state: states) {
+                indices.put(state, indices.size());
+            }
+            out.writeBoolean(dfa.isPrecedenceDfa());
+            out.writeInt(states.size());
+            for (DFAState state: states) {
+                writeState(state);
+            }
+            for (DFAState state: states) {
+                writeEdges(state.edges, indices);
+            }
+            DFAState s0 = dfa.s0;
+            if (dfa.isPrecedenceDfa()) {
+                // The start states for each precedence are the edges of a placeholder state
+                writeEdges(s0.edges, indices);
+            } else {
+                out.writeInt(s0 == null ? NO_EDGE : target(s0, indices));
+            }
+        }
+
+        private void writeEdges(DFAState[] edges, Map<DFAState, Integer> indices) throws IOException {
+            if (edges == null) {
+                out.writeInt(-1);
+                return;
+            }
+            out.writeInt(edges.length);
+            for (DFAState edge: edges) {
+                out.writeInt(edge == null ? NO_EDGE : edge == ATNSimulator.ERROR ? ERROR_EDGE : target(edge, indices));
+            }
+        }
+
+        private int target(DFAState state, Map<DFAState, Integer> indices) throws IOException {
+            Integer index = indices.get(state);
+            if (index == null) throw new IOException("DFA edge to a state that isn't in the DFA");
+            return index;
+        }
+
+        private void writeState(DFAState state) throws IOException {
+            out.writeInt(state.stateNumber);
+            out.writeBoolean(state.isAcceptState);
+            out.writeInt(state.prediction);
+            out.writeBoolean(state.requiresFullContext);
+            writeActions(state.lexerActionExecutor);
+            if (state.predicates == null) {
+                out.writeInt(-1);
+            } else {
+                out.writeInt(state.predicates.length);
+                for (DFAState.PredPrediction prediction: state.predicates) {
+                    writeSemanticContext(prediction.pred);
+                    out.writeInt(prediction.alt);
+                }
+            }
+            writeConfigs(state.configs);
+        }
+
+        private void writeConfigs(ATNConfigSet configs) throws IOException {
+            out.writeBoolean(configs.fullCtx);
+            out.writeInt(configs.uniqueAlt);
+            BitSet conflictingAlts;
+            try {
+                conflictingAlts = (BitSet) CONFLICTING_ALTS.get(configs);
+            } catch (IllegalAccessException e) {
+                throw new IOException(e);
+            }
+            if (conflictingAlts == null) {
+                out.writeInt(-1);
+            } else {
+                long[] words = conflictingAlts.toLongArray();
+                out.writeInt(words.length);
+                for (long word: words) {
+                    out.writeLong(word);
+                }
+            }
+            out.writeBoolean(configs.hasSemanticContext);
+            out.writeBoolean(configs.dipsIntoOuterContext);
+            out.writeInt(configs.size());
+            for (ATNConfig config: configs.configs) {
+                out.writeInt(config.state.stateNumber);
+                out.writeInt(config.alt);
+                writeContext(config.context);
+                writeSemanticContext(config.semanticContext);
+                out.writeInt(config.reachesIntoOuterContext);
+                if (lexer) {
+                    LexerATNConfig lexerConfig = (LexerATNConfig) config;
+                    if (lexerConfig.hasPassedThroughNonGreedyDecision() || config.semanticContext != SemanticContext.NONE) {
+                        throw new IOException("Lexer predicates and non-greedy lexer decisions can't be saved");
+                    }
+                    writeActions(lexerConfig.getLexerActionExecutor());
+                }
+            }
+        }
+
+        /**
+         * Writes a prediction context. Contexts are numbered in the order in which their
+         * definitions end, and ones that have already been written are written as a reference.
+         */
+        private void writeContext(PredictionContext context) throws IOException {
+            if (context == null) {
+                out.writeByte(CONTEXT_NULL);
+            } else if (context == PredictionContext.EMPTY) {
+                out.writeByte(CONTEXT_EMPTY);
+            } else if (contexts.containsKey(context)) {
+                out.writeByte(CONTEXT_REFERENCE);
+                out.writeInt(contexts.get(context));
+            } else if (context instanceof SingletonPredictionContext) {
+                SingletonPredictionContext singleton = (SingletonPredictionContext) context;
+                out.writeByte(CONTEXT_SINGLETON);
+                writeContext(singleton.parent);
+                out.writeInt(singleton.returnState);
+                contexts.put(context, contexts.size());
+            } else if (context instanceof ArrayPredictionContext) {
+                ArrayPredictionContext array = (ArrayPredictionContext) context;
+                out.writeByte(CONTEXT_ARRAY);
+                out.writeInt(array.returnStates.length);
+                for (int i = 0; i < array.returnStates.length; i++) {
+                    writeContext(array.parents[i]);
+                    out.writeInt(array.returnStates[i]);
+                }
+                contexts.put(context, contexts.size());
+            } else {
+                throw new IOException("Unknown prediction context " + context.getClass().getName());
+            }
+        }
+
+        private void writeSemanticContext(SemanticContext context) throws IOException {
+            if (context == SemanticContext.NONE) {
+                out.writeByte(SEMANTIC_NONE);
+            } else if (context instanceof SemanticContext.Predicate) {
+                SemanticContext.Predicate predicate = (SemanticContext.Predicate) context;
+                out.writeByte(SEMANTIC_PREDICATE);
+                out.writeInt(predicate.ruleIndex);
+                out.writeInt(predicate.predIndex);
+                out.writeBoolean(predicate.isCtxDependent);
+            } else if (context instanceof SemanticContext.PrecedencePredicate) {
+                out.writeByte(SEMANTIC_PRECEDENCE);
+                out.writeInt(((SemanticContext.PrecedencePredicate) context).precedence);
+            } else if (context instanceof SemanticContext.AND || context instanceof SemanticContext.OR) {
+                Collection<SemanticContext> operands = ((SemanticContext.Operator) context).getOperands();
+                out.writeByte(context instanceof SemanticContext.AND ? SEMANTIC_AND : SEMANTIC_OR);
+                out.writeInt(operands.size());
+                for (SemanticContext operand: operands) {
+                    writeSemanticContext(operand);
+                }
+            } else {
+                throw new IOException("Unknown semantic context " + context.getClass().getName());
+            }
+        }
+
+        private void writeActions(LexerActionExecutor executor) throws IOException {
+            if (executor == null) {
+                out.writeInt(-1);
+                return;
+            }
+            LexerAction[] actions = executor.getLexerActions();
+            out.writeInt(actions.length);
+            for (LexerAction action: actions) {
+                out.writeByte(action.getActionType().ordinal());
+                switch (action.getActionType()) {
+                    case CHANNEL: out.writeInt(((LexerChannelAction) action).getChannel()); break;
+                    case MODE: out.writeInt(((LexerModeAction) action).getMode()); break;
+                    case PUSH_MODE: out.writeInt(((LexerPushModeAction) action).getMode()); break;
+                    case TYPE: out.writeInt(((LexerTypeAction) action).getType()); break;
+                    case MORE: case POP_MODE: case SKIP: break;
+                    default: throw new IOException("Lexer actions of type " + action.getActionType() + " can't be saved");
+                }
+            }
+        }
+    }
+
+    /**
+     * The contents of a snapshot file. Snapshots are loaded at startup, when all code is still
+     * interpreted, so this reads from an array directly instead of going through the layers of
+     * a DataInputStream or ByteBuffer.
+     */
+    private static class Input {
+        private final byte[] bytes;
+        private int position = 0;
+
+        Input(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        boolean hasRemaining() {
+            return position < bytes.length;
+        }
+
+        byte readByte() {
+            return bytes[position++];
+        }
+
+        boolean readBoolean() {
+            return bytes[position++] != 0;
+        }
+
+        int readInt() {
+            int value = (bytes[position] & 0xff) << 24 | (bytes[position + 1] & 0xff) << 16 | (bytes[position + 2] & 0xff) << 8 | bytes[position + 3] & 0xff;
+            position += 4;
+            return value;
+        }
+
+        long readLong() {
+            return (long) readInt() << 32 | readInt() & 0xffffffffL;
+        }
+
+        byte[] readBytes(int length) {
+            byte[] result = Arrays.copyOfRange(bytes, position, position + length);
+            position += length;
+            return result;
+        }
+    }
+
+    private static class Reader {
+        private final Input in;
+        private final ATN atn;
+        private final DFA[] dfas;
+        private final boolean lexer;
+        private final List<PredictionContext> contexts = new ArrayList<>();
+        private final DFAState[][] states;
+        private final DFAState[][] startStates;
+
+        Reader(Input in, ATN atn, DFA[] dfas, boolean lexer) {
+            this.in = in;
+            this.atn = atn;
+            this.dfas = dfas;
+            this.lexer = lexer;
+            this.states = new DFAState[dfas.length][];
+            this.startStates = new DFAState[dfas.length][];
+        }
+
+        /**
+         * Reads the states of all DFAs without installing them yet. Returns false if the snapshot
+         * doesn't fit the DFAs.
+         */
+        boolean readDfas() throws IOException {
+            if (in.readInt() != dfas.length) return false;
+            for (int i = 0; i < dfas.length; i++) {
+                if (!readDfa(i)) return false;
+            }
+            return true;
+        }
+
+        private boolean readDfa(int decision) throws IOException {
+            if (in.readBoolean() != dfas[decision].isPrecedenceDfa()) return false;
+            DFAState[] dfaStates = new DFAState[in.readInt()];
+            for (int i = 0; i < dfaStates.length; i++) {
+                dfaStates[i] = readState();
+            }
+            for (DFAState state: dfaStates) {
+                state.edges = readEdges(dfaStates);
+            }
+            states[decision] = dfaStates;
+            if (dfas[decision].isPrecedenceDfa()) {
+                startStates[decision] = readEdges(dfaStates);
+            } else {
+                int s0 = in.readInt();
+                startStates[decision] = s0 == NO_EDGE ? null : new DFAState[] {dfaStates[s0]};
+            }
+            return true;
+        }
+
+        private DFAState[] readEdges(DFAState[] dfaStates) throws IOException {
+            int length = in.readInt();
+            if (length < 0) return null;
+            DFAState[] edges = new DFAState[length];
+            for (int i = 0; i < length; i++) {
+                int target = in.readInt();
+                edges[i] = target == NO_EDGE ? null : target == ERROR_EDGE ? ATNSimulator.ERROR : dfaStates[target];
+            }
+            return edges;
+        }
+
+        private DFAState readState() throws IOException {
+            int stateNumber = in.readInt();
+            boolean isAcceptState = in.readBoolean();
+            int prediction = in.readInt();
+            boolean requiresFullContext = in.readBoolean();
+            LexerActionExecutor executor = readActions();
+            DFAState.PredPrediction[] predicates = null;
+            int predicateCount = in.readInt();
+            if (predicateCount >= 0) {
+                predicates = new DFAState.PredPrediction[predicateCount];
+                for (int i = 0; i < predicateCount; i++) {
+                    SemanticContext predicate = readSemanticContext();
+                    predicates[i] = new DFAState.PredPrediction(predicate, in.readInt());
+                }
+            }
+            DFAState state = new DFAState(readConfigs());
+            state.stateNumber = stateNumber;
+            state.isAcceptState = isAcceptState;
+            state.prediction = prediction;
+            state.requiresFullContext = requiresFullContext;
+            state.lexerActionExecutor = executor;
+            state.predicates = predicates;
+            return state;
+        }
+
+        private ATNConfigSet readConfigs() throws IOException {
+            boolean fullCtx = in.readBoolean();
+            ATNConfigSet configs = lexer ? new OrderedATNConfigSet() : new ATNConfigSet(fullCtx);
+            configs.uniqueAlt = in.readInt();
+            int words = in.readInt();
+            if (words >= 0) {
+                long[] conflictingAlts = new long[words];
+                for (int i = 0; i < words; i++) {
+                    conflictingAlts[i] = in.readLong();
+                }
+                try {
+                    CONFLICTING_ALTS.set(configs, BitSet.valueOf(conflictingAlts));
+                } catch (IllegalAccessException e) {
+                    throw new IOException(e);
+                }
+            }
+            configs.hasSemanticContext = in.readBoolean();
+            configs.dipsIntoOuterContext = in.readBoolean();
+            int size = in.readInt();
+            for (int i = 0; i < size; i++) {
+                ATNState state = atn.states.get(in.readInt());
+                int alt = in.readInt();
+                PredictionContext context = readContext();
+                SemanticContext semanticContext = readSemanticContext();
+                int reachesIntoOuterContext = in.readInt();
+                ATNConfig config = lexer
+                    ? new LexerATNConfig(state, alt, context, readActions())
+                    : new ATNConfig(state, alt, context, semanticContext);
+                config.reachesIntoOuterContext = reachesIntoOuterContext;
+                // The configurations were already merged when the snapshot was taken, so they are
+                // added directly to keep their order
+                configs.configs.add(config);
+            }
+            configs.setReadonly(true);
+            return configs;
+        }
+
+        private PredictionContext readContext() throws IOException {
+            byte tag = in.readByte();
+            switch (tag) {
+                case CONTEXT_NULL: return null;
+                case CONTEXT_EMPTY: return PredictionContext.EMPTY;
+                case CONTEXT_REFERENCE: return contexts.get(in.readInt());
+                case CONTEXT_SINGLETON: {
+                    PredictionContext parent = readContext();
+                    PredictionContext context = SingletonPredictionContext.create(parent, in.readInt());
+                    contexts.add(context);
+                    return context;
+                }
+                case CONTEXT_ARRAY: {
+                    int length = in.readInt();
+                    PredictionContext[] parents = new PredictionContext[length];
+                    int[] returnStates = new int[length];
+                    for (int i = 0; i < length; i++) {
+                        parents[i] = readContext();
+                        returnStates[i] = in.readInt();
+                    }
+                    PredictionContext context = new ArrayPredictionContext(parents, returnStates);
+                    contexts.add(context);
+                    return context;
+                }
+                default: throw new IOException("Unknown prediction context tag " + tag);
+            }
+        }
+
+        private SemanticContext readSemanticContext() throws IOException {
+            byte tag = in.readByte();
+            switch (tag) {
+                case SEMANTIC_NONE: return SemanticContext.NONE;
+                case SEMANTIC_PREDICATE: {
+                    int ruleIndex = in.readInt();
+                    int predIndex = in.readInt();
+                    return new SemanticContext.Predicate(ruleIndex, predIndex, in.readBoolean());
+                }
+                case SEMANTIC_PRECEDENCE: return new SemanticContext.PrecedencePredicate(in.readInt());
+                case SEMANTIC_AND:
+                case SEMANTIC_OR: {
+                    int count = in.readInt();
+                    SemanticContext context = readSemanticContext();
+                    for (int i = 1; i < count; i++) {
+                        SemanticContext operand = readSemanticContext();
+                        context = tag == SEMANTIC_AND ? SemanticContext.and(context, operand) : SemanticContext.or(context, operand);
+                    }
+                    return context;
+                }
+                default: throw new IOException("Unknown semantic context tag " + tag);
+            }
+        }
+
+        private LexerActionExecutor readActions() throws IOException {
+            int length = in.readInt();
+            if (length < 0) return null;
+            LexerAction[] actions = new LexerAction[length];
+            for (int i = 0; i < length; i++) {
+                LexerActionType type = LexerActionType.values()[in.readByte()];
+                switch (type) {
+                    case CHANNEL: actions[i] = new LexerChannelAction(in.readInt()); break;
+                    case MODE: actions[i] = new LexerModeAction(in.readInt()); break;
+                    case PUSH_MODE: actions[i] = new LexerPushModeAction(in.readInt()); break;
+                    case TYPE: actions[i] = new LexerTypeAction(in.readInt()); break;
+                    case MORE: actions[i] = LexerMoreAction.INSTANCE; break;
+                    case POP_MODE: actions[i] = LexerPopModeAction.INSTANCE; break;
+                    case SKIP: actions[i] = LexerSkipAction.INSTANCE; break;
+                    default: throw new IOException("Unknown lexer action type " + type);
+                }
+            }
+            return new LexerActionExecutor(actions);
+        }
+
+        boolean isEmpty() {
+            for (DFA dfa: dfas) {
+                if (!dfa.states.isEmpty()) return false;
+            }
+            return true;
+        }
+
+        void install() {
+            for (int i = 0; i < dfas.length; i++) {
+                DFA dfa = dfas[i];
+                for (DFAState state: states[i]) {
+                    dfa.states.put(state, state);
+                }
+                DFAState[] start = startStates[i];
+                if (start == null) continue;
+                if (dfa.isPrecedenceDfa()) {
+                    for (int precedence = 0; precedence < start.length; precedence++) {
+                        if (start[precedence] != null) dfa.setPrecedenceStartState(precedence, start[precedence]);
+                    }
+                } else {
+                    dfa.s0 = start[0];
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,434 @@
+package minicomp;
+
+import java.util.*;
+import static minicomp.Ir.*;
+
+/**
+ * Runs the parts of a complete program that don't depend on its input at compile time, run by
+ * the {@link Optimizer} before it simplifies the program. Variables start out as 0, so their
+ * values are known until they're assigned something that depends on a read. The residual
+ * program only contains the statements that depend on the input, with the known values of the
+ * variables they read substituted, so a program without reads is reduced to prints of
+ * constants.
+ *
+ * <ul>
+ * <li>Assignments of known values are dropped. The value is only assigned ("materialized") when
+ *     the variable may be read or changed by residual code whose path through the program isn't
+ *     known, i.e. before a residual loop that assigns it and at the end of a residual branch
+ *     after which its value isn't known anymore.</li>
+ * <li>If statements whose condition is known are replaced by the branch that is taken, loops
+ *     whose conditions are known in every iteration by the statements of each iteration, as
+ *     long as those are only prints of constants. Loops that leave any other residual code are
+ *     kept, since unrolling them only makes the program bigger.</li>
+ * <li>Expressions that would fail at run time, like divisions by zero, are left to do so.</li>
+ * </ul>
+ *
+ * Running loops at compile time is limited to {@link #MAX_STEPS} statements and loop iterations
+ * for the whole program, and a loop is only unrolled if that adds at most
+ * {@link #MAX_UNROLLED_STATEMENTS} prints to the residual program. Otherwise the loop is kept
+ * with the values of the variables it assigns when it's entered.
+ */
+class PartialEvaluator {
+    static final int MAX_STEPS = 1 << 20;
+    static final int MAX_UNROLLED_STATEMENTS = 4096;
+
+    // The result of evaluating an expression whose value isn't known
+    private static final long UNKNOWN = Long.MAX_VALUE;
+
+    private final Ir ir;
+    private final Ir out;
+    // The values of the variables, where they're known
+    private final int[] values;
+    private final BitSet known = new BitSet();
+    // The known variables whose value hasn't been assigned in the residual program
+    private final BitSet stale = new BitSet();
+    // The slots of the variables assigned by each loop and if statement, indexed by node
+    private final Map<Integer, int[]> assignedVariables = new HashMap<>();
+    private int steps = 0;
+    private int emitted = 0;
+    // The number of residual statements emitted that aren't prints of constants
+    private int dependent = 0;
+
+    private PartialEvaluator(Ir ir) {
+        this.ir = ir;
+        this.out = new Ir(ir);
+        this.values = new int[ir.getVariableCount()];
+        known.set(0, ir.getVariableCount());
+    }
+
+    static Ir evaluate(Ir ir) {
+        PartialEvaluator evaluator = new PartialEvaluator(ir);
+        evaluator.out.setBody(evaluator.statements(ir.getBody()));
+        return evaluator.out;
+    }
+
+    private int[] stats = new int[16];
+    private int length = 0;
+
+    /**
+     * Evaluates the statements of the list and returns the list of residual statements. These
+     * are collected on a stack shared by all lists, like in {@link DeadCodeEliminator}.
+     */
+    private int statements(int list) {
+        int start = length;
+        evaluateStatements(list);
+        return endList(start);
+    }
+
+    private void evaluateStatements(int list) {
+        for (int i = 0; i < ir.listLength(list); i++) {
+            statement(ir.listElement(list, i));
+        }
+    }
+
+    private int endList(int start) {
+        int result = out.list(Arrays.copyOfRange(stats, start, length), length - start);
+        length = start;
+        return result;
+    }
+
+    private void add(int stat) {
+        if (length == stats.length) stats = Arrays.copyOf(stats, 2 * length);
+        stats[length++] = stat;
+        emitted++;
+        if (out.kind(stat) != PRINT || out.kind(out.exp(stat)) != CONST) dependent++;
+    }
+
+    private void statement(int stat) {
+        steps++;
+        int line = ir.line(stat);
+        int column = ir.column(stat);
+        switch (ir.kind(stat)) {
+            case PRINT: {
+                long value = evaluate(ir.exp(stat));
+                add(out.print(line, column, value == UNKNOWN ? residual(ir.exp(stat)) : out.constant((int) value)));
+                break;
+            }
+            case ASSIGN: {
+                int slot = ir.slot(stat);
+                long value = evaluate(ir.exp(stat));
+                if (value == UNKNOWN) {
+                    add(out.assign(line, column, slot, residual(ir.exp(stat))));
+                    known.clear(slot);
+                    stale.clear(slot);
+                } else {
+                    values[slot] = (int) value;
+                    known.set(slot);
+                    stale.set(slot);
+                }
+                break;
+            }
+            case IF: {
+                long cond = evaluate(ir.exp(stat));
+                if (cond == UNKNOWN) {
+                    residualIf(stat);
+                } else {
+                    evaluateStatements(cond != 0 ? ir.thenList(stat) : ir.elseList(stat));
+                }
+                break;
+            }
+            case WHILE: case FOR:
+                if (!unroll(stat)) residualLoop(stat);
+                break;
+            default:
+                throw new IllegalStateException("Unknown statement kind: " + ir.kind(stat));
+        }
+    }
+
+    /**
+     * Runs the loop at compile time and adds the residual statements of its iterations, if its
+     * conditions are known in every iteration, the iterations leave nothing but prints of
+     * constants and it stays within the limits. Otherwise, the
+     * variables are left unchanged and nothing is added. Returns whether the loop was run.
+     */
+    private boolean unroll(int loop) {
+        if (steps > MAX_STEPS) return false;
+        int[] assigned = assignedVariables(loop);
+        State entry = new State(assigned);
+        int start = length;
+        int emittedBefore = emitted;
+        int dependentBefore = dependent;
+        boolean done = ir.kind(loop) == WHILE ? unrollWhile(loop, emittedBefore, dependentBefore) : unrollFor(loop, emittedBefore, dependentBefore);
+        if (!done) {
+            entry.restore();
+            length = start;
+            emitted = emittedBefore;
+            dependent = dependentBefore;
+        }
+        return done;
+    }
+
+    private boolean withinLimits(int emittedBefore, int dependentBefore) {
+        return steps <= MAX_STEPS && emitted - emittedBefore <= MAX_UNROLLED_STATEMENTS && dependent == dependentBefore;
+    }
+
+    private boolean unrollWhile(int loop, int emittedBefore, int dependentBefore) {
+        while (true) {
+            // Each test counts as a step, so that loops with empty bodies give up too
+            if (++steps > MAX_STEPS) return false;
+            long cond = evaluate(ir.exp(loop));
+            if (cond == UNKNOWN) return false;
+            if (cond == 0) return true;
+            evaluateStatements(ir.loopBody(loop));
+            if (!withinLimits(emittedBefore, dependentBefore)) return false;
+        }
+    }
+
+    private boolean unrollFor(int loop, int emittedBefore, int dependentBefore) {
+        int slot = ir.slot(loop);
+        // The backends differ in whether the end and step see the loop variable's new value
+        if (reads(ir.forEnd(loop), slot) || reads(ir.forStep(loop), slot)) return false;
+        long start = evaluate(ir.forStart(loop));
+        long end = evaluate(ir.forEnd(loop));
+        long step = evaluate(ir.forStep(loop));
+        if (start == UNKNOWN || end == UNKNOWN || step == UNKNOWN) return false;
+        values[slot] = (int) start;
+        known.set(slot);
+        stale.set(slot);
+        while (values[slot] <= end) {
+            if (++steps > MAX_STEPS) return false;
+            evaluateStatements(ir.loopBody(loop));
+            if (!withinLimits(emittedBefore, dependentBefore) || !known.get(slot)) return false;
+            values[slot] += (int) step;
+            stale.set(slot);
+        }
+        return true;
+    }
+
+    /**
+     * Adds an if statement whose condition isn't known, with both branches partially evaluated.
+     * The variables that have different or unknown values after the branches are materialized
+     * at the end of the branch in which they're still known.
+     */
+    private void residualIf(int stat) {
+        int line = ir.line(stat);
+        int column = ir.column(stat);
+        int cond = residual(ir.exp(stat));
+        int[] assigned = assignedVariables(stat);
+        State entry = new State(assigned);
+        int thenList = statements(ir.thenList(stat));
+        State afterThen = new State(assigned);
+        entry.restore();
+        int elseList = statements(ir.elseList(stat));
+        int thenStart = length;
+        for (int i = 0; i < assigned.length; i++) {
+            int slot = assigned[i];
+            if (afterThen.known[i] && known.get(slot) && afterThen.values[i] == values[slot]) {
+                if (afterThen.stale[i]) stale.set(slot);
+            } else if (afterThen.known[i] && afterThen.stale[i]) {
+                add(out.assign(line, column, slot, out.constant(afterThen.values[i])));
+            }
+        }
+        thenList = append(thenList, thenStart);
+        int elseStart = length;
+        for (int i = 0; i < assigned.length; i++) {
+            int slot = assigned[i];
+            if (afterThen.known[i] && known.get(slot) && afterThen.values[i] == values[slot]) continue;
+            materialize(slot, line, column);
+            known.clear(slot);
+        }
+        elseList = append(elseList, elseStart);
+        add(out.ifStatement(line, column, cond, thenList, elseList));
+    }
+
+    /**
+     * Returns the given list followed by the statements on the stack from the given start.
+     */
+    private int append(int list, int start) {
+        if (length == start) return list;
+        int listLength = out.listLength(list);
+        int[] statements = new int[listLength + length - start];
+        for (int i = 0; i < listLength; i++) {
+            statements[i] = out.listElement(list, i);
+        }
+        System.arraycopy(stats, start, statements, listLength, length - start);
+        length = start;
+        return out.list(statements, statements.length);
+    }
+
+    /**
+     * Adds a loop that isn't run at compile time. The variables it assigns are materialized
+     * before it and at the end of its body, and aren't known after it.
+     */
+    private void residualLoop(int loop) {
+        int line = ir.line(loop);
+        int column = ir.column(loop);
+        int[] assigned = assignedVariables(loop);
+        for (int slot : assigned) {
+            materialize(slot, line, column);
+            known.clear(slot);
+        }
+        if (ir.kind(loop) == WHILE) {
+            int cond = residual(ir.exp(loop));
+            add(out.whileLoop(line, column, cond, loopBody(loop, assigned)));
+        } else {
+            int start = residual(ir.forStart(loop));
+            int end = residual(ir.forEnd(loop));
+            int step = residual(ir.forStep(loop));
+            add(out.forLoop(line, column, ir.slot(loop), start, end, step, loopBody(loop, assigned)));
+        }
+    }
+
+    private int loopBody(int loop, int[] assigned) {
+        int start = length;
+        evaluateStatements(ir.loopBody(loop));
+        for (int slot : assigned) {
+            materialize(slot, ir.line(loop), ir.column(loop));
+            known.clear(slot);
+        }
+        return endList(start);
+    }
+
+    private void materialize(int slot, int line, int column) {
+        if (known.get(slot) && stale.get(slot)) {
+            add(out.assign(line, column, slot, out.constant(values[slot])));
+        }
+        stale.clear(slot);
+    }
+
+    private int[] assignedVariables(int stat) {
+        int[] slots = assignedVariables.get(stat);
+        if (slots == null) {
+            BitSet assigned = new BitSet();
+            ir.collectAssignedVariables(stat, assigned);
+            slots = assigned.stream().toArray();
+            assignedVariables.put(stat, slots);
+        }
+        return slots;
+    }
+
+    /**
+     * The values of the given variables at some point, to go back to.
+     */
+    private final class State {
+        final int[] slots;
+        final int[] values;
+        final boolean[] known;
+        final boolean[] stale;
+
+        State(int[] slots) {
+            this.slots = slots;
+            this.values = new int[slots.length];
+            this.known = new boolean[slots.length];
+            this.stale = new boolean[slots.length];
+            for (int i = 0; i < slots.length; i++) {
+                values[i] = PartialEvaluator.this.values[slots[i]];
+                known[i] = PartialEvaluator.this.known.get(slots[i]);
+                stale[i] = PartialEvaluator.this.stale.get(slots[i]);
+            }
+        }
+
+        void restore() {
+            for (int i = 0; i < slots.length; i++) {
+                PartialEvaluator.this.values[slots[i]] = values[i];
+                PartialEvaluator.this.known.set(slots[i], known[i]);
+                PartialEvaluator.this.stale.set(slots[i], stale[i]);
+            }
+        }
+    }
+
+    private boolean reads(int exp, int slot) {
+        switch (ir.kind(exp)) {
+            case CONST: case READ: return false;
+            case VAR: return ir.varSlot(exp) == slot;
+            case NEG: case NOT: return reads(ir.lhs(exp), slot);
+            default: return reads(ir.lhs(exp), slot) || reads(ir.rhs(exp), slot);
+        }
+    }
+
+    /**
+     * Returns the value of the expression, or UNKNOWN if it reads input or a variable whose
+     * value isn't known, or fails.
+     */
+    private long evaluate(int exp) {
+        int kind = ir.kind(exp);
+        switch (kind) {
+            case CONST:
+                return ir.constValue(exp);
+            case VAR:
+                return known.get(ir.varSlot(exp)) ? values[ir.varSlot(exp)] : UNKNOWN;
+            case READ:
+                return UNKNOWN;
+            case NEG: {
+                long operand = evaluate(ir.lhs(exp));
+                return operand == UNKNOWN ? UNKNOWN : -(int) operand;
+            }
+            case NOT: {
+                long operand = evaluate(ir.lhs(exp));
+                return operand == UNKNOWN ? UNKNOWN : operand == 0 ? 1 : 0;
+            }
+            // && and || evaluate to their left operand if that decides the result and to their
+            // right operand otherwise
+            case AND: {
+                long lhs = evaluate(ir.lhs(exp));
+                return lhs == UNKNOWN || lhs == 0 ? lhs : evaluate(ir.rhs(exp));
+            }
+            case OR: {
+                long lhs = evaluate(ir.lhs(exp));
+                return lhs == UNKNOWN || lhs != 0 ? lhs : evaluate(ir.rhs(exp));
+            }
+            default: {
+                long lhs = evaluate(ir.lhs(exp));
+                if (lhs == UNKNOWN) return UNKNOWN;
+                long rhs = evaluate(ir.rhs(exp));
+                return rhs == UNKNOWN ? UNKNOWN : arithmetic(kind, (int) lhs, (int) rhs);
+            }
+        }
+    }
+
+    private static long arithmetic(int kind, int a, int b) {
+        switch (kind) {
+            case ADD: return a + b;
+            case SUB: return a - b;
+            case MUL: return a * b;
+            case DIV: return b == 0 ? UNKNOWN : a / b;
+            case REM: return b == 0 ? UNKNOWN : a % b;
+            case SHL: return a << b;
+            case EQ: return a == b ? 1 : 0;
+            case NE: return a != b ? 1 : 0;
+            case GT: return a > b ? 1 : 0;
+            case GE: return a >= b ? 1 : 0;
+            case LT: return a < b ? 1 : 0;
+            case LE: return a <= b ? 1 : 0;
+            default: throw new IllegalStateException("Unknown operator: " + kind);
+        }
+    }
+
+    /**
+     * Copies the expression with the known values of the variables it reads substituted, and
+     * the parts that are then known replaced by their values.
+     */
+    private int residual(int exp) {
+        int kind = ir.kind(exp);
+        switch (kind) {
+            case CONST:
+                return out.constant(ir.constValue(exp));
+            case VAR: {
+                int slot = ir.varSlot(exp);
+                return known.get(slot) ? out.constant(values[slot]) : out.variable(slot);
+            }
+            case READ:
+                return out.read();
+            case NEG: case NOT: {
+                int operand = residual(ir.lhs(exp));
+                if (out.kind(operand) != CONST) return out.unary(kind, operand);
+                int value = out.constValue(operand);
+                return out.constant(kind == NEG ? -value : value == 0 ? 1 : 0);
+            }
+            case AND: case OR: {
+                int lhs = residual(ir.lhs(exp));
+                if (out.kind(lhs) != CONST) return out.binary(kind, lhs, residual(ir.rhs(exp)));
+                return (out.constValue(lhs) == 0) == (kind == AND) ? lhs : residual(ir.rhs(exp));
+            }
+            default: {
+                int lhs = residual(ir.lhs(exp));
+                int rhs = residual(ir.rhs(exp));
+                if (out.kind(lhs) == CONST && out.kind(rhs) == CONST) {
+                    long value = arithmetic(kind, out.constValue(lhs), out.constValue(rhs));
+                    if (value != UNKNOWN) return out.constant((int) value);
+                }
+                return out.binary(kind, lhs, rhs);
+            }
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package minicomp;
+
+import java.util.*;
+
+/**
+ * The counters that {@link Options#profile} compiles into a program, and the source positions
+ * they're reported under. Every statement gets a counter of how often it's executed, followed by
+ * counters of how often the branches of an if statement are entered or how many trips a loop
+ * makes through its body.
+ *
+ * <p>Counters are numbered in the order of the statements in the program (see {@link #add}), so
+ * every backend numbers them the same way and writes the same report. The counters count the
+ * statements of the optimized program, so statements that were removed as dead code don't have
+ * any, and neither do the assignments of variables introduced by the compiler (see
+ * {@link ValueNumbering}). At exit, the generated program writes one line per counter to stderr:
+ *
+ * <pre>
+ * line:column kind count
+ * </pre>
+ *
+ * where the kind is "statement", "then", "else" or "loop". Sorting the lines by their count (e.g.
+ * with {@code sort -k3 -n -r}) gives a list of hotspots.
+ */
+final class ProfileCounters {
+    static final int STATEMENT = 0;
+    static final int THEN = 1;
+    static final int ELSE = 2;
+    static final int LOOP = 3;
+
+    static final String[] KIND_NAMES = {"statement", "then", "else", "loop"};
+
+    // For each counter, its statement's line and column and its kind
+    private int[] lines = new int[64];
+    private int[] columns = new int[64];
+    private int[] kinds = new int[64];
+    private int count = 0;
+    // The first counter of each statement of the program added last, indexed by node
+    private int[] firstCounter;
+
+    /**
+     * Adds counters for the statements of the given program, which replaces the previous one:
+     * {@link #get} only finds the counters of this program's statements afterwards. When a
+     * program is generated in parts, each part is added in turn.
+     */
+    void add(Ir program) {
+        firstCounter = new int[program.getSize()];
+        addList(program, program.getBody());
+    }
+
+    private void addList(Ir ir, int list) {
+        for (int i = 0; i < ir.listLength(list); i++) {
+            addStatement(ir, ir.listElement(list, i));
+        }
+    }
+
+    private void addStatement(Ir ir, int stat) {
+        if (ir.kind(stat) == Ir.ASSIGN && ir.getVariableName(ir.slot(stat)).startsWith("$")) {
+            firstCounter[stat] = -1;
+            return;
+        }
+        firstCounter[stat] = count;
+        addCounter(ir, stat, STATEMENT);
+        switch (ir.kind(stat)) {
+            case Ir.IF:
+                addCounter(ir, stat, THEN);
+                addCounter(ir, stat, ELSE);
+                addList(ir, ir.thenList(stat));
+                addList(ir, ir.elseList(stat));
+                break;
+            case Ir.WHILE: case Ir.FOR:
+                addCounter(ir, stat, LOOP);
+                addList(ir, ir.loopBody(stat));
+                break;
+        }
+    }
+
+    private void addCounter(Ir ir, int stat, int kind) {
+        if (count == lines.length) {
+            lines = Arrays.copyOf(lines, 2 * count);
+            columns = Arrays.copyOf(columns, 2 * count);
+            kinds = Arrays.copyOf(kinds, 2 * count);
+        }
+        lines[count] = ir.line(stat);
+        columns[count] = ir.column(stat);
+        kinds[count] = kind;
+        count++;
+    }
+
+    /**
+     * Whether the given statement has counters.
+     */
+    boolean counts(int stat) {
+        return firstCounter[stat] >= 0;
+    }
+
+    /**
+     * Returns the number of the given statement's counter of the given kind.
+     */
+    int get(int stat, int kind) {
+        // An if statement's THEN and ELSE counters follow its STATEMENT counter, and so does a
+        // loop's LOOP counter, which is numbered like THEN
+        return firstCounter[stat] + (kind == LOOP ? THEN : kind);
+    }
+
+    int size() { return count; }
+
+    int line(int counter) { return lines[counter]; }
+
+    int column(int counter) { return columns[counter]; }
+
+    int kind(int counter) { return kinds[counter]; }
+
+    /**
+     * The start of the counter's line in the report, up to the count.
+     */
+    String describe(int counter) {
+        return lines[counter] + ":" + columns[counter] + " " + KIND_NAMES[kinds[counter]];
+    }
+}
@@ -0,0 +1,65 @@
+package minicomp;
+
+import java.lang.invoke.*;
+import java.util.function.*;
+
+/**
+ * A compiled MiniLang program loaded into the running JVM. Instances are immutable and can be
+ * run any number of times, also concurrently from several threads.
+ */
+public class Program {
+    static final String RUN_DESCRIPTOR = "(Ljava/util/function/IntSupplier;Ljava/util/function/IntConsumer;)V";
+
+    private final MethodHandle run;
+
+    private Program(MethodHandle run) {
+        this.run = run;
+    }
+
+    /**
+     * Loads the class file produced by {@link JavaBytecodeCompiler} into a fresh class loader.
+     * Every program gets its own loader, so the class can be unloaded again once the program is
+     * no longer referenced.
+     */
+    public static Program load(byte[] classFile) {
+        Class<?> mainClass = defineClass(classFile);
+        try {
+            MethodType type = MethodType.methodType(void.class, IntSupplier.class, IntConsumer.class);
+            return new Program(MethodHandles.publicLookup().findStatic(mainClass, "run", type));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new IllegalArgumentException("Not a class file generated by JavaBytecodeCompiler", e);
+        }
+    }
+
+    /**
+     * Defines the class in the given class file in a new class loader of its own.
+     */
+    static Class<?> defineClass(byte[] classFile) {
+        return new ProgramClassLoader().define(classFile);
+    }
+
+    /**
+     * Runs the program, taking the values of read expressions from input and passing every
+     * printed value to output.
+     */
+    public void run(IntSupplier input, IntConsumer output) {
+        try {
+            run.invokeExact(input, output);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            // The generated code doesn't throw any checked exceptions
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static class ProgramClassLoader extends ClassLoader {
+        ProgramClassLoader() {
+            super(Program.class.getClassLoader());
+        }
+
+        Class<?> define(byte[] classFile) {
+            return defineClass(null, classFile, 0, classFile.length);
+        }
+    }
+}
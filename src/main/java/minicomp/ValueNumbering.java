@@ -0,0 +1,486 @@
+package minicomp;
+
+import java.util.*;
+import static minicomp.Ir.*;
+
+/**
+ * Eliminates common subexpressions, run by the {@link Optimizer} as its last pass. Expressions
+ * are numbered so that structurally equal ones (up to the order of the operands of commutative
+ * operators) get the same number, and an expression whose number is available from an earlier
+ * evaluation is replaced by a compiler variable holding that value. The variable is assigned in
+ * front of the statement in which the expression was first evaluated.
+ *
+ * <p>An evaluation is available to the statements it dominates: the later statements of its
+ * list and everything nested in them. Available values are kept in a scoped table, so that the
+ * ones from a branch are dropped when it ends, and an assignment makes all values that depend on
+ * the assigned variable unavailable. So do branches and loops for the variables they assign,
+ * loops from their start, since their body may already have run.
+ *
+ * <p>Only expressions without reads are numbered, and only ones that read at most
+ * {@link #MAX_VARIABLES} variables, which keeps the tables linear in the size of the program even
+ * for long chains of operators. An evaluation can only be reused if moving it in front of its
+ * statement doesn't change the program's behavior:
+ *
+ * <ul>
+ * <li>The right operands of && and || may not be evaluated, so they can reuse values, but not
+ *     provide them. The same goes for while conditions, which can't be moved out of the loop.</li>
+ * <li>An expression that may divide by zero isn't moved past a read in its statement, so that a
+ *     program still fails on missing input rather than on the division or vice versa.</li>
+ * </ul>
+ */
+class ValueNumbering {
+    // The most variables that a numbered expression may read, since the variables are recorded
+    // for every subexpression
+    static final int MAX_VARIABLES = 64;
+
+    private final Ir ir;
+    private final Ir out;
+
+    // The number of each expression node plus one, 0 if it hasn't been computed yet, and -1 for
+    // expressions with reads
+    private final int[] numbers;
+    // The numbers of the expressions' keys (see number), in an open-addressing hash table
+    private long[] keys = new long[1024];
+    private int[] keyNumbers = new int[1024];
+    // For each number, the variables its expression reads and whether it may divide by zero
+    private final List<int[]> numberVariables = new ArrayList<>();
+    private final BitSet mayFail = new BitSet();
+
+    // For each number, the node that first evaluated it plus one, or 0 if it isn't available
+    private int[] available = new int[1024];
+    // The numbers that may depend on each variable, a superset of the available ones
+    private final int[][] dependents;
+    private final int[] dependentCounts;
+    // The changes to available, as pairs of a number and the node it was mapped to before, or
+    // -1, so that they can be undone when a scope ends
+    private int[] undoLog = new int[64];
+    private int undoLength = 0;
+
+    // The node whose value each node reuses, plus one, and the nodes whose values are reused
+    private final int[] reusedNode;
+    private final BitSet reused = new BitSet();
+    // In the output, the variable holding the value of each reused node
+    private final int[] temporaries;
+
+    private ValueNumbering(Ir ir) {
+        this.ir = ir;
+        this.out = new Ir(ir);
+        this.numbers = new int[ir.getSize()];
+        this.reusedNode = new int[ir.getSize()];
+        this.temporaries = new int[ir.getSize()];
+        this.dependents = new int[ir.getVariableCount()][];
+        this.dependentCounts = new int[ir.getVariableCount()];
+        Arrays.fill(keyNumbers, -1);
+    }
+
+    /**
+     * Returns the program with common subexpressions eliminated, or the program itself if it
+     * doesn't have any.
+     */
+    static Ir eliminate(Ir ir) {
+        ValueNumbering numbering = new ValueNumbering(ir);
+        numbering.analyzeList(ir.getBody());
+        if (numbering.reused.isEmpty()) return ir;
+        numbering.out.setBody(numbering.statements(ir.getBody()));
+        return numbering.out;
+    }
+
+    // Numbering
+
+    /**
+     * Returns the expression's number, or -1 if it contains a read or reads too many variables.
+     */
+    private int number(int exp) {
+        if (numbers[exp] != 0) return numbers[exp] - 1;
+        int kind = ir.kind(exp);
+        int lhs = -1;
+        int rhs = -1;
+        long key;
+        switch (kind) {
+            case CONST:
+                key = (long) kind << 58 | (ir.constValue(exp) & 0xFFFFFFFFL);
+                break;
+            case VAR:
+                key = (long) kind << 58 | ir.varSlot(exp);
+                break;
+            case READ:
+                return setNumber(exp, -1);
+            case NEG: case NOT:
+                lhs = number(ir.lhs(exp));
+                if (lhs < 0) return setNumber(exp, -1);
+                key = (long) kind << 58 | lhs;
+                break;
+            default:
+                lhs = number(ir.lhs(exp));
+                rhs = number(ir.rhs(exp));
+                if (lhs < 0 || rhs < 0) return setNumber(exp, -1);
+                if (numberVariables.get(lhs).length + numberVariables.get(rhs).length > MAX_VARIABLES) {
+                    return setNumber(exp, -1);
+                }
+                if ((kind == ADD || kind == MUL || kind == EQ || kind == NE) && lhs > rhs) {
+                    int swap = lhs;
+                    lhs = rhs;
+                    rhs = swap;
+                }
+                key = (long) kind << 58 | (long) lhs << 29 | rhs;
+        }
+        int index = find(key);
+        int number = keyNumbers[index];
+        if (number < 0) {
+            number = numberVariables.size();
+            keys[index] = key;
+            keyNumbers[index] = number;
+            addNumber(exp, lhs, rhs);
+            if (2 * number > keys.length) rehash();
+        }
+        return setNumber(exp, number);
+    }
+
+    /**
+     * Records the variables and whether it may fail for a new number, given the numbers of the
+     * expression's operands.
+     */
+    private void addNumber(int exp, int lhs, int rhs) {
+        int number = numberVariables.size();
+        switch (ir.kind(exp)) {
+            case CONST:
+                numberVariables.add(new int[0]);
+                return;
+            case VAR:
+                numberVariables.add(new int[] {ir.varSlot(exp)});
+                return;
+            case NEG: case NOT:
+                numberVariables.add(numberVariables.get(lhs));
+                if (mayFail.get(lhs)) mayFail.set(number);
+                return;
+            default:
+                numberVariables.add(union(numberVariables.get(lhs), numberVariables.get(rhs)));
+                boolean fails = mayFail.get(lhs) || mayFail.get(rhs);
+                if (ir.kind(exp) == DIV || ir.kind(exp) == REM) {
+                    int divisor = ir.rhs(exp);
+                    fails |= ir.kind(divisor) != CONST || ir.constValue(divisor) == 0;
+                }
+                if (fails) mayFail.set(number);
+        }
+    }
+
+    /**
+     * Returns the index in the hash table that holds the given key, or where it belongs.
+     */
+    private int find(long key) {
+        int mask = keys.length - 1;
+        int index = (int) (key ^ key >>> 29 ^ key >>> 58) * 0x9E3779B9 & mask;
+        while (keyNumbers[index] >= 0 && keys[index] != key) {
+            index = index + 1 & mask;
+        }
+        return index;
+    }
+
+    private void rehash() {
+        long[] oldKeys = keys;
+        int[] oldNumbers = keyNumbers;
+        keys = new long[2 * oldKeys.length];
+        keyNumbers = new int[2 * oldKeys.length];
+        Arrays.fill(keyNumbers, -1);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldNumbers[i] < 0) continue;
+            int index = find(oldKeys[i]);
+            keys[index] = oldKeys[i];
+            keyNumbers[index] = oldNumbers[i];
+        }
+    }
+
+    private int setNumber(int exp, int number) {
+        numbers[exp] = number + 1;
+        return number;
+    }
+
+    private static int[] union(int[] a, int[] b) {
+        if (b.length == 0 || Arrays.equals(a, b)) return a;
+        if (a.length == 0) return b;
+        int[] result = new int[a.length + b.length];
+        int i = 0, j = 0, length = 0;
+        while (i < a.length || j < b.length) {
+            if (j == b.length || i < a.length && a[i] < b[j]) {
+                result[length++] = a[i++];
+            } else if (i == a.length || b[j] < a[i]) {
+                result[length++] = b[j++];
+            } else {
+                result[length++] = a[i++];
+                j++;
+            }
+        }
+        return Arrays.copyOf(result, length);
+    }
+
+    // Availability
+
+    private void log(int number, int previous) {
+        if (undoLength + 2 > undoLog.length) undoLog = Arrays.copyOf(undoLog, 2 * undoLog.length);
+        undoLog[undoLength++] = number;
+        undoLog[undoLength++] = previous;
+    }
+
+    private int availableNode(int number) {
+        return number < available.length ? available[number] - 1 : -1;
+    }
+
+    private void setAvailable(int number, int node) {
+        if (number >= available.length) available = Arrays.copyOf(available, Math.max(2 * available.length, number + 1));
+        available[number] = node + 1;
+    }
+
+    private void makeAvailable(int number, int node) {
+        log(number, -1);
+        setAvailable(number, node);
+        addDependent(number);
+    }
+
+    private void addDependent(int number) {
+        for (int slot: numberVariables.get(number)) {
+            if (dependents[slot] == null) {
+                dependents[slot] = new int[16];
+            } else if (dependentCounts[slot] == dependents[slot].length) {
+                dependents[slot] = Arrays.copyOf(dependents[slot], 2 * dependentCounts[slot]);
+            }
+            dependents[slot][dependentCounts[slot]++] = number;
+        }
+    }
+
+    /**
+     * Makes the values that depend on the given variable unavailable.
+     */
+    private void kill(int slot) {
+        for (int i = 0; i < dependentCounts[slot]; i++) {
+            int number = dependents[slot][i];
+            int node = availableNode(number);
+            if (node >= 0) {
+                log(number, node);
+                setAvailable(number, -1);
+            }
+        }
+        dependentCounts[slot] = 0;
+    }
+
+    private void kill(BitSet slots) {
+        for (int slot = slots.nextSetBit(0); slot >= 0; slot = slots.nextSetBit(slot + 1)) {
+            kill(slot);
+        }
+    }
+
+    /**
+     * Undoes the changes to the available values since the log had the given length.
+     */
+    private void endScope(int scope) {
+        while (undoLength > scope) {
+            int previous = undoLog[--undoLength];
+            int number = undoLog[--undoLength];
+            setAvailable(number, previous);
+            if (previous >= 0) addDependent(number);
+        }
+    }
+
+    // Analysis: finds the evaluations that can be reused and where
+
+    private void analyzeList(int list) {
+        int scope = undoLength;
+        for (int i = 0; i < ir.listLength(list); i++) {
+            analyzeStatement(ir.listElement(list, i));
+        }
+        endScope(scope);
+    }
+
+    private void analyzeStatement(int stat) {
+        switch (ir.kind(stat)) {
+            case PRINT:
+                analyze(ir.exp(stat), true, !ir.contains(ir.exp(stat), READ));
+                break;
+            case ASSIGN:
+                analyze(ir.exp(stat), true, !ir.contains(ir.exp(stat), READ));
+                kill(ir.slot(stat));
+                break;
+            case IF: {
+                analyze(ir.exp(stat), true, !ir.contains(ir.exp(stat), READ));
+                analyzeList(ir.thenList(stat));
+                analyzeList(ir.elseList(stat));
+                BitSet assigned = new BitSet();
+                ir.collectAssignedVariables(stat, assigned);
+                kill(assigned);
+                break;
+            }
+            case WHILE: {
+                BitSet assigned = new BitSet();
+                ir.collectAssignedVariables(stat, assigned);
+                kill(assigned);
+                analyze(ir.exp(stat), false, false);
+                analyzeList(ir.loopBody(stat));
+                break;
+            }
+            case FOR: {
+                boolean noReads = !ir.contains(ir.forStart(stat), READ) && !ir.contains(ir.forEnd(stat), READ)
+                    && !ir.contains(ir.forStep(stat), READ);
+                analyze(ir.forStart(stat), true, noReads);
+                // The loop variable may already hold the start when the end and step are evaluated.
+                // Values they compute from it can't be reused, since they'd be assigned before the
+                // loop, where the variable still has its previous value.
+                int slot = ir.slot(stat);
+                kill(slot);
+                boolean readsLoopVariable = reads(ir.forEnd(stat), slot) || reads(ir.forStep(stat), slot);
+                analyze(ir.forEnd(stat), !readsLoopVariable, noReads);
+                analyze(ir.forStep(stat), !readsLoopVariable, noReads);
+                BitSet assigned = new BitSet();
+                ir.collectAssignedVariables(stat, assigned);
+                kill(assigned);
+                analyzeList(ir.loopBody(stat));
+                break;
+            }
+            default:
+                throw new IllegalStateException("Unknown statement kind: " + ir.kind(stat));
+        }
+    }
+
+    private boolean reads(int exp, int slot) {
+        switch (ir.kind(exp)) {
+            case CONST: case READ: return false;
+            case VAR: return ir.varSlot(exp) == slot;
+            case NEG: case NOT: return reads(ir.lhs(exp), slot);
+            default: return reads(ir.lhs(exp), slot) || reads(ir.rhs(exp), slot);
+        }
+    }
+
+    /**
+     * Looks for available values in the expression, in the order of evaluation.
+     *
+     * @param provides whether the values computed here can be reused by later evaluations
+     * @param canFail whether an expression that may divide by zero can be reused, which is the
+     *                case when the statement doesn't read
+     */
+    private void analyze(int exp, boolean provides, boolean canFail) {
+        int kind = ir.kind(exp);
+        if (kind == CONST || kind == VAR || kind == READ) return;
+        int number = number(exp);
+        if (number >= 0) {
+            int node = availableNode(number);
+            if (node >= 0) {
+                reusedNode[exp] = node + 1;
+                reused.set(node);
+                return;
+            }
+        }
+        if (kind == NEG || kind == NOT) {
+            analyze(ir.lhs(exp), provides, canFail);
+        } else {
+            analyze(ir.lhs(exp), provides, canFail);
+            analyze(ir.rhs(exp), provides && kind != AND && kind != OR, canFail);
+        }
+        if (number >= 0 && provides && (canFail || !mayFail.get(number))) {
+            makeAvailable(number, exp);
+        }
+    }
+
+    // Rewriting
+
+    private int[] stats = new int[16];
+    private int length = 0;
+
+    /**
+     * Copies the statements of the list into a new list, with the assignments of the reused
+     * values in front of the statements that compute them. Like in {@link DeadCodeEliminator},
+     * the statements are collected on a stack shared by all lists.
+     */
+    private int statements(int list) {
+        int start = length;
+        for (int i = 0; i < ir.listLength(list); i++) {
+            statement(ir.listElement(list, i));
+        }
+        int result = out.list(Arrays.copyOfRange(stats, start, length), length - start);
+        length = start;
+        return result;
+    }
+
+    private void add(int stat) {
+        if (length == stats.length) stats = Arrays.copyOf(stats, 2 * length);
+        stats[length++] = stat;
+    }
+
+    private void statement(int stat) {
+        int line = ir.line(stat);
+        int column = ir.column(stat);
+        switch (ir.kind(stat)) {
+            case PRINT:
+                assignReused(ir.exp(stat), line, column);
+                add(out.print(line, column, expression(ir.exp(stat))));
+                break;
+            case ASSIGN:
+                assignReused(ir.exp(stat), line, column);
+                add(out.assign(line, column, ir.slot(stat), expression(ir.exp(stat))));
+                break;
+            case IF: {
+                assignReused(ir.exp(stat), line, column);
+                int cond = expression(ir.exp(stat));
+                int thenList = statements(ir.thenList(stat));
+                add(out.ifStatement(line, column, cond, thenList, statements(ir.elseList(stat))));
+                break;
+            }
+            case WHILE: {
+                int cond = expression(ir.exp(stat));
+                add(out.whileLoop(line, column, cond, statements(ir.loopBody(stat))));
+                break;
+            }
+            case FOR: {
+                assignReused(ir.forStart(stat), line, column);
+                assignReused(ir.forEnd(stat), line, column);
+                assignReused(ir.forStep(stat), line, column);
+                int start = expression(ir.forStart(stat));
+                int end = expression(ir.forEnd(stat));
+                int step = expression(ir.forStep(stat));
+                add(out.forLoop(line, column, ir.slot(stat), start, end, step, statements(ir.loopBody(stat))));
+                break;
+            }
+            default:
+                throw new IllegalStateException("Unknown statement kind: " + ir.kind(stat));
+        }
+    }
+
+    /**
+     * Adds the assignments of the reused values that the expression computes, in the order of
+     * evaluation, so that the ones it contains come before the ones containing them.
+     */
+    private void assignReused(int exp, int line, int column) {
+        int kind = ir.kind(exp);
+        if (kind == CONST || kind == VAR || kind == READ || reusedNode[exp] != 0) return;
+        assignReused(ir.lhs(exp), line, column);
+        if (kind != NEG && kind != NOT) assignReused(ir.rhs(exp), line, column);
+        if (reused.get(exp)) {
+            int value = copy(exp);
+            temporaries[exp] = out.addVariable("$value" + out.getVariableCount());
+            add(out.assign(line, column, temporaries[exp], value));
+        }
+    }
+
+    private int expression(int exp) {
+        if (reusedNode[exp] != 0) return out.variable(temporaries[reusedNode[exp] - 1]);
+        if (reused.get(exp)) return out.variable(temporaries[exp]);
+        return copy(exp);
+    }
+
+    /**
+     * Copies the expression, with its operands replaced by the variables holding their values
+     * where they're reused.
+     */
+    private int copy(int exp) {
+        int kind = ir.kind(exp);
+        switch (kind) {
+            case CONST:
+                return out.constant(ir.constValue(exp));
+            case VAR:
+                return out.variable(ir.varSlot(exp));
+            case READ:
+                return out.read();
+            case NEG: case NOT:
+                return out.unary(kind, expression(ir.lhs(exp)));
+            default:
+                return out.binary(kind, expression(ir.lhs(exp)), expression(ir.rhs(exp)));
+        }
+    }
+}
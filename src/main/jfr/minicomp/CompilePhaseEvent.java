@@ -0,0 +1,24 @@
+package minicomp;
+
+import jdk.jfr.*;
+
+/**
+ * A Java Flight Recorder event for one phase of a compilation (see {@link CompileMetrics}). Its
+ * duration is the phase's wall time. Emitted by {@link JfrPhaseEvents}.
+ */
+@Name("minicomp.CompilePhase")
+@Label("Compile Phase")
+@Category("MiniComp")
+@Description("A phase of compiling a MiniLang program")
+@StackTrace(false)
+class CompilePhaseEvent extends Event {
+    @Label("Phase")
+    String phase;
+
+    @Label("Allocated")
+    @DataAmount
+    long allocatedBytes;
+
+    @Label("Counts")
+    String counts;
+}
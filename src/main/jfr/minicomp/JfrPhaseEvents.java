@@ -0,0 +1,32 @@
+package minicomp;
+
+import jdk.jfr.FlightRecorder;
+
+/**
+ * Emits the phases of {@link CompileMetrics} as {@link CompilePhaseEvent}s. Like the event, this
+ * is only compiled on JDK 11 and later, and loaded by name.
+ */
+class JfrPhaseEvents implements CompileMetrics.PhaseEvents {
+    @Override
+    public Object begin() {
+        // Initializing JFR would more than double the compiler's startup time, so nothing is
+        // done unless it's already running
+        if (!FlightRecorder.isInitialized()) return null;
+        CompilePhaseEvent event = new CompilePhaseEvent();
+        if (!event.isEnabled()) return null;
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void end(Object event, CompileMetrics.Phase phase) {
+        CompilePhaseEvent phaseEvent = (CompilePhaseEvent) event;
+        phaseEvent.end();
+        if (phaseEvent.shouldCommit()) {
+            phaseEvent.phase = phase.getName();
+            phaseEvent.allocatedBytes = phase.getAllocatedBytes();
+            phaseEvent.counts = phase.getCounts().toString();
+            phaseEvent.commit();
+        }
+    }
+}